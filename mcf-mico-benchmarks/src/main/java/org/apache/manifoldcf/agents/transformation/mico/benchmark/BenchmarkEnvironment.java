@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
+import org.apache.manifoldcf.agents.interfaces.IPipelineConnector;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.interfaces.ThreadContextFactory;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * What the connectors expect from the agents process, set up for a
+ * benchmark run: an initialized ManifoldCF environment with its own spool
+ * directory and {@link StubInjector}s for every MICO endpoint, and a
+ * pipeline that reads and discards whatever is sent downstream.
+ */
+public class BenchmarkEnvironment {
+
+	public static final String MICO_SERVER = "http://mico.invalid/";
+	public static final String MICO_USER = "benchmark";
+	public static final String MICO_PASSWORD = "benchmark";
+	public static final String DOC_URI_FIELD = "mico_uri";
+
+	private static File spoolDirectory = null;
+
+	/**
+	 * Initialize ManifoldCF once per benchmark process, with a properties
+	 * file in a temporary directory that is removed on exit.
+	 */
+	public static void initialize() throws IOException, ManifoldCFException {
+		initialize(Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Initialize ManifoldCF once per benchmark process, with additional
+	 * properties for the connectors.
+	 */
+	public static synchronized void initialize(Map<String, String> connectorProperties)
+			throws IOException, ManifoldCFException {
+		if (spoolDirectory != null) {
+			return;
+		}
+		final File directory = Files.createTempDirectory("mcf-mico-benchmark").toFile();
+		File spool = new File(directory, "spool");
+		StringBuilder extra = new StringBuilder();
+		for (Map.Entry<String, String> property : connectorProperties.entrySet()) {
+			extra.append("  <property name=\"").append(property.getKey()).append("\" value=\"")
+					.append(property.getValue()).append("\"/>\n");
+		}
+		File logging = new File(directory, "logging.ini");
+		FileUtils.writeStringToFile(logging, "log4j.rootLogger=WARN, stdout\n"
+				+ "log4j.appender.stdout=org.apache.log4j.ConsoleAppender\n"
+				+ "log4j.appender.stdout.layout=org.apache.log4j.PatternLayout\n"
+				+ "log4j.appender.stdout.layout.ConversionPattern=%5p %m%n\n", StandardCharsets.UTF_8);
+		File properties = new File(directory, "properties.xml");
+		FileUtils.writeStringToFile(properties, "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+				+ "<configuration>\n"
+				+ "  <property name=\"org.apache.manifoldcf.logconfigfile\" value=\"" + logging.getAbsolutePath() + "\"/>\n"
+				+ "  <property name=\"org.apache.manifoldcf.mico.spool.directory\" value=\"" + spool.getAbsolutePath() + "\"/>\n"
+				+ "  <property name=\"org.apache.manifoldcf.mico.client.factory\" value=\"" + StubInjector.Factory.class.getName() + "\"/>\n"
+				+ extra
+				+ "</configuration>\n", StandardCharsets.UTF_8);
+		System.setProperty("org.apache.manifoldcf.configfile", properties.getAbsolutePath());
+		ManifoldCF.initializeEnvironment(ThreadContextFactory.make());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				FileUtils.deleteQuietly(directory);
+			}
+		});
+		spoolDirectory = spool;
+	}
+
+	/**
+	 * Get the directory the connectors spool to, once initialized.
+	 */
+	public static synchronized File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Make content of the given size that starts with the given header and
+	 * continues with random bytes, so that nothing along the way can
+	 * compress it or take shortcuts.
+	 */
+	public static byte[] content(byte[] header, int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		System.arraycopy(header, 0, content, 0, Math.min(header.length, size));
+		return content;
+	}
+
+	public static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Make an activity that accepts every document, reading its content to
+	 * the end like an output connector would.
+	 */
+	public static IOutputAddActivity downstream() {
+		return (IOutputAddActivity) Proxy.newProxyInstance(BenchmarkEnvironment.class.getClassLoader(),
+				new Class<?>[] { IOutputAddActivity.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("sendDocument")) {
+							InputStream is = ((RepositoryDocument) args[1]).getBinaryStream();
+							IOUtils.copy(is, NullOutputStream.NULL_OUTPUT_STREAM);
+							return Integer.valueOf(IPipelineConnector.DOCUMENTSTATUS_ACCEPTED);
+						}
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class) {
+							return Boolean.TRUE;
+						}
+						if (type == int.class) {
+							return Integer.valueOf(0);
+						}
+						if (type == long.class) {
+							return Long.valueOf(0L);
+						}
+						return null;
+					}
+				});
+	}
+}
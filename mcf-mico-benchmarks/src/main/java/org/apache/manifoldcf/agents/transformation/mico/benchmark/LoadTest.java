@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.agents.transformation.BaseTransformationConnector;
+import org.apache.manifoldcf.agents.transformation.mico.multimedia.LatencyHistogram;
+import org.apache.manifoldcf.agents.transformation.mico.multimedia.MicoConfig;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.SpecificationNode;
+import org.apache.manifoldcf.core.interfaces.VersionContext;
+
+/**
+ * Drives the connectors with synthetic documents from a number of threads,
+ * against a {@link StubMicoServer}, and reports throughput and latency. The
+ * run fails if spool files are left behind or the heap grew by more than
+ * allowed once everything has settled.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar org.apache.manifoldcf.agents.transformation.mico.benchmark.LoadTest \
+ *     --connector both --concurrency 16 --documents 5000 --latency 20 --error-rate 0.01
+ * </pre>
+ */
+public class LoadTest {
+
+	private static final Map<String, String> defaults = new LinkedHashMap<String, String>();
+
+	static {
+		defaults.put("connector", "both");
+		defaults.put("concurrency", "8");
+		defaults.put("documents", "1000");
+		defaults.put("mix", "text=60,jpeg=20,png=15,mp4=5");
+		defaults.put("scale", "1.0");
+		defaults.put("async", "false");
+		defaults.put("latency", "10");
+		defaults.put("jitter", "10");
+		defaults.put("error-rate", "0");
+		defaults.put("max-requests", "0");
+		defaults.put("settle", "60");
+		defaults.put("max-heap-growth", "64");
+	}
+
+	private final Map<String, String> options;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong interruptions = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>(defaults);
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--") || i + 1 == args.length || !defaults.containsKey(args[i].substring(2))) {
+				System.err.println("Usage: LoadTest [--option value]..., with options and their defaults:");
+				for (Map.Entry<String, String> option : defaults.entrySet()) {
+					System.err.println("  --" + option.getKey() + " " + option.getValue());
+				}
+				System.exit(2);
+			}
+			options.put(args[i].substring(2), args[++i]);
+		}
+		System.exit(new LoadTest(options).run() ? 0 : 1);
+	}
+
+	/**
+	 * Run the test and print the report.
+	 * 
+	 * @return true if nothing leaked.
+	 */
+	public boolean run() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(MicoConfig.PROPERTY_CONCURRENCY_MAXIMUM, Integer.toString(Math.max(64, intOption("concurrency"))));
+		if (Boolean.parseBoolean(options.get("async"))) {
+			// Asynchronous submission only queues documents while there is an
+			// outbox to move them to
+			final File outbox = Files.createTempDirectory("mcf-mico-outbox").toFile();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					FileUtils.deleteQuietly(outbox);
+				}
+			});
+			properties.put(MicoConfig.PROPERTY_OUTBOX_DIRECTORY, outbox.getAbsolutePath());
+		}
+		BenchmarkEnvironment.initialize(properties);
+
+		StubMicoServer server = new StubMicoServer(longOption("latency"), longOption("jitter"),
+				Double.parseDouble(options.get("error-rate")), intOption("max-requests"));
+		server.start();
+		try {
+			String connector = options.get("connector");
+			IOutputAddActivity pipeline = BenchmarkEnvironment.downstream();
+			if (connector.equals("multimedia") || connector.equals("both")) {
+				pipeline = stage(new org.apache.manifoldcf.agents.transformation.mico.multimedia.MicoExtractor(),
+						server.getUrl(), pipeline);
+			}
+			if (connector.equals("text") || connector.equals("both")) {
+				pipeline = stage(new org.apache.manifoldcf.agents.transformation.mico.text.MicoExtractor(),
+						server.getUrl(), pipeline);
+			}
+
+			MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+			long heapBefore = settledHeap(memory);
+			long started = System.nanoTime();
+			drive(pipeline);
+			long elapsed = System.nanoTime() - started;
+			int leakedFiles = settledSpoolFiles(longOption("settle") * 1000L);
+			long heapGrowth = settledHeap(memory) - heapBefore;
+
+			double seconds = elapsed / 1e9;
+			long documents = latencies.getCount();
+			System.out.println("Options:      " + options);
+			System.out.println("Documents:    " + documents + " in " + String.format("%.1f", seconds) + " s, "
+					+ interruptions.get() + " rescheduled, " + errors.get() + " failed");
+			System.out.println("Throughput:   " + String.format("%.1f", documents / seconds) + " documents/s, "
+					+ String.format("%.2f", bytes.get() / seconds / (1 << 20)) + " MB/s");
+			System.out.println("Latency (ms): p50=" + millis(latencies.getPercentile(50.0)) + " p99="
+					+ millis(latencies.getPercentile(99.0)) + " p999=" + millis(latencies.getPercentile(99.9))
+					+ " max=" + millis(latencies.getMaximum()));
+			System.out.println("MICO stub:    " + server);
+			System.out.println("Spool files:  " + leakedFiles + " left behind");
+			System.out.println("Heap growth:  " + (heapGrowth >> 20) + " MB");
+
+			return leakedFiles == 0 && heapGrowth <= longOption("max-heap-growth") << 20;
+		} finally {
+			server.stop();
+		}
+	}
+
+	private void drive(final IOutputAddActivity pipeline) throws InterruptedException {
+		final long total = longOption("documents");
+		final SyntheticDocuments generator = new SyntheticDocuments(options.get("mix"),
+				Double.parseDouble(options.get("scale")));
+		int concurrency = intOption("concurrency");
+		ExecutorService threads = Executors.newFixedThreadPool(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					long n;
+					while ((n = sequence.getAndIncrement()) < total) {
+						RepositoryDocument document = generator.next(n);
+						long start = System.nanoTime();
+						try {
+							pipeline.sendDocument("http://repository.invalid/" + document.getFileName(), document);
+							latencies.record(System.nanoTime() - start);
+							bytes.addAndGet(document.getBinaryLength());
+						} catch (ServiceInterruption e) {
+							interruptions.incrementAndGet();
+						} catch (Exception e) {
+							if (errors.incrementAndGet() <= 10) {
+								e.printStackTrace();
+							}
+						}
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Put a connector in front of the rest of the pipeline: what is sent to
+	 * the returned activity goes through the connector, and what the
+	 * connector sends goes on to the next one.
+	 */
+	private IOutputAddActivity stage(final BaseTransformationConnector connector, String micoServer,
+			final IOutputAddActivity next) {
+		final Specification specification = new Specification();
+		add(specification, MicoConfig.NODE_MICO_SERVER, micoServer);
+		add(specification, MicoConfig.NODE_MICO_USER, BenchmarkEnvironment.MICO_USER);
+		add(specification, MicoConfig.NODE_MICO_PASSWORD, BenchmarkEnvironment.MICO_PASSWORD);
+		add(specification, MicoConfig.NODE_MICO_DOC_URI_FIELD, BenchmarkEnvironment.DOC_URI_FIELD);
+		add(specification, MicoConfig.NODE_MICO_ASYNC, options.get("async"));
+		final VersionContext pipelineDescription = new VersionContext("", new ConfigParams(), specification);
+		return (IOutputAddActivity) Proxy.newProxyInstance(LoadTest.class.getClassLoader(),
+				new Class<?>[] { IOutputAddActivity.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("sendDocument")) {
+							return Integer.valueOf(connector.addOrReplaceDocumentWithException((String) args[0],
+									pipelineDescription, (RepositoryDocument) args[1], null, next));
+						}
+						try {
+							return method.invoke(next, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	private static void add(Specification specification, String type, String value) {
+		SpecificationNode node = new SpecificationNode(type);
+		node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, value);
+		specification.addChild(specification.getChildCount(), node);
+	}
+
+	/**
+	 * Wait for queued submissions to let go of their spools.
+	 * 
+	 * @return the number of spool files still there after the wait.
+	 */
+	private int settledSpoolFiles(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		int files;
+		while ((files = countSpoolFiles(BenchmarkEnvironment.getSpoolDirectory())) > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(200L);
+		}
+		return files;
+	}
+
+	private static int countSpoolFiles(File directory) {
+		File[] entries = directory.listFiles();
+		if (entries == null) {
+			return 0;
+		}
+		int count = 0;
+		for (File entry : entries) {
+			if (entry.isDirectory()) {
+				count += countSpoolFiles(entry);
+			} else if (!entry.getName().endsWith(".lock")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static long settledHeap(MemoryMXBean memory) throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100L);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.1f", micros / 1000.0);
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private long longOption(String name) {
+		return Long.parseLong(options.get(name));
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.MicoClientFactory;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+import org.zaizi.mico.client.model.ContentPart;
+
+/**
+ * An injector that answers in-process, without a MICO server. Uploads are
+ * read to the end, so the connector's side of the transfer is measured,
+ * but nothing is kept.
+ */
+public class StubInjector implements Injector {
+
+	@Override
+	public ContentItem createContentItem() throws MicoClientException {
+		return new ContentItem();
+	}
+
+	@Override
+	public ContentPart addContentPart(ContentItem ci, String mimeType, String name, InputStream is)
+			throws MicoClientException {
+		try {
+			IOUtils.copy(is, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (IOException e) {
+			// The spool is local, so this is a broken benchmark rather than a
+			// failed injection
+			throw new IllegalStateException("Could not read the upload of " + name, e);
+		}
+		return new ContentPart();
+	}
+
+	@Override
+	public void submitContentItem(ContentItem ci) throws MicoClientException {
+	}
+
+	/**
+	 * Hands out {@link StubInjector}s in place of real injectors.
+	 */
+	public static class Factory extends MicoClientFactory {
+
+		public Factory(String micoServer, String micoUser, String micoPassword) {
+			super(micoServer, micoUser, micoPassword);
+		}
+
+		@Override
+		public Injector createInjectorClient() {
+			return new StubInjector();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP server answering the MICO broker's injection API:
+ * .../inject/create, .../inject/add and .../inject/submit. Requests can be
+ * slowed down, failed at random, and turned away with 429 when more of them
+ * are in progress than the server is meant to take.
+ */
+public class StubMicoServer {
+
+	private final long latency;
+	private final long jitter;
+	private final double errorRate;
+	private final Semaphore capacity;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong uploadedBytes = new AtomicLong();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * @param latency
+	 *            is the milliseconds every request takes at least.
+	 * @param jitter
+	 *            is the most milliseconds added to that at random.
+	 * @param errorRate
+	 *            is the fraction of requests answered with a server error.
+	 * @param maxConcurrentRequests
+	 *            is how many requests may be in progress at once before
+	 *            further ones are throttled; 0 for no limit.
+	 */
+	public StubMicoServer(long latency, long jitter, double errorRate, int maxConcurrentRequests)
+			throws IOException {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.errorRate = errorRate;
+		this.capacity = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.createContext("/", new InjectionHandler());
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the URL to configure as the MICO server.
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	@Override
+	public String toString() {
+		return "created=" + created.get() + " uploaded=" + uploaded.get() + " (" + uploadedBytes.get()
+				+ " bytes) submitted=" + submitted.get() + " failed=" + failed.get() + " throttled="
+				+ throttled.get();
+	}
+
+	private class InjectionHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				long bytes = drain(exchange.getRequestBody());
+				if (capacity != null && !capacity.tryAcquire()) {
+					throttled.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					respond(exchange, 429, "");
+					return;
+				}
+				try {
+					delay();
+					Random random = ThreadLocalRandom.current();
+					if (errorRate > 0.0 && random.nextDouble() < errorRate) {
+						failed.incrementAndGet();
+						respond(exchange, 500, "Injected failure");
+						return;
+					}
+					String path = exchange.getRequestURI().getPath();
+					if (path.endsWith("/create")) {
+						created.incrementAndGet();
+						respond(exchange, 200, "{\"uri\":\"" + getUrl() + "marmotta/" + UUID.randomUUID() + "\"}");
+					} else if (path.endsWith("/add")) {
+						uploaded.incrementAndGet();
+						uploadedBytes.addAndGet(bytes);
+						respond(exchange, 200, "{\"uri\":\"" + getUrl() + "marmotta/" + UUID.randomUUID() + "\"}");
+					} else if (path.endsWith("/submit")) {
+						submitted.incrementAndGet();
+						respond(exchange, 200, "");
+					} else {
+						respond(exchange, 404, "Not an injection request: " + path);
+					}
+				} finally {
+					if (capacity != null) {
+						capacity.release();
+					}
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private long drain(InputStream is) throws IOException {
+			byte[] chunk = new byte[65536];
+			long total = 0L;
+			int n;
+			while ((n = is.read(chunk)) != -1) {
+				total += n;
+			}
+			return total;
+		}
+
+		private void delay() {
+			long millis = latency + (jitter > 0L ? ThreadLocalRandom.current().nextLong(jitter + 1L) : 0L);
+			if (millis > 0L) {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void respond(HttpExchange exchange, int status, String body) throws IOException {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+			if (bytes.length > 0) {
+				OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		}
+	}
+}
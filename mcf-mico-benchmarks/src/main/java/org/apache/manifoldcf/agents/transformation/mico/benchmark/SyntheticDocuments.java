@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.benchmark;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+
+/**
+ * Generates repository documents of the kinds the connectors see, with
+ * log-normally distributed sizes. Content is streamed from a shared block
+ * of random bytes behind the kind's magic number, so documents take no heap
+ * of their own and cannot be compressed.
+ */
+public class SyntheticDocuments {
+
+	/**
+	 * A kind of document and the distribution of its sizes.
+	 */
+	public enum Kind {
+		TEXT("text/plain", "txt", 4096L, 1.5, 10L << 20, BenchmarkEnvironment.ascii("Synthetic text ")),
+		JPEG("image/jpeg", "jpg", 250L << 10, 0.8, 20L << 20,
+				new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10, 'J', 'F', 'I', 'F', 0 }),
+		PNG("image/png", "png", 120L << 10, 1.0, 20L << 20,
+				new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' }),
+		MP4("video/mp4", "mp4", 8L << 20, 1.0, 256L << 20,
+				new byte[] { 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2' });
+
+		final String mediaType;
+		final String extension;
+		final long median;
+		final double sigma;
+		final long maximum;
+		final byte[] magic;
+
+		Kind(String mediaType, String extension, long median, double sigma, long maximum, byte[] magic) {
+			this.mediaType = mediaType;
+			this.extension = extension;
+			this.median = median;
+			this.sigma = sigma;
+			this.maximum = maximum;
+			this.magic = magic;
+		}
+	}
+
+	private static final int BLOCK_SIZE = 1 << 20;
+	private static final byte[] block = BenchmarkEnvironment.content(new byte[0], BLOCK_SIZE);
+
+	private final List<Kind> kinds = new ArrayList<Kind>();
+	private final List<Integer> weights = new ArrayList<Integer>();
+	private final double scale;
+	private int totalWeight = 0;
+
+	/**
+	 * @param mix
+	 *            is the share of each kind, e.g. "text=60,jpeg=20,png=15,mp4=5".
+	 * @param scale
+	 *            multiplies every size, to shrink or grow the whole mix.
+	 */
+	public SyntheticDocuments(String mix, double scale) {
+		for (String part : mix.split(",")) {
+			String[] share = part.trim().split("=");
+			if (share.length != 2) {
+				throw new IllegalArgumentException("Mix must look like text=60,jpeg=20, was '" + mix + "'");
+			}
+			int weight = Integer.parseInt(share[1].trim());
+			if (weight > 0) {
+				kinds.add(Kind.valueOf(share[0].trim().toUpperCase(Locale.ROOT)));
+				weights.add(weight);
+				totalWeight += weight;
+			}
+		}
+		if (totalWeight == 0) {
+			throw new IllegalArgumentException("Mix has no documents: '" + mix + "'");
+		}
+		this.scale = scale;
+	}
+
+	/**
+	 * Make the next document.
+	 */
+	public RepositoryDocument next(long sequence) {
+		Random random = ThreadLocalRandom.current();
+		Kind kind = pick(random.nextInt(totalWeight));
+		double size = kind.median * Math.exp(kind.sigma * random.nextGaussian()) * scale;
+		long length = Math.max(kind.magic.length, Math.min(kind.maximum, (long) size));
+		RepositoryDocument document = new RepositoryDocument();
+		document.setMimeType(kind.mediaType);
+		document.setFileName("document-" + sequence + "." + kind.extension);
+		document.setModifiedDate(new Date());
+		document.setBinary(new Content(kind.magic, length, random.nextInt(BLOCK_SIZE)), length);
+		return document;
+	}
+
+	private Kind pick(int ticket) {
+		for (int i = 0; i < kinds.size(); i++) {
+			ticket -= weights.get(i);
+			if (ticket < 0) {
+				return kinds.get(i);
+			}
+		}
+		return kinds.get(kinds.size() - 1);
+	}
+
+	/**
+	 * The magic number, then the shared random block from some offset, over
+	 * and over, up to the length.
+	 */
+	private static class Content extends InputStream {
+
+		private final byte[] magic;
+		private final long length;
+		private final int start;
+		private long position = 0L;
+
+		Content(byte[] magic, long length, int start) {
+			this.magic = magic;
+			this.length = length;
+			this.start = start;
+		}
+
+		@Override
+		public int read() {
+			if (position >= length) {
+				return -1;
+			}
+			int b = byteAt(position);
+			position++;
+			return b & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= length) {
+				return -1;
+			}
+			int n = (int) Math.min(len, length - position);
+			int done = 0;
+			while (done < n && position < magic.length) {
+				b[off + done++] = magic[(int) position++];
+			}
+			while (done < n) {
+				int from = (int) ((start + position) % BLOCK_SIZE);
+				int chunk = Math.min(n - done, BLOCK_SIZE - from);
+				System.arraycopy(block, from, b, off + done, chunk);
+				done += chunk;
+				position += chunk;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, length - position);
+		}
+
+		private byte byteAt(long offset) {
+			if (offset < magic.length) {
+				return magic[(int) offset];
+			}
+			return block[(int) ((start + offset) % BLOCK_SIZE)];
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.manifoldcf.agents.transformation.mico.benchmark.BenchmarkEnvironment;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Detecting the media type of a document header: through a fresh
+ * TikaConfig.getDefaultConfig() every time, through a detector kept from
+ * it, and through the multimedia connector's own magic number check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class DetectionBenchmark {
+
+	@Param({ "png", "jpeg", "mp4", "pdf", "text" })
+	public String sample;
+
+	private byte[] header;
+	private Detector detector;
+
+	@Setup
+	public void setUp() throws Exception {
+		byte[] magic;
+		if (sample.equals("png")) {
+			magic = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+		} else if (sample.equals("jpeg")) {
+			magic = new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10, 'J', 'F', 'I', 'F', 0 };
+		} else if (sample.equals("mp4")) {
+			magic = new byte[] { 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2' };
+		} else if (sample.equals("pdf")) {
+			magic = BenchmarkEnvironment.ascii("%PDF-1.4\n");
+		} else {
+			magic = BenchmarkEnvironment.ascii("Plain text that has no magic number at all, ");
+		}
+		header = new byte[SpoolOutputStream.HEADER_SIZE];
+		for (int offset = 0; offset < header.length; offset += magic.length) {
+			System.arraycopy(magic, 0, header, offset, Math.min(magic.length, header.length - offset));
+		}
+		if (!sample.equals("text")) {
+			// Only the magic number up front, followed by binary data
+			byte[] binary = BenchmarkEnvironment.content(magic, header.length);
+			System.arraycopy(binary, 0, header, 0, header.length);
+		}
+		detector = TikaConfig.getDefaultConfig().getDetector();
+	}
+
+	@Benchmark
+	public MediaType defaultConfig() throws Exception {
+		return TikaConfig.getDefaultConfig().getDetector()
+				.detect(TikaInputStream.get(new ByteArrayInputStream(header)), new Metadata());
+	}
+
+	@Benchmark
+	public MediaType cachedDetector() throws Exception {
+		return detector.detect(TikaInputStream.get(new ByteArrayInputStream(header)), new Metadata());
+	}
+
+	@Benchmark
+	public String magic() {
+		return MicoExtractor.detectByMagic(header, MicoExtractor.MAGIC_LENGTH);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.manifoldcf.agents.transformation.mico.benchmark.BenchmarkEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Spooling a document and reading it back once, in each spool tier of the
+ * multimedia connector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class SpoolBenchmark {
+
+	private static final int CHUNK_SIZE = 65536;
+
+	@Param({ "memory", "offheap", "disk" })
+	public String tier;
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int size;
+
+	private byte[] content;
+	private final byte[] buffer = new byte[CHUNK_SIZE];
+
+	@Setup
+	public void setUp() throws Exception {
+		BenchmarkEnvironment.initialize();
+		content = BenchmarkEnvironment.content(new byte[0], size);
+	}
+
+	@Benchmark
+	public long spool() throws Exception {
+		MicoExtractor.DestinationStorage ds = createStorage();
+		try {
+			OutputStream os = ds.getOutputStream();
+			try {
+				for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+					os.write(content, offset, Math.min(CHUNK_SIZE, content.length - offset));
+				}
+			} finally {
+				os.close();
+			}
+			long total = 0L;
+			InputStream is = ds.getInputStream();
+			try {
+				int n;
+				while ((n = is.read(buffer)) != -1) {
+					total += n;
+				}
+			} finally {
+				is.close();
+			}
+			return total;
+		} finally {
+			ds.close();
+		}
+	}
+
+	private MicoExtractor.DestinationStorage createStorage() throws Exception {
+		MicoExtractor.DestinationStorage ds;
+		if (tier.equals("memory")) {
+			ds = MicoExtractor.MemoryDestinationStorage.create(size);
+		} else if (tier.equals("offheap")) {
+			ds = MicoExtractor.OffHeapDestinationStorage.create(size);
+		} else {
+			ds = new MicoExtractor.FileDestinationStorage(size);
+		}
+		if (ds == null) {
+			throw new IllegalStateException("The " + tier + " spool budget does not fit " + size + " bytes");
+		}
+		return ds;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.transformation.mico.benchmark.BenchmarkEnvironment;
+import org.apache.manifoldcf.agents.transformation.mico.benchmark.StubInjector;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.VersionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A document through the whole text connector, injected synchronously into
+ * a {@link StubInjector} and read to the end downstream. A video is left to
+ * the multimedia connector and goes straight downstream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ExtractorBenchmark {
+
+	@Param({ "text/plain", "video/mp4" })
+	public String mediaType;
+
+	@Param({ "1024", "65536", "1048576" })
+	public int size;
+
+	private MicoExtractor extractor;
+	private VersionContext pipelineDescription;
+	private IOutputAddActivity activities;
+	private byte[] content;
+
+	@Setup
+	public void setUp() throws Exception {
+		BenchmarkEnvironment.initialize();
+		Specification specification = SpecPackerBenchmark.specification(false);
+		pipelineDescription = new VersionContext(new MicoExtractor.SpecPacker(specification).toPackedString(),
+				new ConfigParams(), specification);
+		extractor = new MicoExtractor();
+		activities = BenchmarkEnvironment.downstream();
+		content = BenchmarkEnvironment.content(new byte[0], size);
+	}
+
+	@Benchmark
+	public int addOrReplaceDocument() throws Exception {
+		RepositoryDocument document = new RepositoryDocument();
+		document.setMimeType(mediaType);
+		document.setBinary(new ByteArrayInputStream(content), content.length);
+		return extractor.addOrReplaceDocumentWithException("http://repository.invalid/document", pipelineDescription,
+				document, null, activities);
+	}
+}
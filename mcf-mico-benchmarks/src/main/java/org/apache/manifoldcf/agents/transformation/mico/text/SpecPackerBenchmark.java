@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.manifoldcf.agents.transformation.mico.benchmark.BenchmarkEnvironment;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.SpecificationNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a job's MICO settings from its specification, and packing them
+ * into the pipeline version string; both happen for every document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class SpecPackerBenchmark {
+
+	private Specification specification;
+	private MicoExtractor.SpecPacker packer;
+
+	@Setup
+	public void setUp() {
+		specification = specification(false);
+		packer = new MicoExtractor.SpecPacker(specification);
+	}
+
+	/**
+	 * Build the specification of a job that has all the MICO settings.
+	 */
+	static Specification specification(boolean async) {
+		Specification specification = new Specification();
+		add(specification, MicoConfig.NODE_MICO_SERVER, BenchmarkEnvironment.MICO_SERVER);
+		add(specification, MicoConfig.NODE_MICO_USER, BenchmarkEnvironment.MICO_USER);
+		add(specification, MicoConfig.NODE_MICO_PASSWORD, BenchmarkEnvironment.MICO_PASSWORD);
+		add(specification, MicoConfig.NODE_MICO_DOC_URI_FIELD, BenchmarkEnvironment.DOC_URI_FIELD);
+		add(specification, MicoConfig.NODE_MICO_ASYNC, Boolean.toString(async));
+		add(specification, MicoConfig.NODE_MICO_PASSTHROUGH, "false");
+		add(specification, MicoConfig.NODE_MICO_MAX_CONCURRENCY, "");
+		return specification;
+	}
+
+	private static void add(Specification specification, String type, String value) {
+		SpecificationNode node = new SpecificationNode(type);
+		node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, value);
+		specification.addChild(specification.getChildCount(), node);
+	}
+
+	@Benchmark
+	public MicoExtractor.SpecPacker parse() {
+		return new MicoExtractor.SpecPacker(specification);
+	}
+
+	@Benchmark
+	public String pack() {
+		return packer.toPackedString();
+	}
+}
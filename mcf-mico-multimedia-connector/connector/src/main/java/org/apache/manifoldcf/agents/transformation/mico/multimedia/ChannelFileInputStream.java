@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a spool file that reads through its FileChannel straight
+ * into the reader's buffer, without the intermediate native buffer a
+ * FileInputStream allocates per read, which matters for multi-gigabyte
+ * videos.
+ * 
+ * The file is not memory-mapped: a mapping outlives the stream until it is
+ * garbage collected, which keeps the file from being deleted on Windows, and
+ * keeps its pages counted against the process after the spool quota has been
+ * given back. Closing this stream releases everything it holds.
+ */
+public class ChannelFileInputStream extends InputStream {
+
+	/** Largest number of bytes read from the channel at a time. */
+	protected static final int MAXIMUM_READ = 64 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private long position = 0L;
+
+	public ChannelFileInputStream(File spoolFile) throws IOException {
+		this.file = new RandomAccessFile(spoolFile, "r");
+		this.channel = file.getChannel();
+		this.size = channel.size();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int amt = read(b, 0, 1);
+		return amt < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= size) {
+			return -1;
+		}
+		// The channel reads a heap buffer through a temporary direct one of
+		// the same size, cached per thread, so reads are kept to a bounded size
+		int amt = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(Math.min(len, MAXIMUM_READ), size - position)),
+				position);
+		if (amt < 0) {
+			return -1;
+		}
+		position += amt;
+		return amt;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = Math.max(0L, Math.min(n, size - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, size - position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * Remembers which MICO content item was created for which content, so that
+ * content seen before, whether re-crawled or found under another document
+ * URI, is not injected and analysed again.
+ * 
+ * Content is identified by its SHA-256 digest together with the MICO server,
+ * since content items only exist on the server they were created on. The
+ * index lives in the directory named by the
+ * {@link MicoConfig#PROPERTY_INDEX_DIRECTORY} property, and is disabled when
+ * that is not set. Problems with the index are logged and otherwise ignored;
+ * the worst outcome is that content is injected again.
+ */
+public class ContentIndex {
+
+	protected static final String INDEX_NAME = "content";
+
+	/** Default time between writing changes through to disk. */
+	protected static final long DEFAULT_CHECKPOINT_INTERVAL = 10000L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static MappedIndex index = null;
+	private static boolean initialized = false;
+	/** Connector instances currently connected, see {@link #acquire()}. */
+	private static int users = 0;
+	private static long lastCheckpoint = 0L;
+
+	private ContentIndex() {
+	}
+
+	/**
+	 * Build the index key for content with the given SHA-256 digest on the
+	 * given MICO server.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if no server is given; see
+	 *             {@link DocumentIndex#isIndexable}.
+	 */
+	public static byte[] key(String micoServer, byte[] contentDigest) {
+		if (!DocumentIndex.isIndexable(micoServer)) {
+			throw new IllegalArgumentException("No MICO server to index content under");
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(micoServer.getBytes(UTF8));
+			digest.update((byte) 0);
+			digest.update(contentDigest);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Look up the content item created earlier for a key.
+	 * 
+	 * @return the content item URI, or null if there is none or the index is
+	 *         disabled.
+	 */
+	public static String lookup(byte[] key) {
+		MappedIndex current = getIndex();
+		if (current == null) {
+			return null;
+		}
+		try {
+			byte[] value = current.get(key);
+			return value == null ? null : new String(value, UTF8);
+		} catch (IOException e) {
+			Logging.agents.warn("Could not read MICO content index", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Record the content item created for a key.
+	 */
+	public static void record(byte[] key, String contentItemUri) {
+		MappedIndex current = getIndex();
+		if (current == null) {
+			return;
+		}
+		try {
+			current.put(key, contentItemUri.getBytes(UTF8));
+		} catch (IOException e) {
+			Logging.agents.warn("Could not update MICO content index", e);
+		}
+	}
+
+	/**
+	 * Note that a connector instance has been connected, and may use the
+	 * index.
+	 */
+	public static synchronized void acquire() {
+		users++;
+	}
+
+	/**
+	 * Note that a connector instance has been disconnected. The last one to go
+	 * closes the index, which writes it through to disk; it is opened again
+	 * on next use.
+	 */
+	public static synchronized void release() {
+		if (users > 0) {
+			users--;
+		}
+		if (users == 0 && index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				Logging.agents.warn("Could not close MICO content index", e);
+			}
+			index = null;
+			initialized = false;
+		}
+	}
+
+	/**
+	 * Grow or compact an open index if it is due, see
+	 * {@link MappedIndex#maintain()}, and write its changes through to disk
+	 * once the checkpoint interval has passed since the last time. Called from
+	 * the connector's poll, so this work stays off the crawler threads.
+	 */
+	public static void checkpointIfDue() throws ManifoldCFException {
+		MappedIndex current;
+		boolean due;
+		synchronized (ContentIndex.class) {
+			current = index;
+			if (current == null) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long interval = MicoConfig.getLongProperty(MicoConfig.PROPERTY_INDEX_CHECKPOINT_INTERVAL,
+					DEFAULT_CHECKPOINT_INTERVAL);
+			due = now - lastCheckpoint >= interval;
+			if (due) {
+				lastCheckpoint = now;
+			}
+		}
+		try {
+			current.maintain();
+		} catch (IOException e) {
+			Logging.agents.warn("Could not grow or compact MICO content index", e);
+		}
+		if (!due) {
+			return;
+		}
+		try {
+			current.checkpoint();
+		} catch (IOException e) {
+			Logging.agents.warn("Could not write MICO content index to disk", e);
+		}
+	}
+
+	/**
+	 * Get the index, opening it on first use.
+	 * 
+	 * @return the index, or null if it is disabled or could not be opened.
+	 */
+	protected static synchronized MappedIndex getIndex() {
+		if (!initialized) {
+			initialized = true;
+			String location = ManifoldCF.getProperty(MicoConfig.PROPERTY_INDEX_DIRECTORY);
+			if (location != null && location.trim().length() > 0) {
+				try {
+					index = new MappedIndex(new File(location.trim()), INDEX_NAME,
+							MicoConfig.getLongProperty(MicoConfig.PROPERTY_INDEX_CAPACITY, 0L));
+					Logging.agents.info("Opened MICO content index in " + location.trim() + " with "
+							+ index.size() + " entries");
+				} catch (IOException e) {
+					Logging.agents.error("Could not open MICO content index in " + location.trim()
+							+ "; content will not be deduplicated", e);
+				} catch (ManifoldCFException e) {
+					Logging.agents.error("Could not open MICO content index: " + e.getMessage(), e);
+				}
+			}
+		}
+		return index;
+	}
+}
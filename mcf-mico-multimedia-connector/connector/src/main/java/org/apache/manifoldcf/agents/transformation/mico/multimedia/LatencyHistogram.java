@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: microsecond
+ * values are counted in buckets that double in width with every power of two,
+ * each split into 16 linear sub-buckets. This keeps the error of any
+ * percentile under about 6% from a microsecond up to hours, in a fixed 8 KB
+ * per histogram.
+ */
+public class LatencyHistogram {
+
+	protected static final int SUB_BUCKET_BITS = 4;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong maximum = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param nanos
+	 *            is the latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0L, nanos / 1000L);
+		counts.incrementAndGet(indexOf(micros));
+		total.incrementAndGet();
+		sum.addAndGet(micros);
+		long current;
+		while (micros > (current = maximum.get())) {
+			if (maximum.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	/** Get the mean latency, in microseconds. */
+	public long getMean() {
+		long count = total.get();
+		return count == 0L ? 0L : sum.get() / count;
+	}
+
+	/** Get the highest latency recorded, in microseconds. */
+	public long getMaximum() {
+		return maximum.get();
+	}
+
+	/**
+	 * Get the latency below which the given percentage of the recorded values
+	 * fall, in microseconds.
+	 */
+	public long getPercentile(double percentile) {
+		long count = total.get();
+		if (count == 0L) {
+			return 0L;
+		}
+		long threshold = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= threshold) {
+				return Math.min(upperBoundOf(i), maximum.get());
+			}
+		}
+		return maximum.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0L);
+		}
+		total.set(0L);
+		sum.set(0L);
+		maximum.set(0L);
+	}
+
+	protected static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	protected static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,962 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * A persistent map from 32 byte keys (SHA-256 digests) to small values, sized
+ * for hundreds of millions of entries without holding them on the heap.
+ * 
+ * Entries are appended to a log file. A memory-mapped, open addressing hash
+ * table next to it maps the leading 8 bytes of each key to the position of
+ * its latest record in the log, and an off-heap Bloom filter in front of the
+ * table answers most lookups for unknown keys without touching it. Replacing
+ * a value appends a new record; the old one stays in the log until the log
+ * is compacted.
+ * 
+ * The table records how much of the log it covers, so records appended after
+ * that, for example by a process that was killed, are replayed into it when
+ * the index is opened. A table that is missing or damaged is rebuilt from the
+ * log. Changes reach the disk when the index is forced, which callers should
+ * do at regular checkpoints and when closing it; what was written since the
+ * last checkpoint may be lost if the machine goes down, not just the process.
+ * 
+ * The table doubles once it is 70% full, and the log is rewritten with only
+ * the latest record of each key once more than half of it is replaced
+ * records. Both are done by {@link #maintain()}, which callers should run
+ * from a background thread, such as the one writing checkpoints: the new
+ * files are built from a snapshot while lookups and updates carry on, and the
+ * index is only held while what changed meanwhile is added to them and they
+ * are swapped in. If updates fill the table to 90% before that, the update
+ * that does so grows it while holding the index, which takes seconds once it
+ * holds tens of millions of entries. The Bloom filter takes one byte per slot
+ * of direct memory, which is counted against the {@link SlabPool} budget;
+ * without room there, the index works without the filter.
+ * 
+ * All methods are thread safe. Only one process can open an index at a time.
+ */
+public class MappedIndex {
+
+	/** Length of the keys. */
+	public static final int KEY_LENGTH = 32;
+
+	protected static final long LOG_MAGIC = 0x4d49434f4c4f4731L; // MICOLOG1
+	protected static final long TABLE_MAGIC = 0x4d49434f54414231L; // MICOTAB1
+	protected static final int LOG_HEADER_SIZE = 8;
+	/** Magic, capacity, entries, log length covered and live log bytes, then room to spare. */
+	protected static final int TABLE_HEADER_SIZE = 64;
+	protected static final int SLOT_SIZE = 16;
+
+	/** Slots per mapped segment of the table; 64M slots make 1 GB. */
+	protected static final int SEGMENT_SHIFT = 26;
+	protected static final int INITIAL_CAPACITY = 1 << 16;
+	protected static final int MAXIMUM_CAPACITY = 1 << 30;
+	protected static final double MAXIMUM_LOAD = 0.7;
+	/** Load at which updates grow the table themselves, if maintenance has not kept up. */
+	protected static final double GROWING_LOAD = 0.9;
+
+	/** Share of the log taken by replaced records that has it compacted. */
+	protected static final double MAXIMUM_WASTE = 0.5;
+	/** Replaced records must take at least this many bytes before compacting is worth it. */
+	protected static final long MINIMUM_COMPACTION_WASTE = 4L * 1024L * 1024L;
+
+	/** Number of Bloom filter hashes; with 8 bits per slot this gives under 1% false positives at full load. */
+	protected static final int BLOOM_HASHES = 6;
+
+	/** Largest value that is accepted. */
+	protected static final int MAXIMUM_VALUE_LENGTH = 65536;
+
+	private final File logFile;
+	private final File tableFile;
+	private final int initialCapacity;
+	private RandomAccessFile log;
+	private FileChannel logChannel;
+	private FileLock lock;
+	private long logEnd;
+	/** Bytes of the log taken by the latest record of each key. */
+	private long liveBytes = 0L;
+
+	private Table table;
+	private boolean dirty = false;
+	private boolean closed = false;
+	private boolean maintaining = false;
+
+	/**
+	 * Open the index stored under the given directory and name, creating it if
+	 * necessary.
+	 */
+	public MappedIndex(File directory, String name) throws IOException {
+		this(directory, name, 0L);
+	}
+
+	/**
+	 * Open the index stored under the given directory and name, creating it
+	 * with room for the expected number of entries if necessary.
+	 */
+	public MappedIndex(File directory, String name, long expectedEntries) throws IOException {
+		this.initialCapacity = capacityFor(expectedEntries);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create index directory " + directory);
+		}
+		logFile = new File(directory, name + ".log");
+		tableFile = new File(directory, name + ".tab");
+
+		log = new RandomAccessFile(logFile, "rw");
+		logChannel = log.getChannel();
+		boolean opened = false;
+		try {
+			lock = logChannel.tryLock();
+			if (lock == null) {
+				throw new IOException("Index " + logFile + " is in use by another process");
+			}
+			if (logChannel.size() < LOG_HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+				header.putLong(LOG_MAGIC).flip();
+				logChannel.truncate(0L);
+				writeFully(logChannel, header, 0L);
+			} else if (readLong(0L) != LOG_MAGIC) {
+				throw new IOException(logFile + " is not an index log");
+			}
+			logEnd = logChannel.size();
+
+			long covered = openTable();
+			long end = replay(covered, null);
+			if (end < logEnd) {
+				// A record cut short by a crash is dropped
+				logChannel.truncate(end);
+				logEnd = end;
+			}
+			table.header.putLong(24, logEnd);
+			table.header.putLong(32, liveBytes);
+			opened = true;
+		} finally {
+			if (!opened) {
+				if (table != null) {
+					table.close();
+				}
+				log.close();
+			}
+		}
+	}
+
+	/**
+	 * Get the value stored for a key.
+	 * 
+	 * @return the value, or null if the key is not in the index.
+	 */
+	public synchronized byte[] get(byte[] key) throws IOException {
+		checkKey(key);
+		checkOpen();
+		long fingerprint = fingerprint(key);
+		if (!table.bloomContains(fingerprint)) {
+			return null;
+		}
+		int slot = table.firstSlot(fingerprint);
+		while (true) {
+			long slotFingerprint = table.fingerprint(slot);
+			if (slotFingerprint == 0L) {
+				return null;
+			}
+			if (slotFingerprint == fingerprint) {
+				byte[] value = readRecord(logChannel, logEnd, table.offset(slot), key);
+				if (value != null) {
+					return value;
+				}
+			}
+			slot = (slot + 1) & (table.capacity - 1);
+		}
+	}
+
+	/**
+	 * Store the value for a key, replacing any previous one.
+	 */
+	public synchronized void put(byte[] key, byte[] value) throws IOException {
+		checkKey(key);
+		if (value.length > MAXIMUM_VALUE_LENGTH) {
+			throw new IllegalArgumentException("Index values are limited to " + MAXIMUM_VALUE_LENGTH + " bytes");
+		}
+		checkOpen();
+		ByteBuffer record = ByteBuffer.allocate(KEY_LENGTH + 4 + value.length);
+		record.put(key).putInt(value.length).put(value).flip();
+		long offset = logEnd;
+		writeFully(logChannel, record, offset);
+		logEnd = offset + record.capacity();
+
+		liveBytes += record.capacity() - insert(table, logChannel, logEnd, key, fingerprint(key), offset);
+		table.header.putLong(24, logEnd);
+		table.header.putLong(32, liveBytes);
+		dirty = true;
+		if (table.count > table.capacity * GROWING_LOAD && table.capacity < MAXIMUM_CAPACITY) {
+			growNow();
+		}
+	}
+
+	/**
+	 * Get the number of distinct keys in the index.
+	 */
+	public synchronized long size() {
+		return table.count;
+	}
+
+	/**
+	 * Get the number of slots in the table.
+	 */
+	public synchronized int capacity() {
+		return table.capacity;
+	}
+
+	/**
+	 * Grow the table or compact the log if either is due. Lookups and updates
+	 * carry on while the new files are built, so this should be called
+	 * regularly from a background thread rather than from the threads using
+	 * the index.
+	 * 
+	 * @return true if the index was grown or compacted.
+	 */
+	public boolean maintain() throws IOException {
+		Rebuild rebuild;
+		synchronized (this) {
+			if (closed || maintaining) {
+				return false;
+			}
+			boolean grow = table.count > table.capacity * MAXIMUM_LOAD && table.capacity < MAXIMUM_CAPACITY;
+			long waste = logEnd - LOG_HEADER_SIZE - liveBytes;
+			boolean compact = waste >= MINIMUM_COMPACTION_WASTE && waste > (logEnd - LOG_HEADER_SIZE) * MAXIMUM_WASTE;
+			if (!grow && !compact) {
+				return false;
+			}
+			rebuild = new Rebuild(grow ? table.capacity * 2 : table.capacity, compact, logEnd);
+			maintaining = true;
+		}
+		boolean done = false;
+		try {
+			try {
+				rebuild.build();
+			} catch (IOException e) {
+				synchronized (this) {
+					if (closed) {
+						// Closed while the new files were built
+						return false;
+					}
+				}
+				throw e;
+			}
+			synchronized (this) {
+				if (closed) {
+					return false;
+				}
+				rebuild.commit();
+				done = true;
+			}
+			return true;
+		} finally {
+			synchronized (this) {
+				if (!done) {
+					rebuild.discard();
+				}
+				maintaining = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write all changes through to disk. The log goes first, so that a table
+	 * on disk never covers more than the log.
+	 */
+	public synchronized void force() throws IOException {
+		checkOpen();
+		logChannel.force(false);
+		table.force();
+		dirty = false;
+	}
+
+	/**
+	 * Write changes through to disk if there were any since the last time.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (dirty && !closed) {
+			force();
+		}
+	}
+
+	/**
+	 * Close the index. It must not be used afterwards.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			force();
+		} finally {
+			closed = true;
+			notifyAll();
+			try {
+				table.close();
+			} finally {
+				lock.release();
+				log.close();
+			}
+		}
+	}
+
+	/**
+	 * Map the table file, or create a new one if it is missing or unusable.
+	 * 
+	 * @return the log position up to which the table is complete.
+	 */
+	private long openTable() throws IOException {
+		if (tableFile.length() >= TABLE_HEADER_SIZE) {
+			RandomAccessFile raf = new RandomAccessFile(tableFile, "rw");
+			boolean usable = false;
+			try {
+				MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, TABLE_HEADER_SIZE);
+				long tableCapacity = header.getLong(8);
+				long covered = header.getLong(24);
+				usable = header.getLong(0) == TABLE_MAGIC && tableCapacity >= INITIAL_CAPACITY
+						&& tableCapacity <= MAXIMUM_CAPACITY && Long.bitCount(tableCapacity) == 1
+						&& raf.length() == TABLE_HEADER_SIZE + tableCapacity * SLOT_SIZE
+						&& covered >= LOG_HEADER_SIZE && covered <= logEnd;
+				if (usable) {
+					table = new Table(raf, header, (int) tableCapacity, header.getLong(16));
+					table.rebuildBloom(true);
+					liveBytes = header.getLong(32);
+					if (liveBytes <= 0L || liveBytes > covered - LOG_HEADER_SIZE) {
+						// Written before live bytes were kept; take every record to be live
+						liveBytes = covered - LOG_HEADER_SIZE;
+					}
+					return covered;
+				}
+			} finally {
+				if (!usable) {
+					raf.close();
+				}
+			}
+		}
+		table = createTable(tableFile, initialCapacity, true);
+		liveBytes = 0L;
+		return LOG_HEADER_SIZE;
+	}
+
+	/**
+	 * Add the log records from the given position on to the table, or to a
+	 * rebuild of it. A table that fills up while the index is opened is grown
+	 * right away.
+	 * 
+	 * @return the position of the first record that is cut short, or the end
+	 *         of the log.
+	 */
+	private long replay(long position, Rebuild rebuild) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(KEY_LENGTH + 4);
+		byte[] key = new byte[KEY_LENGTH];
+		while (position < logEnd) {
+			head.clear();
+			if (logEnd - position < head.capacity()) {
+				break;
+			}
+			readFully(logChannel, head, position);
+			head.flip();
+			head.get(key);
+			int valueLength = head.getInt();
+			if (valueLength < 0 || valueLength > MAXIMUM_VALUE_LENGTH
+					|| position + KEY_LENGTH + 4 + valueLength > logEnd) {
+				break;
+			}
+			int length = KEY_LENGTH + 4 + valueLength;
+			if (rebuild != null) {
+				rebuild.add(key, position, length);
+			} else {
+				liveBytes += length - insert(table, logChannel, logEnd, key, fingerprint(key), position);
+				if (table.count > table.capacity * MAXIMUM_LOAD && table.capacity < MAXIMUM_CAPACITY) {
+					// The rest of the log goes into the grown table
+					Rebuild grow = new Rebuild(table.capacity * 2, false, position + length);
+					boolean done = false;
+					try {
+						grow.build();
+						grow.swap(position + length);
+						done = true;
+					} finally {
+						if (!done) {
+							grow.discard();
+						}
+					}
+				}
+			}
+			position += length;
+		}
+		return position;
+	}
+
+	/**
+	 * Point the table at a log record for a key, replacing the entry for the
+	 * same key if there is one.
+	 * 
+	 * @return the length of the record that was replaced, 0 if the key is new.
+	 */
+	private long insert(Table target, FileChannel channel, long end, byte[] key, long fingerprint, long offset)
+			throws IOException {
+		int slot = target.firstSlot(fingerprint);
+		while (true) {
+			long slotFingerprint = target.fingerprint(slot);
+			if (slotFingerprint == 0L) {
+				target.set(slot, fingerprint, offset);
+				target.added(fingerprint);
+				return 0L;
+			}
+			if (slotFingerprint == fingerprint) {
+				byte[] value = readRecord(channel, end, target.offset(slot), key);
+				if (value != null) {
+					target.set(slot, fingerprint, offset);
+					return KEY_LENGTH + 4 + value.length;
+				}
+			}
+			slot = (slot + 1) & (target.capacity - 1);
+		}
+	}
+
+	/**
+	 * Grow the table right away, once updates have filled it before
+	 * maintenance got round to it. Maintenance in progress is waited for
+	 * first, since it may be doing just that.
+	 */
+	private void growNow() throws IOException {
+		while (maintaining) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for index " + logFile);
+			}
+		}
+		checkOpen();
+		if (table.count > table.capacity * GROWING_LOAD && table.capacity < MAXIMUM_CAPACITY) {
+			Logging.agents.warn("Index " + tableFile + " filled up before it was maintained; growing it in place");
+			Rebuild grow = new Rebuild(table.capacity * 2, false, logEnd);
+			boolean done = false;
+			try {
+				grow.build();
+				grow.commit();
+				done = true;
+			} finally {
+				if (!done) {
+					grow.discard();
+				}
+			}
+		}
+	}
+
+	private Table createTable(File file, int newCapacity, boolean warn) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		boolean created = false;
+		try {
+			raf.setLength(0L);
+			raf.setLength(TABLE_HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+			MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, TABLE_HEADER_SIZE);
+			header.putLong(0, TABLE_MAGIC);
+			header.putLong(8, newCapacity);
+			header.putLong(16, 0L);
+			header.putLong(24, LOG_HEADER_SIZE);
+			header.putLong(32, 0L);
+			Table result = new Table(raf, header, newCapacity, 0L);
+			result.allocateBloom(warn);
+			created = true;
+			return result;
+		} finally {
+			if (!created) {
+				raf.close();
+			}
+		}
+	}
+
+	private static MappedByteBuffer[] mapSegments(RandomAccessFile raf, int slots) throws IOException {
+		int segmentSlots = 1 << SEGMENT_SHIFT;
+		int segmentCount = (slots + segmentSlots - 1) >>> SEGMENT_SHIFT;
+		MappedByteBuffer[] result = new MappedByteBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			long start = TABLE_HEADER_SIZE + (long) i * segmentSlots * SLOT_SIZE;
+			long length = (long) Math.min(segmentSlots, slots - i * segmentSlots) * SLOT_SIZE;
+			result[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, length);
+		}
+		return result;
+	}
+
+	/** The leading 8 bytes of the key, never 0 since that marks an empty slot. */
+	private static long fingerprint(byte[] key) {
+		long fingerprint = ByteBuffer.wrap(key, 0, 8).getLong();
+		return fingerprint == 0L ? 1L : fingerprint;
+	}
+
+	/**
+	 * Read the log record at the given position.
+	 * 
+	 * @return its value if the record is for the given key, null otherwise.
+	 */
+	private byte[] readRecord(FileChannel channel, long end, long offset, byte[] key) throws IOException {
+		if (offset < LOG_HEADER_SIZE || offset + KEY_LENGTH + 4 > end) {
+			return null;
+		}
+		ByteBuffer head = ByteBuffer.allocate(KEY_LENGTH + 4);
+		readFully(channel, head, offset);
+		byte[] recordKey = new byte[KEY_LENGTH];
+		head.flip();
+		head.get(recordKey);
+		if (!Arrays.equals(recordKey, key)) {
+			return null;
+		}
+		int valueLength = head.getInt();
+		if (valueLength < 0 || offset + KEY_LENGTH + 4 + valueLength > end) {
+			return null;
+		}
+		ByteBuffer value = ByteBuffer.allocate(valueLength);
+		readFully(channel, value, offset + KEY_LENGTH + 4);
+		return value.array();
+	}
+
+	private long readLong(long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		readFully(logChannel, buffer, position);
+		return buffer.getLong(0);
+	}
+
+	private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int amt = channel.read(buffer, position);
+			if (amt < 0) {
+				throw new IOException("Unexpected end of index log " + logFile);
+			}
+			position += amt;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Move a file over another one.
+	 */
+	private static void replace(File source, File target) throws IOException {
+		if (!source.renameTo(target)) {
+			// Some platforms will not rename over an existing file
+			target.delete();
+			if (!source.renameTo(target)) {
+				throw new IOException("Could not replace " + target);
+			}
+		}
+	}
+
+	/**
+	 * Smallest table that holds the given number of entries below the maximum
+	 * load.
+	 */
+	private static int capacityFor(long entries) {
+		long slots = INITIAL_CAPACITY;
+		while (slots < MAXIMUM_CAPACITY && entries > slots * MAXIMUM_LOAD) {
+			slots <<= 1;
+		}
+		return (int) slots;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Index " + logFile + " is closed");
+		}
+	}
+
+	private static void checkKey(byte[] key) {
+		if (key.length != KEY_LENGTH) {
+			throw new IllegalArgumentException("Index keys must be " + KEY_LENGTH + " bytes long");
+		}
+	}
+
+	/**
+	 * A mapped table file and the Bloom filter in front of it.
+	 */
+	private class Table {
+
+		final RandomAccessFile raf;
+		final MappedByteBuffer header;
+		final MappedByteBuffer[] segments;
+		final int capacity;
+		long count;
+		private ByteBuffer bloom;
+		private long bloomBits;
+		private int bloomSlabs = 0;
+
+		Table(RandomAccessFile raf, MappedByteBuffer header, int capacity, long count) throws IOException {
+			this.raf = raf;
+			this.header = header;
+			this.capacity = capacity;
+			this.count = count;
+			this.segments = mapSegments(raf, capacity);
+		}
+
+		int firstSlot(long fingerprint) {
+			return (int) (fingerprint >>> 34) & (capacity - 1);
+		}
+
+		long fingerprint(int slot) {
+			return segments[slot >>> SEGMENT_SHIFT].getLong((slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_SIZE);
+		}
+
+		long offset(int slot) {
+			return segments[slot >>> SEGMENT_SHIFT].getLong((slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_SIZE + 8);
+		}
+
+		void set(int slot, long fingerprint, long offset) {
+			MappedByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+			int position = (slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_SIZE;
+			segment.putLong(position + 8, offset);
+			segment.putLong(position, fingerprint);
+		}
+
+		/**
+		 * Put an entry for a key that is not in the table yet into the first
+		 * free slot.
+		 */
+		void add(long fingerprint, long offset) {
+			int slot = firstSlot(fingerprint);
+			while (fingerprint(slot) != 0L) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			set(slot, fingerprint, offset);
+			added(fingerprint);
+		}
+
+		/**
+		 * Account for a key that was given a slot of its own.
+		 */
+		void added(long fingerprint) {
+			count++;
+			header.putLong(16, count);
+			bloomAdd(fingerprint);
+		}
+
+		void force() {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			header.force();
+		}
+
+		void close() throws IOException {
+			releaseBloom();
+			raf.close();
+		}
+
+		void rebuildBloom(boolean warn) throws IOException {
+			allocateBloom(warn);
+			if (bloom == null) {
+				return;
+			}
+			for (int slot = 0; slot < capacity; slot++) {
+				long fingerprint = fingerprint(slot);
+				if (fingerprint != 0L) {
+					bloomAdd(fingerprint);
+				}
+			}
+		}
+
+		/**
+		 * Allocate an empty Bloom filter, in place of the current one, if the
+		 * off-heap budget has room for it.
+		 */
+		void allocateBloom(boolean warn) throws IOException {
+			releaseBloom();
+			int slabs = SlabPool.slabsFor(capacity);
+			try {
+				if (!SlabPool.reserve(slabs)) {
+					if (warn) {
+						Logging.agents.warn("Off-heap budget exhausted; index " + logFile
+								+ " works without its Bloom filter");
+					}
+					return;
+				}
+			} catch (ManifoldCFException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			bloomSlabs = slabs;
+			bloomBits = (long) capacity * 8L;
+			bloom = ByteBuffer.allocateDirect(capacity);
+		}
+
+		void releaseBloom() {
+			bloom = null;
+			if (bloomSlabs > 0) {
+				SlabPool.unreserve(bloomSlabs);
+				bloomSlabs = 0;
+			}
+		}
+
+		boolean hasBloom() {
+			return bloom != null;
+		}
+
+		private void bloomAdd(long fingerprint) {
+			if (bloom == null) {
+				return;
+			}
+			int h1 = (int) fingerprint;
+			int h2 = (int) (fingerprint >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				long bit = ((h1 + (long) i * h2) & 0x7fffffffffffffffL) % bloomBits;
+				int index = (int) (bit >>> 3);
+				bloom.put(index, (byte) (bloom.get(index) | (1 << (bit & 7))));
+			}
+		}
+
+		boolean bloomContains(long fingerprint) {
+			if (bloom == null) {
+				return true;
+			}
+			int h1 = (int) fingerprint;
+			int h2 = (int) (fingerprint >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				long bit = ((h1 + (long) i * h2) & 0x7fffffffffffffffL) % bloomBits;
+				if ((bloom.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A new table, and when compacting a new log, built from the index as it
+	 * was up to a position in the log. {@link #build()} may run without
+	 * holding the index; {@link #commit()} adds the records appended since and
+	 * swaps the new files in, and must hold it.
+	 */
+	private class Rebuild {
+
+		private final Table source = table;
+		private final FileChannel sourceLog = logChannel;
+		/** Position up to which the source table covers the log. */
+		private final long sourceEnd;
+		private final int newCapacity;
+		private final boolean compact;
+		private final File newTableFile = new File(tableFile.getPath() + ".new");
+		private final File newLogFile = new File(logFile.getPath() + ".new");
+		private final long start = System.currentTimeMillis();
+		private final ByteBuffer buffer = ByteBuffer.allocate(KEY_LENGTH + 4 + MAXIMUM_VALUE_LENGTH);
+		private Table target;
+		private RandomAccessFile targetLog;
+		private FileChannel targetChannel;
+		private long targetEnd = LOG_HEADER_SIZE;
+		private long targetLive;
+
+		Rebuild(int newCapacity, boolean compact, long sourceEnd) {
+			this.newCapacity = newCapacity;
+			this.compact = compact;
+			this.sourceEnd = sourceEnd;
+			this.targetLive = compact ? 0L : liveBytes;
+		}
+
+		/**
+		 * Fill the new table from the slots of the old one. Slots that were
+		 * changed after the snapshot may be seen half written; they point past
+		 * its end, or nowhere, and are skipped, since their records are added
+		 * again when the new table catches up.
+		 */
+		void build() throws IOException {
+			target = createTable(newTableFile, newCapacity, false);
+			if (compact) {
+				targetLog = new RandomAccessFile(newLogFile, "rw");
+				targetChannel = targetLog.getChannel();
+				targetLog.setLength(0L);
+				ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+				header.putLong(LOG_MAGIC).flip();
+				writeFully(targetChannel, header, 0L);
+			}
+			byte[] key = new byte[KEY_LENGTH];
+			for (int slot = 0; slot < source.capacity; slot++) {
+				long fingerprint = source.fingerprint(slot);
+				long offset = source.offset(slot);
+				if (fingerprint == 0L || offset < LOG_HEADER_SIZE || offset >= sourceEnd) {
+					continue;
+				}
+				if (!compact) {
+					target.add(fingerprint, offset);
+				} else if (load(sourceLog, offset, sourceEnd, key) && fingerprint(key) == fingerprint) {
+					target.add(fingerprint, targetEnd);
+					targetLive += buffer.limit();
+					copyRecord();
+				}
+			}
+		}
+
+		/**
+		 * Add a record of the current log that is newer than the snapshot.
+		 */
+		void add(byte[] key, long position, int length) throws IOException {
+			long fingerprint = fingerprint(key);
+			if (compact) {
+				if (!load(logChannel, position, logEnd, key)) {
+					throw new IOException("Could not copy record at " + position + " of index log " + logFile);
+				}
+				long offset = targetEnd;
+				copyRecord();
+				targetLive += length - insert(target, targetChannel, targetEnd, key, fingerprint, offset);
+			} else {
+				targetLive += length - insert(target, logChannel, logEnd, key, fingerprint, position);
+			}
+		}
+
+		/**
+		 * Add what was appended to the log since the snapshot, then swap the
+		 * new files in.
+		 */
+		void commit() throws IOException {
+			swap(replay(sourceEnd, this));
+		}
+
+		/**
+		 * Write the new files through and swap them in. Without a table,
+		 * whichever log is in place is replayed when the index is opened, so
+		 * the old table goes first and a crash in between loses nothing.
+		 * 
+		 * @param covered
+		 *            is the position in the current log up to which the new
+		 *            table is complete.
+		 */
+		void swap(long covered) throws IOException {
+			if (!target.hasBloom()) {
+				// The old filter may hold the budget the new one needs
+				table.releaseBloom();
+				target.rebuildBloom(true);
+			}
+			target.header.putLong(24, compact ? targetEnd : covered);
+			target.header.putLong(32, targetLive);
+			long oldLength = logEnd;
+			if (compact) {
+				targetChannel.force(false);
+			}
+			target.force();
+
+			FileLock newLock = compact ? targetChannel.tryLock() : null;
+			if (compact && newLock == null) {
+				throw new IOException("Could not lock " + newLogFile);
+			}
+			boolean swapped = false;
+			try {
+				source.close();
+				if (!tableFile.delete() && tableFile.exists()) {
+					throw new IOException("Could not delete index table " + tableFile);
+				}
+				if (compact) {
+					lock.release();
+					log.close();
+					replace(newLogFile, logFile);
+					log = targetLog;
+					logChannel = targetChannel;
+					lock = newLock;
+					logEnd = targetEnd;
+				}
+				replace(newTableFile, tableFile);
+				table = target;
+				liveBytes = targetLive;
+				swapped = true;
+			} finally {
+				if (!swapped) {
+					// Left to be rebuilt from its log when it is opened again
+					closed = true;
+					try {
+						lock.release();
+						log.close();
+					} catch (IOException e) {
+						Logging.agents.warn("Could not close index " + logFile, e);
+					}
+				}
+			}
+			if (compact) {
+				Logging.agents.info("Compacted index " + logFile + " from " + oldLength + " to " + logEnd
+						+ " bytes in " + (System.currentTimeMillis() - start) + " ms");
+			} else {
+				Logging.agents.info("Grew index " + tableFile + " to " + newCapacity + " slots in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+		}
+
+		/**
+		 * Drop the new files after a failure.
+		 */
+		void discard() {
+			try {
+				if (target != null && target != table) {
+					target.close();
+				}
+				if (targetLog != null && targetLog != log) {
+					targetLog.close();
+				}
+			} catch (IOException e) {
+				Logging.agents.warn("Could not close rebuilt index " + tableFile, e);
+			}
+			if (target != table) {
+				newTableFile.delete();
+			}
+			if (compact && targetLog != log) {
+				newLogFile.delete();
+			}
+		}
+
+		/**
+		 * Read a whole record into the buffer.
+		 * 
+		 * @return false if there is no complete record at the position.
+		 */
+		private boolean load(FileChannel channel, long position, long limit, byte[] key) throws IOException {
+			buffer.clear().limit(KEY_LENGTH + 4);
+			if (position + KEY_LENGTH + 4 > limit) {
+				return false;
+			}
+			readFully(channel, buffer, position);
+			int valueLength = buffer.getInt(KEY_LENGTH);
+			if (valueLength < 0 || valueLength > MAXIMUM_VALUE_LENGTH || position + KEY_LENGTH + 4 + valueLength > limit) {
+				return false;
+			}
+			buffer.limit(KEY_LENGTH + 4 + valueLength);
+			readFully(channel, buffer, position + KEY_LENGTH + 4);
+			buffer.flip();
+			buffer.get(key).rewind();
+			return true;
+		}
+
+		/**
+		 * Append the record in the buffer to the new log.
+		 */
+		private void copyRecord() throws IOException {
+			int length = buffer.limit();
+			writeFully(targetChannel, buffer, targetEnd);
+			targetEnd += length;
+		}
+	}
+}
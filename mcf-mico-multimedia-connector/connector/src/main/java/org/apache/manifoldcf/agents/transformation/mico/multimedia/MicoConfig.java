@@ -19,6 +19,8 @@
 
 package org.apache.manifoldcf.agents.transformation.mico.multimedia;
 
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
 import org.zaizi.mico.client.MicoClientFactory;
 
 /**
@@ -31,15 +33,129 @@ public class MicoConfig {
 	public static final String NODE_MICO_USER = "micoUser";
 	public static final String NODE_MICO_PASSWORD = "micoPassword";
 	public static final String NODE_MICO_DOC_URI_FIELD="micoDocUriField";
+	public static final String NODE_MICO_ASYNC = "micoAsync";
+	public static final String NODE_MICO_PASSTHROUGH = "micoPassThrough";
+	public static final String NODE_MICO_MAX_CONCURRENCY = "micoMaxConcurrency";
 	public static final String ATTRIBUTE_VALUE = "value";
 
-	private static MicoClientFactory micoClientFactory;
+	// Process-wide properties, read from the ManifoldCF properties file
+	public static final String PROPERTY_ASYNC_WORKERS = "org.apache.manifoldcf.mico.async.workers";
+	public static final String PROPERTY_ASYNC_QUEUE_SIZE = "org.apache.manifoldcf.mico.async.queuesize";
+	public static final String PROPERTY_BATCH_SIZE = "org.apache.manifoldcf.mico.batch.size";
+	public static final String PROPERTY_BATCH_BYTES = "org.apache.manifoldcf.mico.batch.bytes";
+	public static final String PROPERTY_BATCH_LINGER = "org.apache.manifoldcf.mico.batch.linger";
+	/** Prefix of the per-lane settings, followed by the lane name, a dot and the setting. */
+	public static final String PROPERTY_LANE_PREFIX = "org.apache.manifoldcf.mico.lane.";
+	public static final String PROPERTY_LANE_MAXIMUM_BYPASSES = "org.apache.manifoldcf.mico.lane.maxbypass";
+	public static final String PROPERTY_OUTBOX_DIRECTORY = "org.apache.manifoldcf.mico.outbox.directory";
+	public static final String PROPERTY_OUTBOX_RETRY_BASE = "org.apache.manifoldcf.mico.outbox.retrybase";
+	public static final String PROPERTY_OUTBOX_RETRY_MAXIMUM = "org.apache.manifoldcf.mico.outbox.retrymax";
+	public static final String PROPERTY_OUTBOX_QUOTA = "org.apache.manifoldcf.mico.outbox.quota";
+	public static final String PROPERTY_CLIENT_FACTORY = "org.apache.manifoldcf.mico.client.factory";
+	public static final String PROPERTY_CLIENT_MAX_IDLE = "org.apache.manifoldcf.mico.client.maxidle";
+	public static final String PROPERTY_CLIENT_IDLE_TIMEOUT = "org.apache.manifoldcf.mico.client.idletimeout";
+	public static final String PROPERTY_BREAKER_WINDOW = "org.apache.manifoldcf.mico.breaker.window";
+	public static final String PROPERTY_BREAKER_MINIMUM_REQUESTS = "org.apache.manifoldcf.mico.breaker.minimumrequests";
+	public static final String PROPERTY_BREAKER_FAILURE_RATE = "org.apache.manifoldcf.mico.breaker.failurerate";
+	public static final String PROPERTY_BREAKER_SLOW_REQUEST = "org.apache.manifoldcf.mico.breaker.slowrequest";
+	public static final String PROPERTY_BREAKER_SLOW_RATE = "org.apache.manifoldcf.mico.breaker.slowrate";
+	public static final String PROPERTY_BREAKER_OPEN_TIME = "org.apache.manifoldcf.mico.breaker.opentime";
+	public static final String PROPERTY_CONCURRENCY_INITIAL = "org.apache.manifoldcf.mico.concurrency.initial";
+	public static final String PROPERTY_CONCURRENCY_MAXIMUM = "org.apache.manifoldcf.mico.concurrency.max";
+	/**
+	 * Prefix of the properties that are set for this connector alone. A budget
+	 * such as {@link #PROPERTY_SPOOL_QUOTA} set under this prefix, e.g.
+	 * org.apache.manifoldcf.mico.multimedia.spool.quota, takes precedence over the
+	 * one shared with the other MICO connector, see {@link #getBudget}.
+	 */
+	public static final String PROPERTY_CONNECTOR_PREFIX = "org.apache.manifoldcf.mico.multimedia.";
+	public static final String PROPERTY_SPOOL_MEMORY_BUDGET = "org.apache.manifoldcf.mico.spool.memorybudget";
+	public static final String PROPERTY_SPOOL_DIRECTORY = "org.apache.manifoldcf.mico.spool.directory";
+	public static final String PROPERTY_SPOOL_QUOTA = "org.apache.manifoldcf.mico.spool.quota";
+	public static final String PROPERTY_INDEX_CAPACITY = "org.apache.manifoldcf.mico.index.capacity";
+	public static final String PROPERTY_INDEX_CHECKPOINT_INTERVAL = "org.apache.manifoldcf.mico.index.checkpoint";
+	public static final String PROPERTY_METRICS_LOG_INTERVAL = "org.apache.manifoldcf.mico.metrics.loginterval";
+	public static final String PROPERTY_INDEX_DIRECTORY = "org.apache.manifoldcf.mico.index.directory";
+	public static final String PROPERTY_SPOOL_OFFHEAP_BUDGET = "org.apache.manifoldcf.mico.spool.offheapbudget";
+	public static final String PROPERTY_SPOOL_OFFHEAP_MAX_FILE = "org.apache.manifoldcf.mico.spool.offheapmaxfile";
 
-	public static MicoClientFactory getMicoClientFactory(String micoServer, String micoUser, String micoPassword)
-			{
-		if (micoClientFactory == null) {
-			micoClientFactory = new MicoClientFactory(micoServer, micoUser, micoPassword);
+	/**
+	 * Get the client factory for a MICO server and set of credentials. Each
+	 * distinct combination gets its own factory, see {@link MicoEndpoint}.
+	 */
+	public static MicoClientFactory getMicoClientFactory(String micoServer, String micoUser, String micoPassword) {
+		return MicoEndpoint.get(micoServer, micoUser, micoPassword).getMicoClientFactory();
+	}
+
+	/**
+	 * Make a new client factory for a MICO server and set of credentials. The
+	 * {@link #PROPERTY_CLIENT_FACTORY} property can name a subclass of
+	 * {@link MicoClientFactory} to use instead, with a public constructor
+	 * taking the same arguments, such as the stub clients of the benchmarks.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the configured class cannot be used.
+	 */
+	public static MicoClientFactory newMicoClientFactory(String micoServer, String micoUser, String micoPassword) {
+		String className = ManifoldCF.getProperty(PROPERTY_CLIENT_FACTORY);
+		if (className == null || className.trim().length() == 0) {
+			return new MicoClientFactory(micoServer, micoUser, micoPassword);
+		}
+		try {
+			return Class.forName(className.trim()).asSubclass(MicoClientFactory.class)
+					.getConstructor(String.class, String.class, String.class)
+					.newInstance(micoServer, micoUser, micoPassword);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create MICO client factory " + className.trim(), e);
+		} catch (ClassCastException e) {
+			throw new IllegalStateException(className.trim() + " is not a MICO client factory", e);
+		}
+	}
+
+	/**
+	 * Read an integer-valued property from the ManifoldCF properties file,
+	 * falling back to a default when it is not set.
+	 */
+	public static int getIntProperty(String propertyName, int defaultValue) throws ManifoldCFException {
+		return (int) getLongProperty(propertyName, defaultValue);
+	}
+
+	/**
+	 * Read a long-valued property from the ManifoldCF properties file,
+	 * falling back to a default when it is not set.
+	 */
+	public static long getLongProperty(String propertyName, long defaultValue) throws ManifoldCFException {
+		String value = ManifoldCF.getProperty(propertyName);
+		if (value == null || value.trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ManifoldCFException("Property '" + propertyName + "' must be a number, was '" + value + "'", e);
+		}
+	}
+
+	/**
+	 * Read a byte budget that both MICO connectors draw on when they run in the
+	 * same agents process. Each connector only accounts for its own use, so a
+	 * budget set for this connector alone, under
+	 * {@link #PROPERTY_CONNECTOR_PREFIX}, applies as it is. Otherwise the
+	 * shared property, or the default, is the total for the process and each
+	 * connector gets half of it.
+	 * 
+	 * @param propertyName
+	 *            the shared property, starting with "org.apache.manifoldcf.mico."
+	 * @return the budget of this connector; 0 if the budget is 0.
+	 */
+	public static long getBudget(String propertyName, long defaultValue) throws ManifoldCFException {
+		String connectorProperty = PROPERTY_CONNECTOR_PREFIX
+				+ propertyName.substring("org.apache.manifoldcf.mico.".length());
+		long budget = getLongProperty(connectorProperty, -1L);
+		if (budget >= 0L) {
+			return budget;
 		}
-		return micoClientFactory;
+		long total = getLongProperty(propertyName, defaultValue);
+		return total > 0L ? Math.max(1L, total / 2L) : total;
 	}
 }
@@ -17,12 +17,20 @@
 package org.apache.manifoldcf.agents.transformation.mico.multimedia;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
@@ -31,6 +39,7 @@ import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.transformation.BaseTransformationConnector;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
 import org.apache.manifoldcf.core.interfaces.IHTTPOutput;
 import org.apache.manifoldcf.core.interfaces.IPostParameters;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
@@ -42,11 +51,8 @@ import org.apache.tika.detect.Detector;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
-import org.zaizi.mico.client.Injector;
-import org.zaizi.mico.client.MicoClientFactory;
 import org.zaizi.mico.client.exception.MicoClientException;
 import org.zaizi.mico.client.model.ContentItem;
-import org.zaizi.mico.client.model.ContentPart;
 
 public class MicoExtractor extends BaseTransformationConnector {
 	private static final String EDIT_SPECIFICATION_JS = "editSpecification.js";
@@ -61,9 +67,24 @@ public class MicoExtractor extends BaseTransformationConnector {
 
 	protected static final String[] activitiesList = new String[] { ACTIVITY_EXTRACT };
 
+	/** Tika detector, built on first use. */
+	private volatile Detector detector = null;
+
+	/** Whether this instance is counted as a user of the indexes and the submission queue. */
+	private boolean usesIndexes = false;
+
 	/** We handle up to 64K in memory; after that we go to disk. */
 	protected static final long inMemoryMaximumFile = 65536;
 
+	/**
+	 * Default for the total memory the in-memory spools of both MICO connectors
+	 * may hold at once; each connector gets half, see {@link MicoConfig#getBudget}.
+	 */
+	protected static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+
+	/** Default size up to which documents may be spooled off-heap. */
+	protected static final long DEFAULT_OFFHEAP_MAXIMUM_FILE = 16L * 1024L * 1024L;
+
 	/**
 	 * Return a list of activities that this connector generates. The connector
 	 * does NOT need to be connected before this method is called.
@@ -75,6 +96,47 @@ public class MicoExtractor extends BaseTransformationConnector {
 		return activitiesList;
 	}
 
+	@Override
+	public void connect(ConfigParams configParams) {
+		super.connect(configParams);
+		if (!usesIndexes) {
+			usesIndexes = true;
+			ContentIndex.acquire();
+			DocumentIndex.acquire();
+			MicoSubmissionQueue.acquire();
+		}
+	}
+
+	/**
+	 * Once the last instance has been disconnected, the indexes are written
+	 * through to disk and closed, and submissions still queued are moved to
+	 * the outbox.
+	 */
+	@Override
+	public void disconnect() throws ManifoldCFException {
+		if (usesIndexes) {
+			usesIndexes = false;
+			MicoSubmissionQueue.release();
+			ContentIndex.release();
+			DocumentIndex.release();
+		}
+		super.disconnect();
+	}
+
+	/**
+	 * This method is periodically called for all connectors that are connected
+	 * but not in active use. We use it to drop MICO injectors that have not
+	 * been used for a while, and to grow, compact and write through the indexes.
+	 */
+	@Override
+	public void poll() throws ManifoldCFException {
+		MicoEndpoint.evictIdleInjectors();
+		MicoOutbox.start();
+		ContentIndex.checkpointIfDue();
+		DocumentIndex.checkpointIfDue();
+		MicoMetrics.logSummaryIfDue();
+	}
+
 	/**
 	 * Get a pipeline version string, given a pipeline specification object. The
 	 * version string is used to uniquely describe the pertinent details of the
@@ -144,68 +206,227 @@ public class MicoExtractor extends BaseTransformationConnector {
 		Logging.agents.debug("Starting MICO extraction");
 
 		SpecPacker sp = new SpecPacker(pipelineDescription.getSpecification());
-		
-		DestinationStorage ds;
-	      
-	    if (document.getBinaryLength() <= inMemoryMaximumFile)
-	    {
-	      ds = new MemoryDestinationStorage((int)document.getBinaryLength());
-	    }
-	    else
-	    {
-	      ds = new FileDestinationStorage();
-	    }
-		
+
+		DocumentFlight flight = DocumentFlight.begin(documentURI, DocumentFlight.KIND_DOCUMENT);
+		try {
+			return addOrReplaceDocument(documentURI, sp, document, activities, flight);
+		} finally {
+			flight.end();
+		}
+	}
+
+	/**
+	 * Process a document for {@link #addOrReplaceDocumentWithException},
+	 * recording it in the given flight.
+	 */
+	protected int addOrReplaceDocument(String documentURI, SpecPacker sp, RepositoryDocument document,
+			IOutputAddActivity activities, DocumentFlight flight)
+					throws ManifoldCFException, ServiceInterruption, IOException {
+		String mediaType = document.getMimeType();
 		InputStream is = document.getBinaryStream();
-		final OutputStream os = ds.getOutputStream();
-		
-		IOUtils.copy(is, os);
-		
-		// create a duplicate
-		RepositoryDocument docCopy = document.duplicate();
+		boolean sniffed = false;
+		if (mediaType == null || mediaType.isEmpty() || mediaType.equals("application/octet-stream")) {
+			// Sniff the type from the leading bytes only; the buffer replays
+			// them to whoever reads the stream next.
+			long detectStart = MicoMetrics.start();
+			BufferedInputStream bis = new BufferedInputStream(is, SpoolOutputStream.HEADER_SIZE);
+			bis.mark(SpoolOutputStream.HEADER_SIZE);
+			byte[] header = new byte[SpoolOutputStream.HEADER_SIZE];
+			int headerLength = IOUtils.read(bis, header, 0, MAGIC_LENGTH);
+			mediaType = detectByMagic(header, headerLength);
+			if (mediaType == null) {
+				// Not one of ours at a glance, let Tika have a look at the rest
+				// of the header
+				headerLength += IOUtils.read(bis, header, headerLength, header.length - headerLength);
+				mediaType = detectMediaType(Arrays.copyOf(header, headerLength));
+			}
+			bis.reset();
+			is = bis;
+			sniffed = true;
+			MicoMetrics.record(MicoMetrics.Stage.DETECT, detectStart);
+		}
+
+		if (!acceptableMimeTypes.contains(mediaType.toLowerCase(Locale.ROOT))) {
+			// Nothing for MICO: forward the original document as it is,
+			// without spooling or duplicating it.
+			if (sniffed) {
+				document.setBinary(is, document.getBinaryLength());
+			}
+			skipped(flight, MicoMetrics.Skip.NOT_ACCEPTED);
+			return sendDocument(activities, documentURI, document);
+		}
+		MicoMetrics.recordDocument(mediaType);
+		flight.setMediaType(mediaType);
+		flight.setSize(document.getBinaryLength());
 		
-		String mediaType = document.getMimeType();
+		// While MICO is failing, hand documents back to the framework to be
+		// retried later, instead of having every worker spool them and wait
+		// for timeouts. This only looks: the half-open probe is claimed by the
+		// submission right before it calls MICO, since the document may well
+		// not get that far.
+		MicoEndpoint endpoint = MicoEndpoint.get(sp.getMicoServer(), sp.getMicoUser(), sp.getMicoPassword());
+		endpoint.getConcurrencyLimiter().requestCeiling(sp.getMicoMaxConcurrencyLimit());
+		CircuitBreaker breaker = endpoint.getCircuitBreaker();
+		if (breaker.isOpen()) {
+			if (sp.isMicoPassThrough()) {
+				Logging.agents.debug("MICO server " + sp.getMicoServer() + " is unavailable; forwarding "
+						+ documentURI + " without MICO");
+				if (is != document.getBinaryStream()) {
+					document.setBinary(is, document.getBinaryLength());
+				}
+				skipped(flight, MicoMetrics.Skip.PASSED_THROUGH);
+				return sendDocument(activities, documentURI, document);
+			}
+			skipped(flight, MicoMetrics.Skip.RESCHEDULED);
+			throw new ServiceInterruption("MICO server " + sp.getMicoServer() + " is unavailable", null,
+					breaker.getRetryTime(), -1L, -1, false);
+		}
 
-		try {
-			MicoClientFactory micoClientFactory = MicoConfig.getMicoClientFactory(sp.getMicoServer(), sp.getMicoUser(),
-					sp.getMicoPassword());
-			
+		// A document that has not changed since it was last injected keeps
+		// its content item, and is forwarded without spooling. This only
+		// vouches for the document while MICO is up, and the indexes are
+		// scoped to a server, so it comes after the breaker check and is
+		// skipped while the specification names no server.
+		boolean indexable = DocumentIndex.isIndexable(sp.getMicoServer());
+		byte[] documentKey = null;
+		if (indexable && document.getModifiedDate() != null && document.getBinaryLength() >= 0L
+				&& DocumentIndex.isEnabled()) {
+			documentKey = DocumentIndex.key(sp.getMicoServer(), documentURI);
+			DocumentIndex.Entry previous = DocumentIndex.lookup(documentKey);
+			if (previous != null && previous.getState().getLength() == document.getBinaryLength()
+					&& previous.getState().getModified() == document.getModifiedDate().getTime()) {
+				BufferedInputStream bis = (is instanceof BufferedInputStream) ? (BufferedInputStream) is
+						: new BufferedInputStream(is, DocumentIndex.CHECKSUM_LENGTH);
+				bis.mark(DocumentIndex.CHECKSUM_LENGTH);
+				byte[] header = new byte[DocumentIndex.CHECKSUM_LENGTH];
+				int headerLength = IOUtils.read(bis, header);
+				bis.reset();
+				is = bis;
+				if (previous.getState().getChecksum() == DocumentIndex.checksum(header, headerLength)) {
+					Logging.agents.debug(documentURI + " is unchanged since it was injected as "
+							+ previous.getContentItemUri());
+					RepositoryDocument docCopy = document.duplicate();
+					docCopy.setBinary(is, document.getBinaryLength());
+					docCopy.addField(sp.getMicoDocUriField(), previous.getContentItemUri());
+					docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+					skipped(flight, MicoMetrics.Skip.UNCHANGED);
+					return sendDocument(activities, documentURI, docCopy);
+				}
+			}
+		}
 
-			// use tika to detect mediatype
-			if(mediaType.equals("application/octet-stream") || (mediaType == null) || mediaType.isEmpty()){
-				Metadata metadata = new Metadata();
-				TikaConfig tikaConfig = TikaConfig.getDefaultConfig();
-				Detector detector = tikaConfig.getDetector();
-				TikaInputStream tis = TikaInputStream.get(ds.getInputStream());
-				MediaType media = detector.detect(tis, metadata);
-				mediaType = media.toString();
+		DestinationStorage ds = createDestinationStorage(document.getBinaryLength());
+		// Cleared once a submission worker has taken over the spool
+		boolean ownsStorage = true;
+		flight.setSpoolTier(spoolTier(ds));
+		try {
+			// Length, digest and header are all captured during this one copy, so
+			// the spool is only read back for the upload and for downstream.
+			long spoolStart = MicoMetrics.start();
+			final SpoolOutputStream os = new SpoolOutputStream(ds.getOutputStream());
+			try {
+				try {
+					IOUtils.copy(is, os);
+				} finally {
+					os.close();
+				}
+			} catch (SpoolDirectory.QuotaExceededException e) {
+				// The document turned out longer than announced, and the rest
+				// does not fit the spool quota
+				throw e.getServiceInterruption();
+			}
+			final long binaryLength = os.getLength();
+			MicoMetrics.record(MicoMetrics.Stage.SPOOL, spoolStart);
+			MicoMetrics.recordSpooled(binaryLength);
+			flight.setSize(binaryLength);
+			if (Logging.agents.isDebugEnabled()) {
+				Logging.agents.debug("Spooled " + binaryLength + " bytes of " + documentURI + " (sha256 "
+						+ os.getDigest() + ")");
 			}
 			
+			DocumentIndex.State documentState = null;
+			if (documentKey != null) {
+				byte[] header = os.getHeader();
+				documentState = new DocumentIndex.State(binaryLength, document.getModifiedDate().getTime(),
+						DocumentIndex.checksum(header, header.length));
+			}
 
-			if (acceptableMimeTypes.contains(mediaType.toLowerCase(Locale.ROOT))) {
-				// inject to mico platform
-				Injector injector = micoClientFactory.createInjectorClient();
-				ContentItem ci = injector.createContentItem();
-				
-				ContentPart contentPart = injector.addContentPart(ci, mediaType, documentURI, ds.getInputStream());
-				ci.addContentPart(contentPart);
-				injector.submitContentItem(ci);
-				
-				docCopy.addField(sp.getMicoDocUriField(), ci.getUri());
+			// create a duplicate
+			RepositoryDocument docCopy = document.duplicate();
+			
+			// Content that already has a content item on this server is not
+			// injected again
+			byte[] contentKey = indexable ? ContentIndex.key(sp.getMicoServer(), os.getDigestBytes()) : null;
+			String knownContentItem = contentKey == null ? null : ContentIndex.lookup(contentKey);
+			if (knownContentItem != null) {
+				Logging.agents.debug("Content of " + documentURI + " was already injected as " + knownContentItem);
+				docCopy.addField(sp.getMicoDocUriField(), knownContentItem);
 				docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+				skipped(flight, MicoMetrics.Skip.KNOWN_CONTENT);
+				flight.setContentItem(knownContentItem);
+				if (documentKey != null) {
+					DocumentIndex.record(documentKey, documentState, knownContentItem);
+				}
+			} else {
+				// inject to mico platform
+				MicoSubmission submission = new MicoSubmission(sp.getMicoServer(), sp.getMicoUser(),
+						sp.getMicoPassword(), mediaType, documentURI, ds, contentKey, documentKey, documentState);
+				try {
+					// In async mode the content item is created later by a
+					// submission worker, so there is no MICO URI to record yet.
+					// The worker owns the spool once queued, so the downstream
+					// view has to be opened before handing it over, and closed
+					// however the offer turns out.
+					if (sp.isMicoAsync()) {
+						InputStream downstream = ds.getInputStream();
+						try {
+							if (MicoSubmissionQueue.offer(submission)) {
+								ownsStorage = false;
+								docCopy.setBinary(downstream, binaryLength);
+								docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+								flight.setOutcome("queued");
+								return sendDocument(activities, documentURI, docCopy);
+							}
+						} finally {
+							downstream.close();
+						}
+					}
+
+					ContentItem ci = submission.submit(flight);
 				
-				Logging.agents.info("Submitted "+contentPart.getUri()+" for Content Item "+ci.getUri());
+					docCopy.addField(sp.getMicoDocUriField(), ci.getUri());
+					docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+				} catch (MicoSubmission.RefusedException e) {
+					// MICO became unavailable since the breaker was checked
+					// above; treat the document the same way
+					if (!sp.isMicoPassThrough()) {
+						skipped(flight, MicoMetrics.Skip.RESCHEDULED);
+						throw new ServiceInterruption(e.getMessage(), e, e.getRetryTime(), -1L, -1, false);
+					}
+					Logging.agents.debug("MICO server " + sp.getMicoServer() + " is unavailable; forwarding "
+							+ documentURI + " without MICO");
+					skipped(flight, MicoMetrics.Skip.PASSED_THROUGH);
+				}catch(MicoClientException e){
+					Logging.agents.error("Exception occured in Mico Client", e);
+					MicoOutbox.deferOrDrop(submission);
+				}
 			}
 
-		}catch(MicoClientException e){
-			Logging.agents.error("Exception occured in Mico Client", e);
+			// reset original stream; the view is released once downstream is
+			// done with it
+			InputStream downstream = ds.getInputStream();
+			docCopy.setBinary(downstream, binaryLength);
+			try {
+				return sendDocument(activities, documentURI, docCopy);
+			} finally {
+				downstream.close();
+			}
+		} finally {
+			if (ownsStorage) {
+				ds.close();
+			}
 		}
 
-		// reset original stream
-		docCopy.setBinary(ds.getInputStream(), ds.getBinaryLength());
-
-		return activities.sendDocument(documentURI, docCopy);
-
 		// In order to be able to replay the input stream both for extraction
 		// and for downstream use,
 		// we need to page through it, some number of characters at a time, and
@@ -216,6 +437,118 @@ public class MicoExtractor extends BaseTransformationConnector {
 		// disk, whichever makes sense.
 	}
 
+	/**
+	 * Note that a document bypassed MICO.
+	 */
+	protected static void skipped(DocumentFlight flight, MicoMetrics.Skip reason) {
+		MicoMetrics.recordSkip(reason);
+		flight.setOutcome(reason.name().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Send a document downstream, timing how long the rest of the pipeline
+	 * takes with it.
+	 */
+	protected int sendDocument(IOutputAddActivity activities, String documentURI, RepositoryDocument document)
+			throws ManifoldCFException, ServiceInterruption, IOException {
+		long start = MicoMetrics.start();
+		boolean done = false;
+		try {
+			int result = activities.sendDocument(documentURI, document);
+			done = true;
+			return result;
+		} finally {
+			if (done) {
+				MicoMetrics.record(MicoMetrics.Stage.SEND, start);
+			} else {
+				MicoMetrics.recordError(MicoMetrics.Stage.SEND, start);
+			}
+		}
+	}
+
+	/**
+	 * Detect the media type of a document from its leading bytes, using the
+	 * full Tika detection chain.
+	 */
+	protected String detectMediaType(byte[] header) throws IOException {
+		Metadata metadata = new Metadata();
+		TikaInputStream tis = TikaInputStream.get(new ByteArrayInputStream(header));
+		MediaType media = getDetector().detect(tis, metadata);
+		return media.toString();
+	}
+
+	/**
+	 * Get the Tika detector. Building it loads the whole Tika service registry,
+	 * so it is done once per connector instance; detectors are thread safe.
+	 */
+	protected Detector getDetector() {
+		Detector result = detector;
+		if (result == null) {
+			synchronized (this) {
+				result = detector;
+				if (result == null) {
+					result = TikaConfig.getDefaultConfig().getDetector();
+					detector = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Recognize the media types MICO is given from their magic numbers.
+	 * 
+	 * @return the media type, or null if the header is not one of those
+	 *         types and a full detection is needed.
+	 */
+	protected static String detectByMagic(byte[] header, int length) {
+		if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8 && (header[2] & 0xff) == 0xff) {
+			return "image/jpeg";
+		}
+		if (length >= PNG_MAGIC.length && startsWith(header, 0, PNG_MAGIC)) {
+			return "image/png";
+		}
+		// ISO base media file: a box size, then 'ftyp' and the major brand
+		if (length >= 12 && startsWith(header, 4, FTYP)) {
+			String brand = new String(header, 8, 4, StandardCharsets.ISO_8859_1);
+			if (mp4Brands.contains(brand)) {
+				return "video/mp4";
+			}
+		}
+		return null;
+	}
+
+	private static boolean startsWith(byte[] header, int offset, byte[] magic) {
+		for (int i = 0; i < magic.length; i++) {
+			if (header[offset + i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Number of leading bytes the magic number check needs. */
+	protected static final int MAGIC_LENGTH = 12;
+
+	private static final byte[] PNG_MAGIC = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private static final byte[] FTYP = new byte[] { 'f', 't', 'y', 'p' };
+
+	private final static Set<String> mp4Brands = new HashSet<String>();
+
+	static {
+		mp4Brands.add("isom");
+		mp4Brands.add("iso2");
+		mp4Brands.add("iso4");
+		mp4Brands.add("iso5");
+		mp4Brands.add("iso6");
+		mp4Brands.add("mp41");
+		mp4Brands.add("mp42");
+		mp4Brands.add("avc1");
+		mp4Brands.add("dash");
+		mp4Brands.add("M4V ");
+	}
+
 	private final static Set<String> acceptableMimeTypes = new HashSet<String>();
 
 	static {
@@ -343,6 +676,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 		String micoUser = "";
 		String micoPassword = "";
 		String micoDocUriField="";
+		String micoAsync = "false";
+		String micoPassThrough = "false";
+		String micoMaxConcurrency = "";
 		for (int i = 0; i < os.getChildCount(); i++) {
 			SpecificationNode sn = os.getChild(i);
 			if (sn.getType().equals(MicoConfig.NODE_MICO_SERVER)) {
@@ -365,12 +701,30 @@ public class MicoExtractor extends BaseTransformationConnector {
 				if (micoDocUriField == null) {
 					micoDocUriField = "";
 				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_ASYNC)) {
+				micoAsync = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoAsync == null) {
+					micoAsync = "false";
+				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_PASSTHROUGH)) {
+				micoPassThrough = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoPassThrough == null) {
+					micoPassThrough = "false";
+				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_MAX_CONCURRENCY)) {
+				micoMaxConcurrency = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoMaxConcurrency == null) {
+					micoMaxConcurrency = "";
+				}
 			}
 		}
 		paramMap.put("MICOSERVER", micoServer);
 		paramMap.put("MICOUSER", micoUser);
 		paramMap.put("MICOPASSWORD", micoPassword);
 		paramMap.put("MICODOCURI", micoDocUriField);
+		paramMap.put("MICOASYNC", micoAsync);
+		paramMap.put("MICOPASSTHROUGH", micoPassThrough);
+		paramMap.put("MICOMAXCONCURRENCY", micoMaxConcurrency);
 	}
 
 	/**
@@ -434,6 +788,33 @@ public class MicoExtractor extends BaseTransformationConnector {
 		}
 		os.addChild(os.getChildCount(), node);
 
+		node = new SpecificationNode(MicoConfig.NODE_MICO_ASYNC);
+		String micoasync = variableContext.getParameter(seqPrefix + "micoasync");
+		if (micoasync != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micoasync);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "false");
+		}
+		os.addChild(os.getChildCount(), node);
+
+		node = new SpecificationNode(MicoConfig.NODE_MICO_PASSTHROUGH);
+		String micopassthrough = variableContext.getParameter(seqPrefix + "micopassthrough");
+		if (micopassthrough != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micopassthrough);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "false");
+		}
+		os.addChild(os.getChildCount(), node);
+
+		node = new SpecificationNode(MicoConfig.NODE_MICO_MAX_CONCURRENCY);
+		String micomaxconcurrency = variableContext.getParameter(seqPrefix + "micomaxconcurrency");
+		if (micomaxconcurrency != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micomaxconcurrency);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "");
+		}
+		os.addChild(os.getChildCount(), node);
+
 		return null;
 	}
 
@@ -462,6 +843,29 @@ public class MicoExtractor extends BaseTransformationConnector {
 		Messages.outputResourceWithVelocity(out, locale, VIEW_SPECIFICATION_HTML, paramMap);
 	}
 
+	/**
+	 * Pick a spool for a document of the given length: heap memory for small
+	 * documents, pooled off-heap slabs for mid-sized ones, and a temporary file
+	 * otherwise or whenever the budget of a tier is used up.
+	 */
+	protected static DestinationStorage createDestinationStorage(long binaryLength)
+			throws ManifoldCFException, ServiceInterruption {
+		if (binaryLength <= inMemoryMaximumFile) {
+			DestinationStorage ds = MemoryDestinationStorage.create((int) binaryLength);
+			if (ds != null) {
+				return ds;
+			}
+		}
+		if (binaryLength <= MicoConfig.getLongProperty(MicoConfig.PROPERTY_SPOOL_OFFHEAP_MAX_FILE,
+				DEFAULT_OFFHEAP_MAXIMUM_FILE)) {
+			DestinationStorage ds = OffHeapDestinationStorage.create(binaryLength);
+			if (ds != null) {
+				return ds;
+			}
+		}
+		return new FileDestinationStorage(binaryLength);
+	}
+
 	protected static int handleIOException(IOException e) throws ManifoldCFException {
 		// IOException reading from our local storage...
 		if (e instanceof InterruptedIOException)
@@ -469,6 +873,22 @@ public class MicoExtractor extends BaseTransformationConnector {
 		throw new ManifoldCFException(e.getMessage(), e);
 	}
 	
+	/**
+	 * Name the kind of spool a document went to, for its flight recording.
+	 */
+	protected static String spoolTier(DestinationStorage ds) {
+		if (ds instanceof MemoryDestinationStorage) {
+			return "memory";
+		}
+		if (ds instanceof OffHeapDestinationStorage) {
+			return "offheap";
+		}
+		if (ds instanceof FileDestinationStorage) {
+			return "disk";
+		}
+		return ds.getClass().getSimpleName();
+	}
+
 	protected static interface DestinationStorage
 	  {
 	    /** Get the output stream to write to.  Caller should explicitly close this stream when done writing.
@@ -495,21 +915,43 @@ public class MicoExtractor extends BaseTransformationConnector {
 	
 	protected static class FileDestinationStorage implements DestinationStorage
 	  {
+	    /** Bytes the reservation grows by at a time once the file outgrows it. */
+	    protected static final long RESERVATION_INCREMENT = 64L * 1024L;
+
 	    protected final File outputFile;
 	    protected final OutputStream outputStream;
+	    /** Bytes accounted against the spool quota for this file; grows as the file is written. */
+	    protected final AtomicLong reservedBytes = new AtomicLong();
+	    /** The storage itself plus every input stream still open on the file. */
+	    protected final AtomicInteger references = new AtomicInteger(1);
 
-	    public FileDestinationStorage()
-	      throws ManifoldCFException
+	    public FileDestinationStorage(long sizeHint)
+	      throws ManifoldCFException, ServiceInterruption
+	    {
+	      this(sizeHint,true);
+	    }
+
+	    /** Create a spool file in the spool directory.
+	    * Whatever is written beyond the size hint is reserved as it is written, and always against the quota.
+	    *@param sizeHint is the expected length of the document, or a negative number if unknown.
+	    *@param enforceQuota is false if the size hint must be reserved even if it exceeds the spool quota.
+	    */
+	    public FileDestinationStorage(long sizeHint, boolean enforceQuota)
+	      throws ManifoldCFException, ServiceInterruption
 	    {
+	      long initialReservation = Math.max(sizeHint,0L);
+	      SpoolDirectory.reserve(initialReservation,enforceQuota);
+	      reservedBytes.set(initialReservation);
 	      File outputFile;
 	      OutputStream outputStream;
 	      try
 	      {
-	        outputFile = File.createTempFile("mcfmico","tmp");
-	        outputStream = new FileOutputStream(outputFile);
+	        outputFile = SpoolDirectory.createSpoolFile();
+	        outputStream = new ReservingOutputStream(new FileOutputStream(outputFile));
 	      }
 	      catch (IOException e)
 	      {
+	        SpoolDirectory.release(initialReservation);
 	        handleIOException(e);
 	        outputFile = null;
 	        outputStream = null;
@@ -535,17 +977,20 @@ public class MicoExtractor extends BaseTransformationConnector {
 	    }
 
 	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    * The file stays in place until the storage and all of its input streams are closed.
 	    */
 	    @Override
 	    public InputStream getInputStream()
 	      throws ManifoldCFException
 	    {
+	      references.incrementAndGet();
 	      try
 	      {
-	        return new FileInputStream(outputFile);
+	        return new SpoolFileInputStream();
 	      }
 	      catch (IOException e)
 	      {
+	        releaseReference();
 	        handleIOException(e);
 	        return null;
 	      }
@@ -558,17 +1003,181 @@ public class MicoExtractor extends BaseTransformationConnector {
 	    public void close()
 	      throws ManifoldCFException
 	    {
-	      outputFile.delete();
+	      try
+	      {
+	        outputStream.close();
+	      }
+	      catch (IOException e)
+	      {
+	        // Nothing more will be written, and the file is about to go
+	      }
+	      releaseReference();
+	    }
+
+	    protected void releaseReference()
+	    {
+	      if (references.decrementAndGet() == 0)
+	      {
+	        // The quota is only given back once the bytes are off the disk
+	        if (outputFile.delete() || !outputFile.exists())
+	          SpoolDirectory.release(reservedBytes.getAndSet(0L));
+	        else
+	          Logging.agents.warn("Could not delete MICO spool file "+outputFile+"; it stays counted against the spool quota until its directory is swept");
+	      }
+	    }
+
+	    /** Output stream to the spool file that reserves room against the quota before writing
+	    * beyond what is reserved already.
+	    */
+	    protected class ReservingOutputStream extends FilterOutputStream
+	    {
+	      protected long written = 0L;
+
+	      public ReservingOutputStream(OutputStream out)
+	      {
+	        super(out);
+	      }
+
+	      @Override
+	      public void write(int b)
+	        throws IOException
+	      {
+	        reserveFor(1L);
+	        out.write(b);
+	        written++;
+	      }
+
+	      @Override
+	      public void write(byte[] b, int off, int len)
+	        throws IOException
+	      {
+	        reserveFor(len);
+	        out.write(b, off, len);
+	        written += len;
+	      }
+
+	      /** Grow the reservation, a whole increment at a time, to cover the next bytes.
+	      *@throws SpoolDirectory.QuotaExceededException if the quota does not allow it.
+	      */
+	      protected void reserveFor(long len)
+	        throws IOException
+	      {
+	        long needed = written + len - reservedBytes.get();
+	        if (needed <= 0L)
+	          return;
+	        long increment = ((needed + RESERVATION_INCREMENT - 1L) / RESERVATION_INCREMENT) * RESERVATION_INCREMENT;
+	        try
+	        {
+	          SpoolDirectory.reserve(increment,true);
+	        }
+	        catch (ServiceInterruption e)
+	        {
+	          throw new SpoolDirectory.QuotaExceededException(e);
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        reservedBytes.addAndGet(increment);
+	      }
+	    }
+
+	    protected class SpoolFileInputStream extends ChannelFileInputStream
+	    {
+	      protected boolean closed = false;
+
+	      public SpoolFileInputStream()
+	        throws IOException
+	      {
+	        super(outputFile);
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        try
+	        {
+	          super.close();
+	        }
+	        finally
+	        {
+	          if (!closed)
+	          {
+	            closed = true;
+	            releaseReference();
+	          }
+	        }
+	      }
 	    }
 	  }
 	
 	protected static class MemoryDestinationStorage implements DestinationStorage
 	  {
-	    protected final ByteArrayOutputStream outputStream;
+	    /** Bytes reserved by all in-memory spools of this process. */
+	    protected static final AtomicLong reservedMemory = new AtomicLong();
+
+	    /** Smallest buffer; buffers come in powers of two from here up to inMemoryMaximumFile. */
+	    protected static final int MIN_BUFFER_SIZE = 1024;
+	    /** Number of idle buffers kept for each size. */
+	    protected static final int MAX_POOLED_BUFFERS = 64;
+
+	    protected static final int POOL_COUNT = poolIndex((int)inMemoryMaximumFile) + 1;
+	    @SuppressWarnings("unchecked")
+	    protected static final ConcurrentLinkedQueue<byte[]>[] bufferPools = new ConcurrentLinkedQueue[POOL_COUNT];
+	    protected static final AtomicInteger[] pooledCounts = new AtomicInteger[POOL_COUNT];
+
+	    static
+	    {
+	      for (int i = 0; i < POOL_COUNT; i++)
+	      {
+	        bufferPools[i] = new ConcurrentLinkedQueue<byte[]>();
+	        pooledCounts[i] = new AtomicInteger(0);
+	      }
+	    }
+
+	    protected final SpoolBuffer outputStream;
+	    /** Bytes reserved against the memory budget; guarded by the output stream. */
+	    protected long reservation;
+	    protected final AtomicBoolean closed = new AtomicBoolean(false);
+	    protected final AtomicInteger openViews = new AtomicInteger(0);
+	    protected final AtomicBoolean recycled = new AtomicBoolean(false);
+	    /** Disk spool taking over if the document outgrows the in-memory tier or the budget. */
+	    protected volatile FileDestinationStorage overflow = null;
 	    
-	    public MemoryDestinationStorage(int sizeHint)
+	    protected MemoryDestinationStorage(int bufferSize)
+	    {
+	      outputStream = new SpoolBuffer(takeBuffer(bufferSize));
+	      reservation = bufferSize;
+	    }
+
+	    /** Reserve room for an in-memory spool against the memory budget of this connector.
+	    *@return the storage, or null if the budget would be exceeded and the caller should spool to disk.
+	    */
+	    public static MemoryDestinationStorage create(int sizeHint)
+	      throws ManifoldCFException
 	    {
-	      outputStream = new ByteArrayOutputStream(sizeHint);
+	      int bufferSize = bufferSizeFor(sizeHint);
+	      if (!reserve(bufferSize))
+	        return null;
+	      return new MemoryDestinationStorage(bufferSize);
+	    }
+
+	    /** Reserve bytes against the memory budget of this connector.
+	    *@return false if the budget would be exceeded.
+	    */
+	    protected static boolean reserve(long bytes)
+	      throws ManifoldCFException
+	    {
+	      long budget = MicoConfig.getBudget(MicoConfig.PROPERTY_SPOOL_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET);
+	      while (true)
+	      {
+	        long current = reservedMemory.get();
+	        if (current + bytes > budget)
+	          return false;
+	        if (reservedMemory.compareAndSet(current, current + bytes))
+	          return true;
+	      }
 	    }
 	    
 	    @Override
@@ -584,34 +1193,539 @@ public class MicoExtractor extends BaseTransformationConnector {
 	    public long getBinaryLength()
 	      throws ManifoldCFException
 	    {
+	      if (overflow != null)
+	        return overflow.getBinaryLength();
 	      return outputStream.size();
 	    }
 	    
 	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    * The stream is a view over the spool buffer, not a copy; the buffer is only recycled once the
+	    * storage and all of its views have been closed.
 	    */
 	    @Override
 	    public InputStream getInputStream()
 	      throws ManifoldCFException
 	    {
-	      return new ByteArrayInputStream(outputStream.toByteArray());
+	      if (overflow != null)
+	        return overflow.getInputStream();
+	      openViews.incrementAndGet();
+	      return new BufferView(outputStream.buffer(), outputStream.size());
 	    }
 	    
 	    /** Close the object and clean up everything.
 	    * This should be called when the data is no longer needed.
 	    */
+	    @Override
 	    public void close()
 	      throws ManifoldCFException
 	    {
+	      if (closed.compareAndSet(false, true))
+	      {
+	        synchronized (outputStream)
+	        {
+	          reservedMemory.addAndGet(-reservation);
+	          reservation = 0L;
+	        }
+	        if (openViews.get() == 0)
+	          recycle();
+	        if (overflow != null)
+	          overflow.close();
+	      }
+	    }
+
+	    protected void recycle()
+	    {
+	      if (recycled.compareAndSet(false, true))
+	        giveBuffer(outputStream.buffer());
+	    }
+
+	    protected static int bufferSizeFor(int sizeHint)
+	    {
+	      int size = MIN_BUFFER_SIZE;
+	      while (size < sizeHint)
+	        size <<= 1;
+	      return size;
+	    }
+
+	    protected static int poolIndex(int bufferSize)
+	    {
+	      return Integer.numberOfTrailingZeros(bufferSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	    }
+
+	    protected static byte[] takeBuffer(int bufferSize)
+	    {
+	      int index = poolIndex(bufferSize);
+	      if (index < POOL_COUNT)
+	      {
+	        byte[] buffer = bufferPools[index].poll();
+	        if (buffer != null)
+	        {
+	          pooledCounts[index].decrementAndGet();
+	          return buffer;
+	        }
+	      }
+	      return new byte[bufferSize];
+	    }
+
+	    protected static void giveBuffer(byte[] buffer)
+	    {
+	      // A spilled spool hands back an empty buffer, so only keep sizes we hand out
+	      int size = buffer.length;
+	      if (size < MIN_BUFFER_SIZE || Integer.bitCount(size) != 1)
+	        return;
+	      int index = poolIndex(size);
+	      if (index >= POOL_COUNT)
+	        return;
+	      if (pooledCounts[index].incrementAndGet() > MAX_POOLED_BUFFERS)
+	      {
+	        pooledCounts[index].decrementAndGet();
+	        return;
+	      }
+	      bufferPools[index].offer(buffer);
+	    }
+
+	    /** Output stream writing into a supplied buffer, which is exposed for views rather than copied.
+	    * The buffer never grows past what is reserved for it: a document longer than announced first
+	    * reserves a larger buffer, and once that would leave the in-memory tier or exceed the budget,
+	    * everything is moved to a disk spool and the reservation is given back.
+	    */
+	    protected class SpoolBuffer extends OutputStream
+	    {
+	      protected byte[] buf;
+	      protected int count = 0;
+
+	      public SpoolBuffer(byte[] initialBuffer)
+	      {
+	        buf = initialBuffer;
+	      }
+
+	      public synchronized byte[] buffer()
+	      {
+	        return buf;
+	      }
+
+	      public synchronized int size()
+	      {
+	        return count;
+	      }
+
+	      @Override
+	      public void write(int b)
+	        throws IOException
+	      {
+	        write(new byte[]{(byte)b}, 0, 1);
+	      }
+
+	      @Override
+	      public synchronized void write(byte[] b, int off, int len)
+	        throws IOException
+	      {
+	        try
+	        {
+	          if (overflow == null && (long)count + len > buf.length && !grow((long)count + len))
+	            spill();
+	          if (overflow != null)
+	          {
+	            overflow.getOutputStream().write(b, off, len);
+	            return;
+	          }
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        System.arraycopy(b, off, buf, count, len);
+	        count += len;
+	      }
+
+	      @Override
+	      public synchronized void close()
+	        throws IOException
+	      {
+	        if (overflow == null)
+	          return;
+	        try
+	        {
+	          overflow.getOutputStream().close();
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	      }
+
+	      /** Move to a larger pooled buffer, reserving the difference against the budget.
+	      *@return false if the document no longer fits the in-memory tier or the budget.
+	      */
+	      protected boolean grow(long needed)
+	        throws ManifoldCFException
+	      {
+	        if (needed > inMemoryMaximumFile)
+	          return false;
+	        int bufferSize = bufferSizeFor((int)needed);
+	        if (!reserve(bufferSize - reservation))
+	          return false;
+	        reservation = bufferSize;
+	        byte[] larger = takeBuffer(bufferSize);
+	        System.arraycopy(buf, 0, larger, 0, count);
+	        retire(buf);
+	        buf = larger;
+	        return true;
+	      }
+
+	      /** Move everything written so far to a disk spool, and give the buffer and its reservation back.
+	      */
+	      protected void spill()
+	        throws ManifoldCFException, IOException
+	      {
+	        FileDestinationStorage spool;
+	        try
+	        {
+	          // The bytes are already accepted; the quota only applies to new documents
+	          spool = new FileDestinationStorage(count, false);
+	        }
+	        catch (ServiceInterruption e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        spool.getOutputStream().write(buf, 0, count);
+	        overflow = spool;
+	        reservedMemory.addAndGet(-reservation);
+	        reservation = 0L;
+	        retire(buf);
+	        buf = new byte[0];
+	        count = 0;
+	      }
+
+	      /** Recycle a buffer that has been replaced, unless a view may still be reading it.
+	      */
+	      protected void retire(byte[] buffer)
+	      {
+	        if (openViews.get() == 0)
+	          giveBuffer(buffer);
+	      }
+	    }
+
+	    /** Read-only view over the spool buffer.
+	    */
+	    protected class BufferView extends ByteArrayInputStream
+	    {
+	      protected final AtomicBoolean viewClosed = new AtomicBoolean(false);
+
+	      public BufferView(byte[] buffer, int length)
+	      {
+	        super(buffer, 0, length);
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        if (viewClosed.compareAndSet(false, true))
+	        {
+	          if (openViews.decrementAndGet() == 0 && closed.get())
+	            recycle();
+	        }
+	      }
 	    }
 
 	  }
 
+	protected static class OffHeapDestinationStorage implements DestinationStorage
+	  {
+	    protected final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	    protected final OutputStream outputStream = new SlabOutputStream();
+	    protected final AtomicBoolean closed = new AtomicBoolean(false);
+	    protected final AtomicInteger openViews = new AtomicInteger(0);
+	    protected final AtomicBoolean recycled = new AtomicBoolean(false);
+	    protected int reservedSlabs;
+	    protected long length = 0L;
+	    /** Disk spool taking over if the off-heap budget runs out mid-document. */
+	    protected FileDestinationStorage overflow = null;
+
+	    protected OffHeapDestinationStorage(int reservedSlabs)
+	    {
+	      this.reservedSlabs = reservedSlabs;
+	    }
+
+	    /** Reserve off-heap slabs for a document of the given size.
+	    *@return the storage, or null if the off-heap budget would be exceeded.
+	    */
+	    public static OffHeapDestinationStorage create(long sizeHint)
+	      throws ManifoldCFException
+	    {
+	      int slabCount = SlabPool.slabsFor(Math.max(sizeHint, 1L));
+	      if (!SlabPool.reserve(slabCount))
+	        return null;
+	      return new OffHeapDestinationStorage(slabCount);
+	    }
+
+	    @Override
+	    public OutputStream getOutputStream()
+	      throws ManifoldCFException
+	    {
+	      return outputStream;
+	    }
+
+	    /** Get new binary length.
+	    */
+	    @Override
+	    public long getBinaryLength()
+	      throws ManifoldCFException
+	    {
+	      return length;
+	    }
+
+	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    * The stream is a view over the slabs, not a copy; the slabs only go back to the pool once the
+	    * storage and all of its views have been closed.
+	    */
+	    @Override
+	    public InputStream getInputStream()
+	      throws ManifoldCFException
+	    {
+	      if (overflow != null)
+	        return overflow.getInputStream();
+	      openViews.incrementAndGet();
+	      List<ByteBuffer> views = new ArrayList<ByteBuffer>(slabs.size());
+	      for (ByteBuffer slab : slabs)
+	      {
+	        ByteBuffer view = slab.asReadOnlyBuffer();
+	        view.flip();
+	        views.add(view);
+	      }
+	      return new SlabView(views);
+	    }
+
+	    /** Close the object and clean up everything.
+	    * This should be called when the data is no longer needed.
+	    */
+	    @Override
+	    public void close()
+	      throws ManifoldCFException
+	    {
+	      if (!closed.compareAndSet(false, true))
+	        return;
+	      if (openViews.get() == 0)
+	        recycle();
+	      if (overflow != null)
+	        overflow.close();
+	    }
+
+	    protected void recycle()
+	    {
+	      if (recycled.compareAndSet(false, true))
+	      {
+	        releaseSlabs();
+	        SlabPool.unreserve(reservedSlabs);
+	        reservedSlabs = 0;
+	      }
+	    }
+
+	    protected void releaseSlabs()
+	    {
+	      for (ByteBuffer slab : slabs)
+	      {
+	        SlabPool.release(slab);
+	      }
+	      slabs.clear();
+	    }
+
+	    /** Make a fresh slab current, growing the reservation if the document is larger than announced.
+	    *@return false if the off-heap budget is exhausted.
+	    */
+	    protected boolean nextSlab()
+	      throws ManifoldCFException
+	    {
+	      if (slabs.size() >= reservedSlabs)
+	      {
+	        if (!SlabPool.reserve(1))
+	          return false;
+	        reservedSlabs++;
+	      }
+	      slabs.add(SlabPool.take());
+	      return true;
+	    }
+
+	    /** Move everything written so far to a disk spool, and give the slabs and their reservation back.
+	    */
+	    protected void spill()
+	      throws ManifoldCFException, IOException
+	    {
+	      try
+	      {
+	        // The bytes are already accepted; the quota only applies to new documents
+	        overflow = new FileDestinationStorage(length,false);
+	      }
+	      catch (ServiceInterruption e)
+	      {
+	        throw new IOException(e.getMessage(),e);
+	      }
+	      OutputStream os = overflow.getOutputStream();
+	      byte[] buffer = new byte[SlabPool.SLAB_SIZE];
+	      for (ByteBuffer slab : slabs)
+	      {
+	        slab.flip();
+	        int amt = slab.remaining();
+	        slab.get(buffer, 0, amt);
+	        os.write(buffer, 0, amt);
+	      }
+	      releaseSlabs();
+	      // The document lives on disk from here on, so its off-heap budget goes to other documents
+	      SlabPool.unreserve(reservedSlabs);
+	      reservedSlabs = 0;
+	    }
+
+	    protected class SlabOutputStream extends OutputStream
+	    {
+	      @Override
+	      public void write(int b)
+	        throws IOException
+	      {
+	        write(new byte[]{(byte)b}, 0, 1);
+	      }
+
+	      @Override
+	      public void write(byte[] b, int off, int len)
+	        throws IOException
+	      {
+	        try
+	        {
+	          while (len > 0)
+	          {
+	            if (overflow != null)
+	            {
+	              overflow.getOutputStream().write(b, off, len);
+	              length += len;
+	              return;
+	            }
+	            ByteBuffer current = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+	            if (current == null || !current.hasRemaining())
+	            {
+	              if (!nextSlab())
+	                spill();
+	              continue;
+	            }
+	            int amt = Math.min(len, current.remaining());
+	            current.put(b, off, amt);
+	            off += amt;
+	            len -= amt;
+	            length += amt;
+	          }
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        if (overflow == null)
+	          return;
+	        try
+	        {
+	          overflow.getOutputStream().close();
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	      }
+	    }
+
+	    /** Read-only view over the slabs.
+	    */
+	    protected class SlabView extends SlabInputStream
+	    {
+	      protected final AtomicBoolean viewClosed = new AtomicBoolean(false);
+
+	      public SlabView(List<ByteBuffer> views)
+	      {
+	        super(views);
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        if (viewClosed.compareAndSet(false, true))
+	        {
+	          if (openViews.decrementAndGet() == 0 && closed.get())
+	            recycle();
+	        }
+	      }
+	    }
+	  }
+
+	/** Input stream over a sequence of read-only buffer views.
+	*/
+	protected static class SlabInputStream extends InputStream
+	  {
+	    protected final List<ByteBuffer> views;
+	    protected int index = 0;
+
+	    public SlabInputStream(List<ByteBuffer> views)
+	    {
+	      this.views = views;
+	    }
+
+	    @Override
+	    public int read()
+	      throws IOException
+	    {
+	      ByteBuffer current = current();
+	      if (current == null)
+	        return -1;
+	      return current.get() & 0xff;
+	    }
+
+	    @Override
+	    public int read(byte[] b, int off, int len)
+	      throws IOException
+	    {
+	      if (len == 0)
+	        return 0;
+	      ByteBuffer current = current();
+	      if (current == null)
+	        return -1;
+	      int amt = Math.min(len, current.remaining());
+	      current.get(b, off, amt);
+	      return amt;
+	    }
+
+	    @Override
+	    public int available()
+	      throws IOException
+	    {
+	      ByteBuffer current = current();
+	      return current == null ? 0 : current.remaining();
+	    }
+
+	    protected ByteBuffer current()
+	    {
+	      while (index < views.size())
+	      {
+	        ByteBuffer view = views.get(index);
+	        if (view.hasRemaining())
+	          return view;
+	        index++;
+	      }
+	      return null;
+	    }
+	  }
+
 	protected static class SpecPacker {
 
 		private final String micoServer;
 		private final String micoUser;
 		private final String micoPassword;
 		private final String micoDocUriField;
+		private final boolean micoAsync;
+		private final boolean micoPassThrough;
+		private final String micoMaxConcurrency;
 
 		public SpecPacker(Specification os) {
 
@@ -619,6 +1733,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			String micoUser = null;
 			String micoPassword = null;
 			String micoDocUriField = null;
+			boolean micoAsync = false;
+			boolean micoPassThrough = false;
+			String micoMaxConcurrency = null;
 			
 			for (int i = 0; i < os.getChildCount(); i++) {
 				SpecificationNode sn = os.getChild(i);
@@ -630,6 +1747,12 @@ public class MicoExtractor extends BaseTransformationConnector {
 					micoPassword = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
 				} else if (sn.getType().equals(MicoConfig.NODE_MICO_DOC_URI_FIELD)) {
 					micoDocUriField = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_ASYNC)) {
+					micoAsync = "true".equals(sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE));
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_PASSTHROUGH)) {
+					micoPassThrough = "true".equals(sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE));
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_MAX_CONCURRENCY)) {
+					micoMaxConcurrency = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
 				}
 
 			}
@@ -637,6 +1760,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			this.micoUser = micoUser;
 			this.micoPassword = micoPassword;
 			this.micoDocUriField = micoDocUriField;
+			this.micoAsync = micoAsync;
+			this.micoPassThrough = micoPassThrough;
+			this.micoMaxConcurrency = micoMaxConcurrency;
 		}
 
 		public String toPackedString() {
@@ -665,6 +1791,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			} else {
 				sb.append('-');
 			}
+			// The asynchronous, passthrough and concurrency settings only change
+			// how documents are delivered, not what is indexed, so they are left
+			// out of the version string to avoid recrawling on every change
 			return sb.toString();
 		}
 
@@ -684,6 +1813,33 @@ public class MicoExtractor extends BaseTransformationConnector {
 			return micoDocUriField;
 		}
 
+		public boolean isMicoAsync() {
+			return micoAsync;
+		}
+
+		public boolean isMicoPassThrough() {
+			return micoPassThrough;
+		}
+
+		public String getMicoMaxConcurrency() {
+			return micoMaxConcurrency;
+		}
+
+		/**
+		 * Get the fixed ceiling for concurrent injections, or 0 if there is
+		 * none.
+		 */
+		public int getMicoMaxConcurrencyLimit() {
+			if (micoMaxConcurrency == null || micoMaxConcurrency.trim().length() == 0) {
+				return 0;
+			}
+			try {
+				return Integer.parseInt(micoMaxConcurrency.trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
 	}
 
 }
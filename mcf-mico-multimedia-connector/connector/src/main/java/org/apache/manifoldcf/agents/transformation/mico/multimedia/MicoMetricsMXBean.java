@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link MicoMetrics}.
+ */
+public interface MicoMetricsMXBean {
+
+	/** Get the latency statistics of each processing stage, by stage name. */
+	Map<String, StageStatistics> getStages();
+
+	/** Get the number of documents processed, by media type. */
+	Map<String, Long> getDocumentsByMediaType();
+
+	/** Get the number of documents that skipped injection, by reason. */
+	Map<String, Long> getSkips();
+
+	/** Get the number of bytes written to spools. */
+	long getBytesSpooled();
+
+	/** Get the number of bytes uploaded to MICO. */
+	long getBytesUploaded();
+
+	/**
+	 * Get the number of failed submissions that the outbox did not take, so
+	 * their documents went downstream without being injected.
+	 */
+	long getSubmissionsDropped();
+
+	/** Start counting from zero. */
+	void reset();
+}
@@ -0,0 +1,679 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.zaizi.mico.client.exception.MicoClientException;
+
+/**
+ * Durable store of submissions that MICO did not accept, which are retried in
+ * the background until they go through.
+ * 
+ * A deferred submission gets a copy of its spooled content in the outbox
+ * directory, and a line in an append-only journal. Once it has been
+ * submitted, a second line marks it as done and the copy is deleted. The
+ * journal is read back when the outbox is opened, so deferred submissions
+ * survive agent restarts, and it is rewritten to hold only the pending
+ * entries once enough of them are done.
+ * 
+ * Retries back off exponentially from the configured base interval up to the
+ * maximum, with random jitter so a recovering server is not hit by every
+ * entry at once. The number of attempts is not journaled, so backoff starts
+ * over after a restart.
+ * 
+ * Entries are journaled with the server and user they were meant for, but
+ * not the password. They are retried with the credentials of a job that uses
+ * the same server and user (see {@link MicoEndpoint#find}), and wait while
+ * there is none, for instance after a restart until such a job runs again.
+ * The document and content index keys go into the journal too, so that a
+ * submission that goes through on a retry is recorded like any other.
+ * 
+ * Journal lines and content copies are synced to disk before a submission
+ * counts as deferred. The content copies are accounted against an optional
+ * quota; a submission that does not fit is only logged, like it would be
+ * without an outbox.
+ * 
+ * The outbox lives in a subdirectory of the directory named by the
+ * {@link MicoConfig#PROPERTY_OUTBOX_DIRECTORY} property, one per connector,
+ * so the connectors can share the setting without replaying or compacting
+ * each other's entries. It is disabled when the property is not set.
+ */
+public class MicoOutbox {
+
+	/** Default delay before the first retry. */
+	protected static final long DEFAULT_RETRY_BASE = 30000L;
+	/** Default maximum delay between retries. */
+	protected static final long DEFAULT_RETRY_MAXIMUM = 3600000L;
+	/** Longest time the replayer sleeps before looking at the entries again. */
+	protected static final long MAXIMUM_SLEEP = 10000L;
+	/** Minimum number of done entries before the journal is compacted. */
+	protected static final int COMPACTION_THRESHOLD = 64;
+
+	/** Subdirectory of the configured directory that this connector uses. */
+	protected static final String CONNECTOR_DIRECTORY = "multimedia";
+	protected static final String JOURNAL_NAME = "outbox.journal";
+	protected static final String ADDED = "A";
+	protected static final String DONE = "D";
+
+	/** Marks a null value in the journal; URL encoding never produces it. */
+	protected static final String NULL_VALUE = "!";
+
+	private static MicoOutbox instance = null;
+	private static boolean initialized = false;
+	/** Earliest time to try again after the outbox could not be opened. */
+	private static long nextOpenAttempt = 0L;
+
+	private final File directory;
+	private final File journalFile;
+	private final long retryBase;
+	private final long retryMaximum;
+	private final long quota;
+	private final Random random = new Random();
+	private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+	private FileOutputStream journalStream;
+	private Writer journal;
+	private int doneSinceCompaction = 0;
+	/** Bytes of the content copies of the pending entries. */
+	private long usedBytes = 0L;
+
+	/**
+	 * Open an outbox in the given directory, without starting to retry its
+	 * entries.
+	 * 
+	 * @param quota
+	 *            is the total number of bytes the content copies may take, or
+	 *            0 for no limit.
+	 */
+	protected MicoOutbox(File directory, long retryBase, long retryMaximum, long quota) throws IOException {
+		this.directory = directory;
+		this.journalFile = new File(directory, JOURNAL_NAME);
+		this.retryBase = retryBase;
+		this.retryMaximum = retryMaximum;
+		this.quota = quota;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create outbox directory " + directory);
+		}
+		load();
+		compact();
+		for (Entry entry : pending.values()) {
+			usedBytes += contentFile(entry.id).length();
+		}
+	}
+
+	/**
+	 * Open the outbox, if it is enabled, and start retrying whatever is left
+	 * in it. Calling this again does nothing.
+	 */
+	public static void start() throws ManifoldCFException {
+		getInstance();
+	}
+
+	/**
+	 * Find out whether the outbox is enabled and open, opening it if need be.
+	 */
+	public static boolean isEnabled() {
+		try {
+			return getInstance() != null;
+		} catch (ManifoldCFException e) {
+			Logging.agents.error(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Keep a submission that failed, so it is retried later. The caller
+	 * still owns the submission and its spooled content.
+	 * 
+	 * @return true if the submission was stored, false if the outbox is
+	 *         disabled or full, or the submission could not be stored.
+	 */
+	public static boolean defer(MicoSubmission submission) {
+		try {
+			MicoOutbox outbox = getInstance();
+			if (outbox == null) {
+				return false;
+			}
+			return outbox.add(submission);
+		} catch (ManifoldCFException e) {
+			Logging.agents.error("Could not defer MICO submission of " + submission.getDocumentURI(), e);
+			return false;
+		} catch (IOException e) {
+			Logging.agents.error("Could not defer MICO submission of " + submission.getDocumentURI(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Keep a submission that failed, like {@link #defer}, or report it as
+	 * dropped if the outbox does not take it. The document has already gone
+	 * downstream, so a dropped submission is not injected at all.
+	 */
+	public static void deferOrDrop(MicoSubmission submission) {
+		if (!defer(submission)) {
+			Logging.agents.error("MICO submission of " + submission.getDocumentURI()
+					+ " was not kept for retry; the document is not injected");
+			MicoMetrics.recordDropped();
+		}
+	}
+
+	/**
+	 * Get the outbox, opening it on first use. An outbox that could not be
+	 * opened is tried again once the retry base interval has passed; until
+	 * then, it counts as disabled.
+	 */
+	protected static synchronized MicoOutbox getInstance() throws ManifoldCFException {
+		if (!initialized && System.currentTimeMillis() >= nextOpenAttempt) {
+			String location = ManifoldCF.getProperty(MicoConfig.PROPERTY_OUTBOX_DIRECTORY);
+			if (location != null && location.trim().length() > 0) {
+				long retryBase = Math.max(1L,
+						MicoConfig.getLongProperty(MicoConfig.PROPERTY_OUTBOX_RETRY_BASE, DEFAULT_RETRY_BASE));
+				long retryMaximum = Math.max(retryBase,
+						MicoConfig.getLongProperty(MicoConfig.PROPERTY_OUTBOX_RETRY_MAXIMUM, DEFAULT_RETRY_MAXIMUM));
+				long quota = MicoConfig.getLongProperty(MicoConfig.PROPERTY_OUTBOX_QUOTA, 0L);
+				File directory = new File(location.trim(), CONNECTOR_DIRECTORY);
+				try {
+					instance = new MicoOutbox(directory, retryBase, retryMaximum, quota);
+				} catch (IOException e) {
+					nextOpenAttempt = System.currentTimeMillis() + retryBase;
+					throw new ManifoldCFException("Could not open MICO outbox in " + directory + ", trying again in "
+							+ retryBase + " ms: " + e.getMessage(), e);
+				}
+				Thread t = new Thread(new Replayer(instance), "MICO outbox replayer");
+				t.setDaemon(true);
+				t.start();
+				Logging.agents.info("Opened MICO outbox in " + directory + " with "
+						+ instance.pendingCount() + " pending submissions");
+			}
+			initialized = true;
+		}
+		return instance;
+	}
+
+	protected synchronized int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Get the number of bytes taken by the content copies of the pending
+	 * entries.
+	 */
+	protected synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Store a submission to be retried.
+	 * 
+	 * @return false if its content does not fit the quota.
+	 */
+	protected boolean add(MicoSubmission submission) throws ManifoldCFException, IOException {
+		long length = submission.getLength();
+		if (!reserve(length)) {
+			Logging.agents.warn("MICO outbox quota of " + quota + " bytes reached; not deferring submission of "
+					+ submission.getDocumentURI());
+			return false;
+		}
+		String id = UUID.randomUUID().toString();
+		File content = contentFile(id);
+		boolean stored = false;
+		try {
+			add(submission, id, content);
+			stored = true;
+		} finally {
+			if (!stored) {
+				content.delete();
+				release(length);
+			}
+		}
+		Logging.agents.info("Deferred MICO submission of " + submission.getDocumentURI());
+		return true;
+	}
+
+	private void add(MicoSubmission submission, String id, File content) throws ManifoldCFException, IOException {
+		InputStream is = submission.openContent();
+		try {
+			FileOutputStream os = new FileOutputStream(content);
+			try {
+				IOUtils.copy(is, os);
+				os.getFD().sync();
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+
+		Entry entry = new Entry(id, submission.getMicoServer(), submission.getMicoUser(), submission.getMediaType(),
+				submission.getDocumentURI(), submission.getContentKey(), submission.getDocumentKey(), submission.getDocumentState());
+		synchronized (this) {
+			journal.write(entry.toLine());
+			syncJournal();
+			schedule(entry);
+			pending.put(id, entry);
+			notifyAll();
+		}
+	}
+
+	private synchronized boolean reserve(long bytes) {
+		if (quota > 0L && usedBytes + bytes > quota) {
+			return false;
+		}
+		usedBytes += bytes;
+		return true;
+	}
+
+	private synchronized void release(long bytes) {
+		usedBytes -= bytes;
+	}
+
+	/**
+	 * Write the journal through to disk, so an entry that has been added or
+	 * marked done stays that way across a crash.
+	 */
+	private void syncJournal() throws IOException {
+		journal.flush();
+		journalStream.getFD().sync();
+	}
+
+	/**
+	 * Mark an entry as done. Even if that cannot be journaled, the entry is
+	 * dropped and its content copy removed, so it is neither retried nor
+	 * replayed after a restart.
+	 */
+	private synchronized void done(Entry entry) throws IOException {
+		try {
+			journal.write(DONE + "\t" + entry.id + "\n");
+			syncJournal();
+		} finally {
+			pending.remove(entry.id);
+			File content = contentFile(entry.id);
+			release(content.length());
+			content.delete();
+		}
+		doneSinceCompaction++;
+		if (doneSinceCompaction >= COMPACTION_THRESHOLD && doneSinceCompaction >= pending.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Set the time of the next attempt for an entry, backing off
+	 * exponentially with its number of attempts.
+	 */
+	private void schedule(Entry entry) {
+		long delay = retryBase << Math.min(entry.attempts, 30);
+		if (delay <= 0L || delay > retryMaximum) {
+			delay = retryMaximum;
+		}
+		// Anywhere from half to the full delay
+		delay = delay / 2L + (long) (random.nextDouble() * (delay / 2L));
+		entry.nextAttempt = System.currentTimeMillis() + delay;
+	}
+
+	/**
+	 * Rebuild the pending entries from the journal.
+	 */
+	private void load() throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals(ADDED) && (fields.length == 9 || fields.length == 8)) {
+					Entry entry;
+					try {
+						entry = Entry.fromFields(fields);
+					} catch (IllegalArgumentException e) {
+						Logging.agents.warn("Ignoring damaged MICO outbox journal line: " + line);
+						continue;
+					}
+					if (contentFile(entry.id).exists()) {
+						schedule(entry);
+						pending.put(entry.id, entry);
+					}
+				} else if (fields[0].equals(DONE) && fields.length == 2) {
+					if (pending.remove(fields[1]) != null) {
+						contentFile(fields[1]).delete();
+					}
+				} else if (line.length() > 0) {
+					// Most likely a line cut short by a crash
+					Logging.agents.warn("Ignoring damaged MICO outbox journal line: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rewrite the journal so it only holds the pending entries, and remove
+	 * content copies no entry refers to.
+	 */
+	private void compact() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		File newJournal = new File(directory, JOURNAL_NAME + ".new");
+		FileOutputStream stream = new FileOutputStream(newJournal);
+		Writer writer = new OutputStreamWriter(stream, "UTF-8");
+		try {
+			for (Entry entry : pending.values()) {
+				writer.write(entry.toLine());
+			}
+			writer.flush();
+			stream.getFD().sync();
+		} finally {
+			writer.close();
+		}
+		if (!newJournal.renameTo(journalFile)) {
+			journalFile.delete();
+			if (!newJournal.renameTo(journalFile)) {
+				throw new IOException("Could not replace outbox journal " + journalFile);
+			}
+		}
+		journalStream = new FileOutputStream(journalFile, true);
+		journal = new OutputStreamWriter(journalStream, "UTF-8");
+		doneSinceCompaction = 0;
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(".spool") && !pending.containsKey(name.substring(0, name.length() - 6))) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private File contentFile(String id) {
+		return new File(directory, id + ".spool");
+	}
+
+	/**
+	 * Retry the entries that are due, waiting until one is.
+	 * 
+	 * @return the number of entries retried.
+	 */
+	protected int retryDue() throws InterruptedException {
+		List<Entry> due = takeDue();
+		for (Entry entry : due) {
+			retry(entry);
+		}
+		return due.size();
+	}
+
+	/**
+	 * Take the entries that are due, or wait until one is.
+	 */
+	private synchronized List<Entry> takeDue() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			long nextDue = now + MAXIMUM_SLEEP;
+			List<Entry> due = new ArrayList<Entry>();
+			for (Entry entry : pending.values()) {
+				if (entry.nextAttempt <= now) {
+					due.add(entry);
+					// Not due again until this attempt has been dealt with
+					entry.nextAttempt = Long.MAX_VALUE;
+				} else {
+					nextDue = Math.min(nextDue, entry.nextAttempt);
+				}
+			}
+			if (!due.isEmpty()) {
+				return due;
+			}
+			wait(Math.max(1L, nextDue - now));
+		}
+	}
+
+	private void retry(Entry entry) {
+		MicoEndpoint endpoint = MicoEndpoint.find(entry.micoServer, entry.micoUser);
+		if (endpoint == null) {
+			// No job has supplied the credentials yet; not an attempt
+			Logging.agents.debug("No job is using MICO server " + entry.micoServer + " as " + entry.micoUser
+					+ " yet; holding on to the submission of " + entry.documentURI);
+			synchronized (this) {
+				schedule(entry);
+			}
+			return;
+		}
+		MicoSubmission submission = new MicoSubmission(entry.micoServer, entry.micoUser, endpoint.getMicoPassword(),
+				entry.mediaType, entry.documentURI, new OutboxStorage(contentFile(entry.id)), entry.contentKey,
+				entry.documentKey, entry.documentState);
+		try {
+			// No point in adding to the load of an endpoint that is known to
+			// be in trouble. When it is half open this claims the probe, which
+			// submit() reports, or hands on if it never gets to call MICO.
+			CircuitBreaker breaker = submission.getEndpoint().getCircuitBreaker();
+			if (!breaker.allowRequest()) {
+				synchronized (this) {
+					schedule(entry);
+				}
+				return;
+			}
+			try {
+				submission.submit();
+			} finally {
+				breaker.recordAbandoned();
+			}
+		} catch (MicoSubmission.RefusedException e) {
+			// Not an attempt; wait for the endpoint like above
+			synchronized (this) {
+				schedule(entry);
+			}
+			return;
+		} catch (MicoClientException e) {
+			Logging.agents.warn("Retry " + (entry.attempts + 1) + " of MICO submission of " + entry.documentURI
+					+ " failed: " + e.getMessage());
+			reschedule(entry);
+			return;
+		} catch (ManifoldCFException e) {
+			Logging.agents.warn("Retry " + (entry.attempts + 1) + " of MICO submission of " + entry.documentURI
+					+ " failed: " + e.getMessage());
+			reschedule(entry);
+			return;
+		}
+		// Submitted, so it must not be submitted again whatever happens to
+		// the journal
+		discard(entry);
+	}
+
+	private synchronized void reschedule(Entry entry) {
+		entry.attempts++;
+		schedule(entry);
+	}
+
+	private void discard(Entry entry) {
+		try {
+			done(entry);
+		} catch (IOException e) {
+			Logging.agents.error("Could not record MICO outbox entry for " + entry.documentURI
+					+ " as done; dropped it anyway", e);
+		}
+	}
+
+	private static class Replayer implements Runnable {
+		private final MicoOutbox outbox;
+
+		Replayer(MicoOutbox outbox) {
+			this.outbox = outbox;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					outbox.retryDue();
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					Logging.agents.error("Unexpected error in MICO outbox replayer", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read-only spool over a content copy in the outbox. The copy is removed
+	 * by the outbox itself once the entry is done.
+	 */
+	private static class OutboxStorage implements MicoExtractor.DestinationStorage {
+		private final File file;
+
+		OutboxStorage(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws ManifoldCFException {
+			throw new IllegalStateException("Outbox content is read only");
+		}
+
+		@Override
+		public long getBinaryLength() throws ManifoldCFException {
+			return file.length();
+		}
+
+		@Override
+		public InputStream getInputStream() throws ManifoldCFException {
+			try {
+				return new ChannelFileInputStream(file);
+			} catch (IOException e) {
+				throw new ManifoldCFException("Could not read outbox content " + file + ": " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void close() throws ManifoldCFException {
+			// The copy stays until the entry is done
+		}
+	}
+
+	static class Entry {
+		final String id;
+		final String micoServer;
+		final String micoUser;
+		final String mediaType;
+		final String documentURI;
+		final byte[] contentKey;
+		final byte[] documentKey;
+		final DocumentIndex.State documentState;
+		int attempts = 0;
+		long nextAttempt = 0L;
+
+		Entry(String id, String micoServer, String micoUser, String mediaType, String documentURI,
+				byte[] contentKey, byte[] documentKey, DocumentIndex.State documentState) {
+			this.id = id;
+			this.micoServer = micoServer;
+			this.micoUser = micoUser;
+			this.mediaType = mediaType;
+			this.documentURI = documentURI;
+			this.contentKey = contentKey;
+			this.documentKey = documentKey;
+			this.documentState = documentState;
+		}
+
+		String toLine() throws UnsupportedEncodingException {
+			return ADDED + "\t" + id + "\t" + encode(micoServer) + "\t" + encode(micoUser) + "\t"
+					+ encode(mediaType) + "\t" + encode(documentURI) + "\t" + toHex(contentKey) + "\t"
+					+ toHex(documentKey) + "\t" + (documentState == null ? ""
+							: documentState.getLength() + "," + documentState.getModified() + ","
+									+ documentState.getChecksum())
+					+ "\n";
+		}
+
+		/**
+		 * Read the fields of a journal line. Lines written before credentials
+		 * were left out of the journal have 8 fields, with the password in the
+		 * fifth, which is skipped.
+		 */
+		static Entry fromFields(String[] fields) throws UnsupportedEncodingException {
+			if (fields.length == 8) {
+				return new Entry(fields[1], decode(fields[2]), decode(fields[3]), decode(fields[5]), decode(fields[6]),
+						fromHex(fields[7]), null, null);
+			}
+			DocumentIndex.State documentState = null;
+			if (fields[8].length() > 0) {
+				String[] state = fields[8].split(",", -1);
+				if (state.length != 3) {
+					throw new IllegalArgumentException("Bad document state: " + fields[8]);
+				}
+				documentState = new DocumentIndex.State(Long.parseLong(state[0]), Long.parseLong(state[1]),
+						Long.parseLong(state[2]));
+			}
+			return new Entry(fields[1], decode(fields[2]), decode(fields[3]), decode(fields[4]), decode(fields[5]),
+					fromHex(fields[6]), fromHex(fields[7]), documentState);
+		}
+
+		private static String encode(String value) throws UnsupportedEncodingException {
+			return value == null ? NULL_VALUE : URLEncoder.encode(value, "UTF-8");
+		}
+
+		private static String decode(String value) throws UnsupportedEncodingException {
+			return value.equals(NULL_VALUE) ? null : URLDecoder.decode(value, "UTF-8");
+		}
+
+		private static String toHex(byte[] value) {
+			if (value == null) {
+				return "";
+			}
+			StringBuilder sb = new StringBuilder(value.length * 2);
+			for (byte b : value) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+
+		private static byte[] fromHex(String value) {
+			if (value.length() == 0) {
+				return null;
+			}
+			byte[] result = new byte[value.length() / 2];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+			}
+			return result;
+		}
+	}
+}
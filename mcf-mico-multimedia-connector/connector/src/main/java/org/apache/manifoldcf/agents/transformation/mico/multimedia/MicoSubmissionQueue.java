@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Bounded, process-wide queue of pending MICO submissions, served by a fixed
+ * pool of daemon worker threads. The pool size and queue capacities are read
+ * once from the ManifoldCF properties file.
+ * 
+ * Submissions are split into lanes by media class (video, image, other), so
+ * that a few large videos cannot hold up thousands of thumbnails. Each lane
+ * has its own bounded queue, ordered smallest first, and a weight. So that
+ * a steady stream of small documents cannot starve a large one, the oldest
+ * submission in a lane is served next once that many later ones have been
+ * served before it. The weights decide how many workers a lane is
+ * guaranteed, and how often a free worker serves it when several lanes have
+ * work waiting. A lane never gets less than one worker. The shares only apply
+ * while lanes compete: a free worker serves the lanes below their share
+ * first, and otherwise any lane that has work, so that idle workers are lent
+ * to a busy lane rather than left waiting. With fewer workers than lanes,
+ * the shares of one worker each add up to more than there are, and the lanes
+ * only take turns by weight.
+ * 
+ * Workers take submissions off a lane in batches (see {@link MicoBatch}). A
+ * batch is closed once it holds the configured number of documents or bytes,
+ * or when the linger time has passed since its first document was taken.
+ * With the default linger of 0 a worker never waits, and simply takes
+ * whatever is queued at that moment.
+ * 
+ * The document of a queued submission has already gone downstream, and is
+ * not handed to the connector again while it is unchanged, so the queue only
+ * takes submissions while the {@link MicoOutbox} is enabled. Once the last
+ * connector instance has been disconnected, whatever is still queued is
+ * moved to the outbox, and the batches in flight are waited for, so that
+ * stopping the agents does not lose them.
+ */
+public class MicoSubmissionQueue {
+
+	/** Default number of submission workers. */
+	protected static final int DEFAULT_WORKERS = 4;
+	/** Default number of submissions that may wait for a worker, per lane. */
+	protected static final int DEFAULT_QUEUE_SIZE = 256;
+	/** Default maximum number of documents per batch. */
+	protected static final int DEFAULT_BATCH_SIZE = 16;
+	/** Default maximum number of bytes per batch. */
+	protected static final long DEFAULT_BATCH_BYTES = 8L * 1024L * 1024L;
+	/** Default time a batch may wait for more documents. */
+	protected static final long DEFAULT_BATCH_LINGER = 0L;
+	/** Default number of later submissions that may be served before the oldest one in a lane. */
+	protected static final int DEFAULT_MAXIMUM_BYPASSES = 64;
+	/** Longest time the last disconnect waits for the batches in flight. */
+	protected static final long DRAIN_TIMEOUT = 60000L;
+
+	/**
+	 * Media classes that are scheduled separately.
+	 */
+	protected enum Lane {
+		VIDEO(1), IMAGE(4), OTHER(2);
+
+		final int defaultWeight;
+
+		Lane(int defaultWeight) {
+			this.defaultWeight = defaultWeight;
+		}
+
+		String propertyName(String setting) {
+			return MicoConfig.PROPERTY_LANE_PREFIX + name().toLowerCase(Locale.ROOT) + "." + setting;
+		}
+
+		static Lane forMediaType(String mediaType) {
+			String type = mediaType == null ? "" : mediaType.toLowerCase(Locale.ROOT);
+			if (type.startsWith("video/")) {
+				return VIDEO;
+			}
+			if (type.startsWith("image/")) {
+				return IMAGE;
+			}
+			return OTHER;
+		}
+	}
+
+	private static Scheduler scheduler;
+	/** Connector instances currently connected, see {@link #acquire()}. */
+	private static int users = 0;
+	private static boolean warnedNoOutbox = false;
+
+	private MicoSubmissionQueue() {
+	}
+
+	/**
+	 * Queue a submission for a background worker.
+	 * 
+	 * @return false if the lane of the submission is full, in which case the
+	 *         caller still owns the submission and should run it itself.
+	 */
+	public static boolean offer(MicoSubmission submission) throws ManifoldCFException {
+		if (!MicoOutbox.isEnabled()) {
+			synchronized (MicoSubmissionQueue.class) {
+				if (!warnedNoOutbox) {
+					warnedNoOutbox = true;
+					Logging.agents.warn("Asynchronous MICO submission needs the MICO outbox, which is not "
+							+ "enabled; submitting from the crawler threads instead");
+				}
+			}
+			return false;
+		}
+		if (getScheduler().offer(submission)) {
+			return true;
+		}
+		Logging.agents.debug("MICO submission queue is full; submitting " + submission.getDocumentURI()
+				+ " synchronously");
+		return false;
+	}
+
+	/**
+	 * Note that a connector instance has been connected.
+	 */
+	public static synchronized void acquire() {
+		users++;
+	}
+
+	/**
+	 * Note that a connector instance has been disconnected. The last one to go
+	 * moves the queued submissions to the outbox, and waits for the batches
+	 * in flight.
+	 */
+	public static void release() {
+		Scheduler current;
+		synchronized (MicoSubmissionQueue.class) {
+			if (users > 0) {
+				users--;
+			}
+			if (users > 0 || scheduler == null) {
+				return;
+			}
+			current = scheduler;
+		}
+		List<MicoSubmission> queued = current.drain();
+		for (MicoSubmission submission : queued) {
+			try {
+				MicoOutbox.deferOrDrop(submission);
+			} finally {
+				submission.release();
+			}
+		}
+		if (!queued.isEmpty()) {
+			Logging.agents.info("Moved " + queued.size() + " queued MICO submissions to the outbox");
+		}
+		try {
+			if (!current.awaitIdle(DRAIN_TIMEOUT)) {
+				Logging.agents.warn("MICO submission batches still in flight after " + DRAIN_TIMEOUT + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static synchronized Scheduler getScheduler() throws ManifoldCFException {
+		if (scheduler == null) {
+			int workers = Math.max(1, MicoConfig.getIntProperty(MicoConfig.PROPERTY_ASYNC_WORKERS, DEFAULT_WORKERS));
+			int queueSize = Math.max(1,
+					MicoConfig.getIntProperty(MicoConfig.PROPERTY_ASYNC_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+			int batchSize = Math.max(1,
+					MicoConfig.getIntProperty(MicoConfig.PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+			long batchBytes = Math.max(1L,
+					MicoConfig.getLongProperty(MicoConfig.PROPERTY_BATCH_BYTES, DEFAULT_BATCH_BYTES));
+			long batchLinger = Math.max(0L,
+					MicoConfig.getLongProperty(MicoConfig.PROPERTY_BATCH_LINGER, DEFAULT_BATCH_LINGER));
+			int maximumBypasses = Math.max(0,
+					MicoConfig.getIntProperty(MicoConfig.PROPERTY_LANE_MAXIMUM_BYPASSES, DEFAULT_MAXIMUM_BYPASSES));
+
+			Lane[] lanes = Lane.values();
+			int[] weights = new int[lanes.length];
+			int[] capacities = new int[lanes.length];
+			int totalWeight = 0;
+			for (Lane lane : lanes) {
+				weights[lane.ordinal()] = Math.max(1,
+						MicoConfig.getIntProperty(lane.propertyName("weight"), lane.defaultWeight));
+				capacities[lane.ordinal()] = Math.max(1,
+						MicoConfig.getIntProperty(lane.propertyName("queuesize"), queueSize));
+				totalWeight += weights[lane.ordinal()];
+			}
+			int[] shares = new int[lanes.length];
+			StringBuilder sb = new StringBuilder();
+			for (Lane lane : lanes) {
+				int i = lane.ordinal();
+				shares[i] = Math.max(1, Math.round((float) workers * weights[i] / totalWeight));
+				sb.append(' ').append(lane.name().toLowerCase(Locale.ROOT)).append('=').append(shares[i]);
+			}
+
+			Scheduler newScheduler = new Scheduler(weights, capacities, shares, batchSize, batchBytes, batchLinger,
+					maximumBypasses);
+			for (int i = 1; i <= workers; i++) {
+				Thread t = new Thread(new Worker(newScheduler), "MICO submission worker " + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			scheduler = newScheduler;
+			Logging.agents.info("Started " + workers + " MICO submission workers, batching up to " + batchSize
+					+ " documents or " + batchBytes + " bytes; workers per lane:" + sb);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A queued submission, with what is needed to order it.
+	 */
+	private static class Pending {
+		final MicoSubmission submission;
+		final long length;
+		final long sequence;
+		/** Number of later submissions served before this one while it was the oldest. */
+		int bypasses = 0;
+		boolean taken = false;
+
+		Pending(MicoSubmission submission, long length, long sequence) {
+			this.submission = submission;
+			this.length = length;
+			this.sequence = sequence;
+		}
+	}
+
+	/** Smallest first, and first come first served among equals. */
+	private static final Comparator<Pending> SMALLEST_FIRST = new Comparator<Pending>() {
+		@Override
+		public int compare(Pending a, Pending b) {
+			if (a.length != b.length) {
+				return a.length < b.length ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * The lanes and their bookkeeping. Lanes are picked by smooth weighted
+	 * round robin among those that have work and a free share, or among all
+	 * that have work if none has a free share.
+	 */
+	static class Scheduler {
+		private final int[] weights;
+		private final int[] capacities;
+		private final int[] shares;
+		private final int batchSize;
+		private final long batchBytes;
+		private final long batchLinger;
+		private final int maximumBypasses;
+
+		private final List<PriorityQueue<Pending>> queues = new ArrayList<PriorityQueue<Pending>>();
+		/** The same submissions in order of arrival; taken ones are dropped lazily. */
+		private final List<ArrayDeque<Pending>> arrivals = new ArrayList<ArrayDeque<Pending>>();
+		private final int[] active;
+		private final int[] credits;
+		private long sequence = 0L;
+
+		Scheduler(int[] weights, int[] capacities, int[] shares, int batchSize, long batchBytes, long batchLinger,
+				int maximumBypasses) {
+			this.weights = weights;
+			this.capacities = capacities;
+			this.shares = shares;
+			this.batchSize = batchSize;
+			this.batchBytes = batchBytes;
+			this.batchLinger = batchLinger;
+			this.maximumBypasses = maximumBypasses;
+			for (int i = 0; i < weights.length; i++) {
+				queues.add(new PriorityQueue<Pending>(16, SMALLEST_FIRST));
+				arrivals.add(new ArrayDeque<Pending>());
+			}
+			this.active = new int[weights.length];
+			this.credits = new int[weights.length];
+		}
+
+		boolean offer(MicoSubmission submission) {
+			long length;
+			try {
+				length = submission.getLength();
+			} catch (ManifoldCFException e) {
+				length = 0L;
+			}
+			int lane = Lane.forMediaType(submission.getMediaType()).ordinal();
+			synchronized (this) {
+				PriorityQueue<Pending> queue = queues.get(lane);
+				if (queue.size() >= capacities[lane]) {
+					return false;
+				}
+				Pending pending = new Pending(submission, length, sequence++);
+				queue.add(pending);
+				arrivals.get(lane).addLast(pending);
+				notifyAll();
+				return true;
+			}
+		}
+
+		/**
+		 * Wait for a lane to serve, and take a batch off it. The lane stays
+		 * claimed by the caller until {@link #finished(int)}.
+		 * 
+		 * @return the lane served; the batch is added to the given list.
+		 */
+		synchronized int take(List<MicoSubmission> batch) throws InterruptedException {
+			int lane;
+			while ((lane = pickLane()) < 0) {
+				wait();
+			}
+			active[lane]++;
+
+			Pending first = poll(lane);
+			batch.add(first.submission);
+			long bytes = first.length;
+			long deadline = System.currentTimeMillis() + batchLinger;
+			while (batch.size() < batchSize && bytes < batchBytes) {
+				Pending next = poll(lane);
+				if (next == null) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0L) {
+						break;
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						// Send what we have; the worker stops at its next take
+						Thread.currentThread().interrupt();
+						break;
+					}
+					continue;
+				}
+				batch.add(next.submission);
+				bytes += next.length;
+			}
+			return lane;
+		}
+
+		/**
+		 * Take the smallest submission off a lane, or its oldest once that has
+		 * been passed over often enough.
+		 * 
+		 * @return the submission, or null if the lane is empty.
+		 */
+		private Pending poll(int lane) {
+			PriorityQueue<Pending> queue = queues.get(lane);
+			ArrayDeque<Pending> arrived = arrivals.get(lane);
+			Pending oldest = arrived.peekFirst();
+			Pending next;
+			if (oldest != null && oldest.bypasses >= maximumBypasses) {
+				queue.remove(oldest);
+				next = oldest;
+			} else {
+				next = queue.poll();
+				if (next == null) {
+					return null;
+				}
+				if (next != oldest) {
+					oldest.bypasses++;
+				}
+			}
+			next.taken = true;
+			while (!arrived.isEmpty() && arrived.peekFirst().taken) {
+				arrived.pollFirst();
+			}
+			return next;
+		}
+
+		synchronized void finished(int lane) {
+			active[lane]--;
+			notifyAll();
+		}
+
+		/**
+		 * Take every queued submission off the lanes.
+		 */
+		synchronized List<MicoSubmission> drain() {
+			List<MicoSubmission> drained = new ArrayList<MicoSubmission>();
+			for (int i = 0; i < queues.size(); i++) {
+				for (Pending pending : arrivals.get(i)) {
+					if (!pending.taken) {
+						drained.add(pending.submission);
+					}
+				}
+				queues.get(i).clear();
+				arrivals.get(i).clear();
+			}
+			return drained;
+		}
+
+		/**
+		 * Wait until no batch is in flight.
+		 * 
+		 * @return false if some still were once the timeout had passed.
+		 */
+		synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (true) {
+				int inFlight = 0;
+				for (int count : active) {
+					inFlight += count;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (inFlight == 0 || wait <= 0L) {
+					return inFlight == 0;
+				}
+				wait(wait);
+			}
+		}
+
+		private int pickLane() {
+			int lane = pickLane(true);
+			if (lane < 0) {
+				// No lane with work is below its share; lend the worker
+				lane = pickLane(false);
+			}
+			return lane;
+		}
+
+		private int pickLane(boolean withinShare) {
+			int best = -1;
+			int totalWeight = 0;
+			for (int i = 0; i < weights.length; i++) {
+				if (queues.get(i).isEmpty() || (withinShare && active[i] >= shares[i])) {
+					continue;
+				}
+				credits[i] += weights[i];
+				totalWeight += weights[i];
+				if (best < 0 || credits[i] > credits[best]) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				credits[best] -= totalWeight;
+			}
+			return best;
+		}
+	}
+
+	private static class Worker implements Runnable {
+		private final Scheduler scheduler;
+
+		Worker(Scheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				List<MicoSubmission> batch = new ArrayList<MicoSubmission>();
+				int lane;
+				try {
+					lane = scheduler.take(batch);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					new MicoBatch(batch).run();
+				} catch (RuntimeException e) {
+					Logging.agents.error("Unexpected error in MICO submission worker", e);
+				} finally {
+					scheduler.finished(lane);
+				}
+			}
+		}
+	}
+}
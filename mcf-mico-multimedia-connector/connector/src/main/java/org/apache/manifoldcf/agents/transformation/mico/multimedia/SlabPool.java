@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Process-wide pool of fixed-size direct buffers used by off-heap spools.
+ * 
+ * Callers first reserve the capacity they need against the off-heap budget,
+ * then take slabs one at a time as they fill them. Slabs are recycled rather
+ * than freed, since direct memory is only returned to the system by the
+ * garbage collector. The pool never holds more slabs than the budget allows.
+ */
+public class SlabPool {
+
+	/** Size of one slab. */
+	public static final int SLAB_SIZE = 64 * 1024;
+
+	/** Default total size of all slabs. */
+	protected static final long DEFAULT_BUDGET = 256L * 1024L * 1024L;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> freeSlabs = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicLong reserved = new AtomicLong();
+
+	private SlabPool() {
+	}
+
+	/**
+	 * Number of slabs needed to hold the given number of bytes.
+	 */
+	public static int slabsFor(long bytes) {
+		return (int) ((bytes + SLAB_SIZE - 1) / SLAB_SIZE);
+	}
+
+	/**
+	 * Reserve room for a number of slabs.
+	 * 
+	 * @return false if the off-heap budget does not allow it.
+	 */
+	public static boolean reserve(int slabCount) throws ManifoldCFException {
+		long budget = MicoConfig.getLongProperty(MicoConfig.PROPERTY_SPOOL_OFFHEAP_BUDGET, DEFAULT_BUDGET);
+		long bytes = (long) slabCount * SLAB_SIZE;
+		while (true) {
+			long current = reserved.get();
+			if (current + bytes > budget) {
+				return false;
+			}
+			if (reserved.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back reserved room that is no longer needed. Any slabs taken
+	 * against it must have been released first.
+	 */
+	public static void unreserve(int slabCount) {
+		reserved.addAndGet(-(long) slabCount * SLAB_SIZE);
+	}
+
+	/**
+	 * Get the number of bytes currently reserved against the off-heap budget.
+	 */
+	public static long getReservedBytes() {
+		return reserved.get();
+	}
+
+	/**
+	 * Take a cleared slab. Only call this against a reservation.
+	 */
+	public static ByteBuffer take() {
+		ByteBuffer slab = freeSlabs.poll();
+		if (slab == null) {
+			slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		}
+		return slab;
+	}
+
+	/**
+	 * Return a slab to the pool. It must not be used afterwards.
+	 */
+	public static void release(ByteBuffer slab) {
+		slab.clear();
+		freeSlabs.offer(slab);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Output stream wrapped around a spool, which gathers everything the later
+ * stages need to know about the content while it is being copied: its exact
+ * length, a SHA-256 digest, and the leading bytes used for media type
+ * detection. This way the spool only has to be read back for uploading and
+ * for sending the document downstream.
+ */
+public class SpoolOutputStream extends FilterOutputStream {
+
+	/** Number of leading bytes kept for type sniffing. */
+	public static final int HEADER_SIZE = 8192;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final MessageDigest digest;
+	private final byte[] header = new byte[HEADER_SIZE];
+	private int headerLength = 0;
+	private long length = 0L;
+	private byte[] digestBytes = null;
+	private String digestValue = null;
+
+	public SpoolOutputStream(OutputStream out) {
+		super(out);
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		if (headerLength < HEADER_SIZE) {
+			header[headerLength++] = (byte) b;
+		}
+		digest.update((byte) b);
+		length++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		if (headerLength < HEADER_SIZE) {
+			int amt = Math.min(len, HEADER_SIZE - headerLength);
+			System.arraycopy(b, off, header, headerLength, amt);
+			headerLength += amt;
+		}
+		digest.update(b, off, len);
+		length += len;
+	}
+
+	/** Get the number of bytes written so far. */
+	public long getLength() {
+		return length;
+	}
+
+	/** Get (up to) the first {@link #HEADER_SIZE} bytes written. */
+	public byte[] getHeader() {
+		return Arrays.copyOf(header, headerLength);
+	}
+
+	/**
+	 * Get the SHA-256 digest of the content. This completes the digest, so it
+	 * should only be called once everything has been written.
+	 */
+	public byte[] getDigestBytes() {
+		if (digestBytes == null) {
+			digestBytes = digest.digest();
+		}
+		return digestBytes.clone();
+	}
+
+	/**
+	 * Get the hex encoded SHA-256 digest of the content. This completes the
+	 * digest, so it should only be called once everything has been written.
+	 */
+	public String getDigest() {
+		if (digestValue == null) {
+			byte[] value = getDigestBytes();
+			char[] chars = new char[value.length * 2];
+			for (int i = 0; i < value.length; i++) {
+				chars[i * 2] = HEX[(value[i] >> 4) & 0xf];
+				chars[i * 2 + 1] = HEX[value[i] & 0xf];
+			}
+			digestValue = new String(chars);
+		}
+		return digestValue;
+	}
+}
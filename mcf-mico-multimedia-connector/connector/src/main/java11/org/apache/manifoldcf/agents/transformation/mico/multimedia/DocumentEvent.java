@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Timespan;
+
+/**
+ * Fields shared by the document events. The event spans the whole of the
+ * flight; the MICO calls are timed individually.
+ */
+@Category({ "ManifoldCF", "MICO" })
+public abstract class DocumentEvent extends Event {
+
+	@Label("Document URI")
+	String documentURI;
+
+	@Label("Kind")
+	@Description("document, for a document going through the extractor; submission, for an injection after the document went downstream")
+	String kind;
+
+	@Label("Media Type")
+	String mediaType;
+
+	@Label("Size")
+	@DataAmount
+	long size = -1L;
+
+	@Label("Spool Tier")
+	String spoolTier;
+
+	@Label("Outcome")
+	String outcome;
+
+	@Label("Content Item")
+	String contentItem;
+
+	@Label("Create Time")
+	@Timespan
+	long createTime;
+
+	@Label("Upload Time")
+	@Timespan
+	long uploadTime;
+
+	@Label("Submit Time")
+	@Timespan
+	long submitTime;
+
+	@Label("Failed Call")
+	String failedCall;
+}
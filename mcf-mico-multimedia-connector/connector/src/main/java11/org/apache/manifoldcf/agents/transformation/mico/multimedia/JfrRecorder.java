@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.util.Locale;
+
+/**
+ * Records document flights as JDK Flight Recorder events. Every flight
+ * feeds a {@link MicoDocumentEvent} and a {@link MicoSlowDocumentEvent}; the
+ * recording settings decide which of them are kept.
+ * 
+ * Loaded by name from {@link DocumentFlight}, as it is only compiled on Java
+ * 11 and later.
+ */
+public class JfrRecorder extends DocumentFlight.Recorder {
+
+	@Override
+	protected DocumentFlight begin(String documentURI, String kind) {
+		MicoDocumentEvent event = new MicoDocumentEvent();
+		MicoSlowDocumentEvent slowEvent = new MicoSlowDocumentEvent();
+		if (!event.isEnabled() && !slowEvent.isEnabled()) {
+			return null;
+		}
+		return new JfrFlight(documentURI, kind, event, slowEvent);
+	}
+
+	protected static class JfrFlight extends DocumentFlight {
+
+		private final DocumentEvent[] events;
+
+		protected JfrFlight(String documentURI, String kind, DocumentEvent... events) {
+			this.events = events;
+			for (DocumentEvent event : events) {
+				event.documentURI = documentURI;
+				event.kind = kind;
+				event.begin();
+			}
+		}
+
+		@Override
+		public void setMediaType(String mediaType) {
+			for (DocumentEvent event : events) {
+				event.mediaType = mediaType;
+			}
+		}
+
+		@Override
+		public void setSize(long size) {
+			for (DocumentEvent event : events) {
+				event.size = size;
+			}
+		}
+
+		@Override
+		public void setSpoolTier(String spoolTier) {
+			for (DocumentEvent event : events) {
+				event.spoolTier = spoolTier;
+			}
+		}
+
+		@Override
+		public void setContentItem(String contentItemUri) {
+			for (DocumentEvent event : events) {
+				event.contentItem = contentItemUri;
+			}
+		}
+
+		@Override
+		public void setOutcome(String outcome) {
+			for (DocumentEvent event : events) {
+				event.outcome = outcome;
+			}
+		}
+
+		@Override
+		public void recordCall(MicoMetrics.Stage stage, long start, boolean succeeded) {
+			long elapsed = System.nanoTime() - start;
+			for (DocumentEvent event : events) {
+				switch (stage) {
+				case CREATE:
+					event.createTime += elapsed;
+					break;
+				case UPLOAD:
+					event.uploadTime += elapsed;
+					break;
+				case SUBMIT:
+					event.submitTime += elapsed;
+					break;
+				default:
+					break;
+				}
+				if (!succeeded) {
+					event.failedCall = stage.name().toLowerCase(Locale.ROOT);
+				}
+			}
+		}
+
+		@Override
+		public void end() {
+			for (DocumentEvent event : events) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.commit();
+				}
+			}
+		}
+	}
+}
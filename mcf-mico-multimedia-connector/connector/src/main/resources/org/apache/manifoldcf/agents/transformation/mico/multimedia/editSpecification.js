@@ -18,6 +18,12 @@
 <script type="text/javascript">
 function s${SEQNUM}_checkSpecification()
 {
+  if (editjob.s${SEQNUM}_micomaxconcurrency.value != "" && (!isInteger(editjob.s${SEQNUM}_micomaxconcurrency.value) || parseInt(editjob.s${SEQNUM}_micomaxconcurrency.value) < 1))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('MicoExtractor.MaxConcurrencyMustBeAPositiveInteger'))");
+    editjob.s${SEQNUM}_micomaxconcurrency.focus();
+    return false;
+  }
   return true;
 }
 function s${SEQNUM}_checkSpecificationForSave()
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static final long OPEN_TIME = 1000L;
+	private static final long SLOW_REQUEST = 5000L;
+
+	private TestBreaker breaker;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize();
+	}
+
+	@Before
+	public void setUp() {
+		breaker = new TestBreaker();
+	}
+
+	@Test
+	public void opensOnceEnoughRequestsFailed() {
+		breaker.recordSuccess(10L);
+		breaker.recordFailure(10L);
+		breaker.recordSuccess(10L);
+		assertFalse("below the minimum number of requests", breaker.isOpen());
+		breaker.recordFailure(10L);
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+		assertEquals(breaker.time + OPEN_TIME, breaker.getRetryTime());
+	}
+
+	@Test
+	public void opensOnceEnoughRequestsWereSlow() {
+		for (int i = 0; i < 4; i++) {
+			breaker.recordSuccess(SLOW_REQUEST);
+		}
+		assertTrue(breaker.isOpen());
+	}
+
+	@Test
+	public void halfOpenLetsOneProbeThrough() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertFalse("looking does not claim the probe", breaker.isOpen());
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertTrue("probe is out", breaker.isOpen());
+	}
+
+	@Test
+	public void successfulProbeCloses() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess(10L);
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void failedProbeOpensAgain() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure(10L);
+		assertTrue(breaker.isOpen());
+		assertEquals(breaker.time + OPEN_TIME, breaker.getRetryTime());
+		breaker.time += OPEN_TIME;
+		assertTrue("next probe after another open time", breaker.allowRequest());
+	}
+
+	@Test
+	public void probeHolderIsLetThroughAgain() throws Exception {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		assertTrue("same thread", breaker.allowRequest());
+		final boolean[] allowed = new boolean[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				allowed[0] = breaker.allowRequest();
+			}
+		};
+		other.start();
+		other.join();
+		assertFalse(allowed[0]);
+	}
+
+	@Test
+	public void abandonedProbeIsHandedOn() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		breaker.recordAbandoned();
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.isOpen());
+	}
+
+	@Test
+	public void probeIsOnlyAbandonedByItsOwnThread() throws Exception {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				breaker.recordAbandoned();
+			}
+		};
+		other.start();
+		other.join();
+		assertTrue("probe still out", breaker.isOpen());
+	}
+
+	@Test
+	public void abandoningAReportedProbeChangesNothing() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure(10L);
+		breaker.recordAbandoned();
+		assertTrue(breaker.isOpen());
+	}
+
+	@Test
+	public void unreportedProbeIsGivenUpOn() {
+		open();
+		breaker.time += OPEN_TIME;
+		assertTrue(breaker.allowRequest());
+		breaker.time += SLOW_REQUEST - 1L;
+		assertTrue(breaker.isOpen());
+		breaker.time += 1L;
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+	}
+
+	private void open() {
+		for (int i = 0; i < 4; i++) {
+			breaker.recordFailure(10L);
+		}
+		assertTrue(breaker.isOpen());
+	}
+
+	/**
+	 * Breaker on a clock the test moves by hand, opening once half of at
+	 * least four requests failed or were slow.
+	 */
+	private static class TestBreaker extends CircuitBreaker {
+
+		long time = 1000000L;
+
+		TestBreaker() {
+			super("test", 60000L, 4, 50, SLOW_REQUEST, 50, OPEN_TIME);
+		}
+
+		@Override
+		protected long now() {
+			return time;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DocumentIndexTest {
+
+	private static final String SERVER = "http://mico.example.org:8080";
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		File directory = Files.createTempDirectory("mico-index").toFile();
+		directory.deleteOnExit();
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_INDEX_DIRECTORY,
+				directory.getAbsolutePath()));
+		DocumentIndex.acquire();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		DocumentIndex.release();
+	}
+
+	@Test
+	public void recordedDocumentIsFound() {
+		byte[] key = DocumentIndex.key(SERVER, "file:///found");
+		DocumentIndex.record(key, new DocumentIndex.State(10L, 20L, 30L), "http://mico/ci/1");
+		DocumentIndex.Entry entry = DocumentIndex.lookup(key);
+		assertEquals("http://mico/ci/1", entry.getContentItemUri());
+		assertEquals(10L, entry.getState().getLength());
+		assertEquals(20L, entry.getState().getModified());
+		assertEquals(30L, entry.getState().getChecksum());
+	}
+
+	@Test
+	public void rejectedSubmissionInvalidatesTheEarlierEntry() {
+		byte[] key = DocumentIndex.key(SERVER, "file:///rejected");
+		DocumentIndex.State state = new DocumentIndex.State(10L, 20L, 30L);
+		DocumentIndex.record(key, state, "http://mico/ci/2");
+		MicoSubmission submission = new MicoSubmission(SERVER, "user", "password", "image/png",
+				"file:///rejected", null, null, key, state);
+		submission.rejected();
+		assertNull(DocumentIndex.lookup(key));
+
+		DocumentIndex.record(key, state, "http://mico/ci/3");
+		assertEquals("http://mico/ci/3", DocumentIndex.lookup(key).getContentItemUri());
+	}
+
+	@Test
+	public void keysAreScopedToTheServer() {
+		byte[] key = DocumentIndex.key(SERVER, "file:///scoped");
+		DocumentIndex.record(key, new DocumentIndex.State(1L, 2L, 3L), "http://mico/ci/4");
+		assertNull(DocumentIndex.lookup(DocumentIndex.key("http://other.example.org", "file:///scoped")));
+	}
+
+	@Test
+	public void unchangedDocumentKeepsItsContentItem() throws Exception {
+		byte[] content = MicoExtractorTest.content(MicoExtractorTest.PNG, 2 * DocumentIndex.CHECKSUM_LENGTH);
+		Date modified = new Date(1000000L);
+		DocumentIndex.record(DocumentIndex.key(SERVER, "file:///unchanged.png"),
+				new DocumentIndex.State(content.length, modified.getTime(),
+						DocumentIndex.checksum(content, content.length)),
+				"http://mico/ci/unchanged");
+		RepositoryDocument document = MicoExtractorTest.document("image/png", content);
+		document.setModifiedDate(modified);
+		MicoExtractorTest.Downstream downstream = new MicoExtractorTest.Downstream();
+
+		MicoExtractorTest.add(SERVER, false, "file:///unchanged.png", document, downstream);
+
+		assertEquals("not injected again", 0, StubInjector.server(SERVER).getSubmitted());
+		assertArrayEquals(content, downstream.contents.get(0));
+		assertArrayEquals(new String[] { "http://mico/ci/unchanged" },
+				downstream.sent.get(0).getFieldAsStrings(MicoExtractorTest.DOC_URI_FIELD));
+		assertArrayEquals(new String[] { "false" },
+				downstream.sent.get(0).getFieldAsStrings(MicoExtractorTest.PROCESSED_FIELD));
+	}
+
+	@Test
+	public void documentsWithoutAServerAreNotIndexable() {
+		assertFalse(DocumentIndex.isIndexable(null));
+		assertFalse(DocumentIndex.isIndexable(""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void keyRejectsAMissingServer() {
+		DocumentIndex.key(null, "file:///no-server");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void contentKeyRejectsAMissingServer() {
+		ContentIndex.key(null, new byte[32]);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedIndexTest {
+
+	private File directory;
+	private MappedIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = MicoTestEnvironment.newDirectory("index");
+		index = new MappedIndex(directory, "test");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		index.close();
+	}
+
+	@Test
+	public void keysSharingAFingerprintAreKeptApart() throws Exception {
+		byte[] first = key(1L, 1);
+		byte[] second = key(1L, 2);
+		index.put(first, value("first"));
+		index.put(second, value("second"));
+		assertArrayEquals(value("first"), index.get(first));
+		assertArrayEquals(value("second"), index.get(second));
+		assertNull(index.get(key(1L, 3)));
+		assertEquals(2L, index.size());
+
+		index.put(second, value("replaced"));
+		assertArrayEquals(value("replaced"), index.get(second));
+		assertArrayEquals(value("first"), index.get(first));
+		assertEquals(2L, index.size());
+	}
+
+	@Test
+	public void growingKeepsEveryEntry() throws Exception {
+		int initialCapacity = index.capacity();
+		int entries = initialCapacity;
+		Random random = new Random(11);
+		long[] fingerprints = new long[entries];
+		for (int i = 0; i < entries; i++) {
+			fingerprints[i] = random.nextLong();
+			index.put(key(fingerprints[i], i), value(Integer.toString(i)));
+		}
+		assertTrue("table grew", index.capacity() > initialCapacity);
+		assertEquals(entries, index.size());
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals(value(Integer.toString(i)), index.get(key(fingerprints[i], i)));
+		}
+	}
+
+	@Test
+	public void maintenanceGrowsTheTableBeforeUpdatesHaveTo() throws Exception {
+		int initialCapacity = index.capacity();
+		int entries = (int) (initialCapacity * 0.8);
+		for (int i = 0; i < entries; i++) {
+			index.put(key(i * 0x9e3779b97f4a7c15L, i), value(Integer.toString(i)));
+		}
+		assertEquals("updates only grow the table at 90%", initialCapacity, index.capacity());
+		assertTrue(index.maintain());
+		assertEquals(2 * initialCapacity, index.capacity());
+		assertEquals(entries, index.size());
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals(value(Integer.toString(i)), index.get(key(i * 0x9e3779b97f4a7c15L, i)));
+		}
+		assertFalse("nothing left to do", index.maintain());
+	}
+
+	@Test
+	public void compactingKeepsOnlyTheLatestRecords() throws Exception {
+		byte[] large = new byte[60000];
+		for (int i = 0; i < 100; i++) {
+			large[0] = (byte) i;
+			index.put(key(1L, 1), large);
+		}
+		index.put(key(2L, 2), value("two"));
+		File log = new File(directory, "test.log");
+		long before = log.length();
+		assertTrue(index.maintain());
+		assertTrue("log shrank from " + before + " to " + log.length(), log.length() < 2L * large.length);
+		assertEquals(99, index.get(key(1L, 1))[0]);
+		assertArrayEquals(value("two"), index.get(key(2L, 2)));
+		assertEquals(2L, index.size());
+
+		index.put(key(3L, 3), value("three"));
+		index.close();
+		index = new MappedIndex(directory, "test");
+		assertEquals(3L, index.size());
+		assertEquals(99, index.get(key(1L, 1))[0]);
+		assertArrayEquals(value("three"), index.get(key(3L, 3)));
+	}
+
+	@Test
+	public void reopeningReplaysWhatTheTableMissed() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			index.put(key(i, i), value(Integer.toString(i)));
+		}
+		index.close();
+		assertTrue(new File(directory, "test.tab").delete());
+
+		index = new MappedIndex(directory, "test");
+		assertEquals(100L, index.size());
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(value(Integer.toString(i)), index.get(key(i, i)));
+		}
+	}
+
+	@Test
+	public void checkpointedEntriesSurviveReopening() throws Exception {
+		index.put(key(7L, 7), value("seven"));
+		index.checkpoint();
+		index.close();
+
+		index = new MappedIndex(directory, "test");
+		assertArrayEquals(value("seven"), index.get(key(7L, 7)));
+	}
+
+	@Test
+	public void expectedEntriesPresizeTheTable() throws Exception {
+		index.close();
+		index = new MappedIndex(MicoTestEnvironment.newDirectory("presized"), "test", 1000000L);
+		assertTrue("capacity " + index.capacity(), index.capacity() * 0.7 >= 1000000L);
+	}
+
+	@Test
+	public void closedIndexRejectsLookups() throws Exception {
+		index.close();
+		try {
+			index.get(key(1L, 1));
+			fail("lookup in a closed index");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Make a key whose fingerprint, the leading 8 bytes, is the given value,
+	 * and that is told apart from others with the same fingerprint by the
+	 * given discriminator.
+	 */
+	private static byte[] key(long fingerprint, int discriminator) {
+		byte[] key = new byte[MappedIndex.KEY_LENGTH];
+		for (int i = 0; i < 8; i++) {
+			key[i] = (byte) (fingerprint >>> (56 - 8 * i));
+		}
+		for (int i = 0; i < 4; i++) {
+			key[MappedIndex.KEY_LENGTH - 1 - i] = (byte) (discriminator >>> (8 * i));
+		}
+		return key;
+	}
+
+	private static byte[] value(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
+import org.apache.manifoldcf.agents.interfaces.IPipelineConnector;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.SpecificationNode;
+import org.apache.manifoldcf.core.interfaces.VersionContext;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MicoExtractorTest {
+
+	static final String DOC_URI_FIELD = "mico_uri";
+	static final String PROCESSED_FIELD = "is_processed_mico";
+	static final byte[] PNG = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// One worker and one place per lane, so that a held server fills the
+		// queue
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(MicoConfig.PROPERTY_OUTBOX_DIRECTORY,
+				Files.createTempDirectory("mico-outbox").toFile().getAbsolutePath());
+		properties.put(MicoConfig.PROPERTY_ASYNC_WORKERS, "1");
+		properties.put(MicoConfig.PROPERTY_ASYNC_QUEUE_SIZE, "1");
+		properties.put(MicoConfig.PROPERTY_BATCH_SIZE, "1");
+		MicoTestEnvironment.initialize(properties);
+	}
+
+	@Test
+	public void documentNotForMicoIsForwardedAsItIs() throws Exception {
+		String server = "http://forwarded.example.org";
+		Downstream downstream = new Downstream();
+		RepositoryDocument document = document("application/pdf", content("%PDF-1.4\n", 1000));
+		InputStream original = document.getBinaryStream();
+
+		add(server, false, "file:///forwarded.pdf", document, downstream);
+
+		assertEquals(1, downstream.sent.size());
+		assertSame("the document is not copied", document, downstream.sent.get(0));
+		assertSame("nor is its content spooled", original, downstream.streams.get(0));
+		assertNull(document.getFieldAsStrings(PROCESSED_FIELD));
+		assertEquals(0, StubInjector.server(server).getSubmitted());
+	}
+
+	@Test
+	public void documentIsInjectedBeforeItIsForwarded() throws Exception {
+		String server = "http://synchronous.example.org";
+		Downstream downstream = new Downstream();
+		byte[] content = content(PNG, 100000);
+		RepositoryDocument document = document("image/png", content);
+
+		add(server, false, "file:///synchronous.png", document, downstream);
+
+		assertEquals(1, StubInjector.server(server).getSubmitted());
+		assertEquals(1, downstream.sent.size());
+		assertArrayEquals(content, downstream.contents.get(0));
+		assertArrayEquals(new String[] { "false" }, downstream.sent.get(0).getFieldAsStrings(PROCESSED_FIELD));
+		assertNotSame(document, downstream.sent.get(0));
+	}
+
+	@Test
+	public void sniffedDocumentIsInjected() throws Exception {
+		String server = "http://sniffed.example.org";
+		Downstream downstream = new Downstream();
+		byte[] content = content(PNG, 1000);
+
+		add(server, false, "file:///sniffed", document("application/octet-stream", content), downstream);
+
+		assertEquals(1, StubInjector.server(server).getSubmitted());
+		assertArrayEquals("the sniffed bytes are replayed", content, downstream.contents.get(0));
+	}
+
+	@Test
+	public void queuedDocumentIsForwardedBeforeItIsInjected() throws Exception {
+		String server = "http://queued.example.org";
+		StubInjector.Server mico = StubInjector.server(server);
+		Downstream downstream = new Downstream();
+		byte[] content = content(PNG, 1000);
+
+		mico.hold();
+		try {
+			add(server, true, "file:///queued.png", document("image/png", content), downstream);
+
+			assertEquals(1, downstream.sent.size());
+			assertArrayEquals(content, downstream.contents.get(0));
+			assertNull("there is no content item yet", downstream.sent.get(0).getFieldAsStrings(DOC_URI_FIELD));
+			assertArrayEquals(new String[] { "false" }, downstream.sent.get(0).getFieldAsStrings(PROCESSED_FIELD));
+			assertEquals(0, mico.getSubmitted());
+		} finally {
+			mico.release();
+		}
+		awaitSubmitted(mico, 1);
+	}
+
+	@Test
+	public void documentIsInjectedRightAwayWhileTheQueueIsFull() throws Exception {
+		String heldServer = "http://held.example.org";
+		String server = "http://fallback.example.org";
+		StubInjector.Server held = StubInjector.server(heldServer);
+		Downstream downstream = new Downstream();
+
+		held.hold();
+		try {
+			// The only worker waits on the first, the second takes the only
+			// place in the lane
+			add(heldServer, true, "file:///first.png", document("image/png", content(PNG, 1000)), downstream);
+			awaitWaiting(held, 1);
+			add(heldServer, true, "file:///second.png", document("image/png", content(PNG, 1000)), downstream);
+
+			add(server, true, "file:///third.png", document("image/png", content(PNG, 1000)), downstream);
+			assertEquals("submitted by the crawler thread", 1, StubInjector.server(server).getSubmitted());
+			assertEquals(3, downstream.sent.size());
+		} finally {
+			held.release();
+		}
+		awaitSubmitted(held, 2);
+	}
+
+	@Test
+	public void jpegAndPngAreRecognizedByTheirMagic() throws Exception {
+		assertEquals("image/jpeg", detect(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0 }));
+		assertEquals("image/png", detect(PNG));
+		assertNull("a truncated magic is not enough", detect(new byte[] { (byte) 0xff, (byte) 0xd8 }));
+		assertNull(detect(Arrays.copyOf(PNG, PNG.length - 1)));
+	}
+
+	@Test
+	public void mp4IsRecognizedByItsBrand() throws Exception {
+		for (String brand : new String[] { "isom", "iso2", "iso4", "iso5", "iso6", "mp41", "mp42", "avc1", "dash",
+				"M4V " }) {
+			assertEquals(brand, "video/mp4", detect(ftyp(brand)));
+		}
+		assertNull("QuickTime is not for MICO", detect(ftyp("qt  ")));
+		assertNull("brands are case sensitive", detect(ftyp("ISOM")));
+		assertNull("the brand is needed", detect(Arrays.copyOf(ftyp("isom"), MicoExtractor.MAGIC_LENGTH - 1)));
+	}
+
+	@Test
+	public void otherContentIsLeftToFullDetection() throws Exception {
+		assertNull(detect("%PDF-1.4\n".getBytes("US-ASCII")));
+		assertNull(detect(new byte[0]));
+	}
+
+	static void add(String server, boolean async, String documentURI, RepositoryDocument document,
+			Downstream downstream) throws Exception {
+		Specification specification = specification(server, async);
+		VersionContext pipelineDescription = new VersionContext(
+				new MicoExtractor.SpecPacker(specification).toPackedString(), new ConfigParams(), specification);
+		new MicoExtractor().addOrReplaceDocumentWithException(documentURI, pipelineDescription, document,
+				null, downstream.activity());
+	}
+
+	private static Specification specification(String server, boolean async) {
+		Specification specification = new Specification();
+		add(specification, MicoConfig.NODE_MICO_SERVER, server);
+		add(specification, MicoConfig.NODE_MICO_USER, "user");
+		add(specification, MicoConfig.NODE_MICO_PASSWORD, "password");
+		add(specification, MicoConfig.NODE_MICO_DOC_URI_FIELD, DOC_URI_FIELD);
+		add(specification, MicoConfig.NODE_MICO_ASYNC, Boolean.toString(async));
+		add(specification, MicoConfig.NODE_MICO_PASSTHROUGH, "false");
+		add(specification, MicoConfig.NODE_MICO_MAX_CONCURRENCY, "");
+		return specification;
+	}
+
+	private static void add(Specification specification, String type, String value) {
+		SpecificationNode node = new SpecificationNode(type);
+		node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, value);
+		specification.addChild(specification.getChildCount(), node);
+	}
+
+	static RepositoryDocument document(String mediaType, byte[] content) throws Exception {
+		RepositoryDocument document = new RepositoryDocument();
+		document.setMimeType(mediaType);
+		document.setBinary(new ByteArrayInputStream(content), content.length);
+		return document;
+	}
+
+	/**
+	 * Make content that starts with the given header and continues with
+	 * random bytes.
+	 */
+	static byte[] content(byte[] header, int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		System.arraycopy(header, 0, content, 0, Math.min(header.length, size));
+		return content;
+	}
+
+	private static byte[] content(String header, int size) throws Exception {
+		return content(header.getBytes("US-ASCII"), size);
+	}
+
+	/**
+	 * Detect the media type of content, from as much of its header as the
+	 * extractor reads for that.
+	 */
+	private static String detect(byte[] content) {
+		byte[] header = new byte[SpoolOutputStream.HEADER_SIZE];
+		int length = Math.min(content.length, MicoExtractor.MAGIC_LENGTH);
+		System.arraycopy(content, 0, header, 0, length);
+		return MicoExtractor.detectByMagic(header, length);
+	}
+
+	/**
+	 * Make the start of an ISO base media file with the given major brand.
+	 */
+	private static byte[] ftyp(String brand) throws Exception {
+		byte[] header = new byte[] { 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 0, 0, 0, 0, 0, 0, 0, 0 };
+		System.arraycopy(brand.getBytes("US-ASCII"), 0, header, 8, 4);
+		return header;
+	}
+
+	private static void awaitSubmitted(StubInjector.Server mico, int submitted) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (mico.getSubmitted() < submitted && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10L);
+		}
+		assertEquals(submitted, mico.getSubmitted());
+	}
+
+	private static void awaitWaiting(StubInjector.Server mico, int waiting) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (mico.getWaiting() < waiting && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10L);
+		}
+		assertEquals(waiting, mico.getWaiting());
+	}
+
+	/**
+	 * The next stage of the pipeline, which accepts every document and keeps
+	 * it along with the content it read.
+	 */
+	static class Downstream implements InvocationHandler {
+
+		final List<RepositoryDocument> sent = new ArrayList<RepositoryDocument>();
+		final List<InputStream> streams = new ArrayList<InputStream>();
+		final List<byte[]> contents = new ArrayList<byte[]>();
+
+		IOutputAddActivity activity() {
+			return (IOutputAddActivity) Proxy.newProxyInstance(MicoExtractorTest.class.getClassLoader(),
+					new Class<?>[] { IOutputAddActivity.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("sendDocument")) {
+				RepositoryDocument document = (RepositoryDocument) args[1];
+				sent.add(document);
+				streams.add(document.getBinaryStream());
+				contents.add(IOUtils.toByteArray(document.getBinaryStream()));
+				return Integer.valueOf(IPipelineConnector.DOCUMENTSTATUS_ACCEPTED);
+			}
+			Class<?> type = method.getReturnType();
+			if (type == boolean.class) {
+				return Boolean.TRUE;
+			}
+			if (type == int.class) {
+				return Integer.valueOf(0);
+			}
+			if (type == long.class) {
+				return Long.valueOf(0L);
+			}
+			return null;
+		}
+	}
+}
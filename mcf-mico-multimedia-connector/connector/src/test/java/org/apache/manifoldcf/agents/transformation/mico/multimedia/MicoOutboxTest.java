@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MicoOutboxTest {
+
+	private static final String SERVER = "http://outbox.example.org";
+	private static final String UNKNOWN_SERVER = "http://unknown.example.org";
+
+	private static StubInjector.Server mico;
+
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize();
+		mico = StubInjector.server(SERVER);
+		StubInjector.server(UNKNOWN_SERVER).failOn("create");
+		// As if jobs using these servers were running; they supply the
+		// credentials for retries
+		MicoEndpoint.get(SERVER, "user", "password");
+		MicoEndpoint.get(UNKNOWN_SERVER, "user", "password");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		directory = MicoTestEnvironment.newDirectory("outbox");
+	}
+
+	@Test
+	public void deferredSubmissionsAreReplayedAfterReopening() throws Exception {
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///a", "first")));
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///b", "second")));
+		assertEquals(2, outbox.pendingCount());
+		assertEquals(2, spoolFiles().length);
+
+		MicoOutbox reopened = open(0L);
+		assertEquals(2, reopened.pendingCount());
+		assertEquals("first".length() + "second".length(), reopened.getUsedBytes());
+	}
+
+	@Test
+	public void submittedEntriesAreNotReplayed() throws Exception {
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(SERVER, "file:///done", "content")));
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///failing", "content")));
+		int submitted = mico.getSubmitted();
+		retryAll(outbox);
+		assertEquals(submitted + 1, mico.getSubmitted());
+		assertEquals(1, outbox.pendingCount());
+		assertEquals("content".length(), outbox.getUsedBytes());
+		assertEquals(1, spoolFiles().length);
+
+		MicoOutbox reopened = open(0L);
+		assertEquals(1, reopened.pendingCount());
+	}
+
+	@Test
+	public void compactionKeepsOnlyPendingEntries() throws Exception {
+		MicoOutbox outbox = open(0L);
+		for (int i = 0; i < MicoOutbox.COMPACTION_THRESHOLD; i++) {
+			assertTrue(outbox.add(StubStorage.submission(SERVER, "file:///" + i, "content " + i)));
+		}
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///pending", "pending")));
+		retryAll(outbox);
+		assertEquals(1, outbox.pendingCount());
+
+		List<String> lines = Files.readAllLines(new File(directory, MicoOutbox.JOURNAL_NAME).toPath(),
+				StandardCharsets.UTF_8);
+		assertEquals("journal was rewritten: " + lines, 1, lines.size());
+		assertTrue(lines.get(0).startsWith(MicoOutbox.ADDED + "\t"));
+		assertEquals(1, spoolFiles().length);
+	}
+
+	@Test
+	public void copiesWithoutAnEntryAreRemovedOnOpening() throws Exception {
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///kept", "kept")));
+		File orphan = new File(directory, "orphan.spool");
+		Files.write(orphan.toPath(), new byte[10]);
+
+		open(0L);
+		assertFalse(orphan.exists());
+		assertEquals(1, spoolFiles().length);
+	}
+
+	@Test
+	public void damagedJournalLinesAreSkipped() throws Exception {
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///whole", "whole")));
+		Files.write(new File(directory, MicoOutbox.JOURNAL_NAME).toPath(),
+				(MicoOutbox.ADDED + "\tcut-short").getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		assertEquals(1, open(0L).pendingCount());
+	}
+
+	@Test
+	public void contentBeyondTheQuotaIsNotDeferred() throws Exception {
+		MicoOutbox outbox = open(10L);
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///fits", "12345678")));
+		assertFalse(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///too-big", "12345678")));
+		assertEquals(1, outbox.pendingCount());
+		assertEquals(1, spoolFiles().length);
+		assertEquals(8L, outbox.getUsedBytes());
+	}
+
+	@Test
+	public void missingUserStaysMissingInTheJournal() throws Exception {
+		MicoOutbox.Entry replayed = replay(new MicoOutbox.Entry("id", SERVER, null, "text/plain",
+				"file:///anonymous", null, null, null));
+		assertNull(replayed.micoUser);
+		assertEquals(SERVER, replayed.micoServer);
+
+		replayed = replay(new MicoOutbox.Entry("id", SERVER, "", "text/plain", "file:///empty", null, null, null));
+		assertEquals("", replayed.micoUser);
+	}
+
+	@Test
+	public void passwordIsNotJournaled() throws Exception {
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(UNKNOWN_SERVER, "file:///secret", "content")));
+		String journal = new String(Files.readAllBytes(new File(directory, MicoOutbox.JOURNAL_NAME).toPath()),
+				StandardCharsets.UTF_8);
+		assertFalse(journal.contains("password"));
+	}
+
+	@Test
+	public void indexKeysAndStateAreJournaled() throws Exception {
+		MicoOutbox.Entry replayed = replay(new MicoOutbox.Entry("id", SERVER, "user", "text/plain", "file:///keyed",
+				new byte[] { 1, 2 }, new byte[] { (byte) 0xab, 0 }, new DocumentIndex.State(7L, 1000L, -5L)));
+		assertArrayEquals(new byte[] { 1, 2 }, replayed.contentKey);
+		assertArrayEquals(new byte[] { (byte) 0xab, 0 }, replayed.documentKey);
+		assertEquals(7L, replayed.documentState.getLength());
+		assertEquals(1000L, replayed.documentState.getModified());
+		assertEquals(-5L, replayed.documentState.getChecksum());
+	}
+
+	@Test
+	public void linesWithAPasswordAreStillRead() throws Exception {
+		MicoOutbox.Entry replayed = MicoOutbox.Entry
+				.fromFields(new String[] { MicoOutbox.ADDED, "id", "server", "user", "secret", "text%2Fplain",
+						"file%3A%2F%2F%2Fold", "" });
+		assertEquals("user", replayed.micoUser);
+		assertEquals("text/plain", replayed.mediaType);
+		assertEquals("file:///old", replayed.documentURI);
+		assertNull(replayed.contentKey);
+		assertNull(replayed.documentKey);
+	}
+
+	@Test
+	public void entriesWaitForAJobUsingTheirServer() throws Exception {
+		String idle = "http://idle.example.org";
+		StubInjector.Server idleMico = StubInjector.server(idle);
+		MicoOutbox outbox = open(0L);
+		assertTrue(outbox.add(StubStorage.submission(idle, "file:///waiting", "content")));
+		retryAll(outbox);
+		assertEquals(0, idleMico.getSubmitted());
+		assertEquals(1, outbox.pendingCount());
+
+		MicoEndpoint.get(idle, "user", "password");
+		retryAll(outbox);
+		assertEquals(1, idleMico.getSubmitted());
+		assertEquals(0, outbox.pendingCount());
+	}
+
+	private static MicoOutbox.Entry replay(MicoOutbox.Entry entry) throws Exception {
+		String line = entry.toLine();
+		return MicoOutbox.Entry.fromFields(line.substring(0, line.length() - 1).split("\t", -1));
+	}
+
+	private MicoOutbox open(long quota) throws Exception {
+		return new MicoOutbox(directory, 1L, 1L, quota);
+	}
+
+	/**
+	 * Retry until every entry has been tried at least once.
+	 */
+	private void retryAll(MicoOutbox outbox) throws Exception {
+		int pending = outbox.pendingCount();
+		int retried = 0;
+		while (retried < pending) {
+			retried += outbox.retryDue();
+		}
+	}
+
+	private File[] spoolFiles() {
+		return directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".spool");
+			}
+		});
+	}
+}
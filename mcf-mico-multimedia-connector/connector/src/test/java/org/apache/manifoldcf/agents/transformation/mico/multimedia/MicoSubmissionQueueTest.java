@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MicoSubmissionQueueTest {
+
+	private static final int VIDEO = MicoSubmissionQueue.Lane.VIDEO.ordinal();
+	private static final int IMAGE = MicoSubmissionQueue.Lane.IMAGE.ordinal();
+	private static final int OTHER = MicoSubmissionQueue.Lane.OTHER.ordinal();
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize();
+	}
+
+	@Test
+	public void laneIsServedSmallestFirst() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 8);
+		offer(scheduler, "image/png", "file:///30", 30);
+		offer(scheduler, "image/png", "file:///10", 10);
+		offer(scheduler, "image/png", "file:///20", 20);
+		assertEquals(Arrays.asList("file:///10", "file:///20", "file:///30"), takeAll(scheduler, 3));
+	}
+
+	@Test
+	public void largeSubmissionIsOnlyPassedOverSoOften() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 8);
+		offer(scheduler, "video/mp4", "file:///large", 1000);
+		List<String> served = new ArrayList<String>();
+		for (int i = 0; i < 4; i++) {
+			offer(scheduler, "video/mp4", "file:///small" + i, 1);
+			served.addAll(takeAll(scheduler, 1));
+		}
+		assertEquals(Arrays.asList("file:///small0", "file:///small1", "file:///large", "file:///small2"), served);
+	}
+
+	@Test
+	public void lanesTakeTurnsByWeight() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 8);
+		for (int i = 0; i < 6; i++) {
+			offer(scheduler, "image/png", "file:///image" + i, 1);
+			offer(scheduler, "application/pdf", "file:///other" + i, 1);
+		}
+		int images = 0;
+		for (String documentURI : takeAll(scheduler, 6)) {
+			if (documentURI.startsWith("file:///image")) {
+				images++;
+			}
+		}
+		assertEquals(4, images);
+	}
+
+	@Test
+	public void idleWorkersAreLentToBusyLane() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 8);
+		offer(scheduler, "image/png", "file:///image0", 1);
+		offer(scheduler, "image/png", "file:///image1", 1);
+		List<MicoSubmission> first = new ArrayList<MicoSubmission>();
+		List<MicoSubmission> second = new ArrayList<MicoSubmission>();
+		assertEquals(IMAGE, scheduler.take(first));
+		assertEquals("image lane is beyond its share, but no other lane has work", IMAGE, scheduler.take(second));
+		scheduler.finished(IMAGE);
+		scheduler.finished(IMAGE);
+	}
+
+	@Test
+	public void laneBelowShareGoesFirst() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 8);
+		for (int i = 0; i < 3; i++) {
+			offer(scheduler, "image/png", "file:///image" + i, 1);
+		}
+		List<MicoSubmission> first = new ArrayList<MicoSubmission>();
+		List<MicoSubmission> second = new ArrayList<MicoSubmission>();
+		scheduler.take(first);
+		scheduler.take(second);
+		offer(scheduler, "video/mp4", "file:///video", 1);
+		assertEquals(Arrays.asList("file:///video", "file:///image2"), takeAll(scheduler, 2));
+		scheduler.finished(IMAGE);
+		scheduler.finished(IMAGE);
+	}
+
+	@Test
+	public void fullLaneRefusesMore() throws Exception {
+		MicoSubmissionQueue.Scheduler scheduler = scheduler(2, 1);
+		assertTrue(offer(scheduler, "image/png", "file:///first", 1));
+		assertFalse(offer(scheduler, "image/png", "file:///second", 1));
+		assertTrue("other lanes have room of their own", offer(scheduler, "video/mp4", "file:///video", 1));
+	}
+
+	private static MicoSubmissionQueue.Scheduler scheduler(int maximumBypasses, int capacity) {
+		int[] weights = new int[MicoSubmissionQueue.Lane.values().length];
+		weights[VIDEO] = 1;
+		weights[IMAGE] = 4;
+		weights[OTHER] = 2;
+		int[] capacities = new int[weights.length];
+		int[] shares = new int[weights.length];
+		Arrays.fill(capacities, capacity);
+		Arrays.fill(shares, 1);
+		return new MicoSubmissionQueue.Scheduler(weights, capacities, shares, 1, Long.MAX_VALUE, 0L,
+				maximumBypasses);
+	}
+
+	private static boolean offer(MicoSubmissionQueue.Scheduler scheduler, String mediaType, String documentURI,
+			int length) {
+		return scheduler.offer(new MicoSubmission("http://queue.example.org", "user", "password", mediaType,
+				documentURI, new StubStorage(new byte[length])));
+	}
+
+	/**
+	 * Take the given number of single submission batches, finishing each one
+	 * before taking the next.
+	 */
+	private static List<String> takeAll(MicoSubmissionQueue.Scheduler scheduler, int count) throws Exception {
+		List<String> served = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			List<MicoSubmission> batch = new ArrayList<MicoSubmission>();
+			int lane = scheduler.take(batch);
+			assertEquals(1, batch.size());
+			served.add(batch.get(0).getDocumentURI());
+			scheduler.finished(lane);
+		}
+		return served;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.interfaces.ThreadContextFactory;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * ManifoldCF environment for unit tests, with a properties file in a
+ * temporary directory that is removed on exit. Surefire runs every test class
+ * in a JVM of its own, so each class can initialize it with the connector
+ * properties it needs.
+ */
+public class MicoTestEnvironment {
+
+	private static File directory = null;
+
+	public static void initialize() throws IOException, ManifoldCFException {
+		initialize(Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Initialize ManifoldCF once per JVM with the given connector properties.
+	 */
+	public static synchronized void initialize(Map<String, String> connectorProperties)
+			throws IOException, ManifoldCFException {
+		if (directory != null) {
+			return;
+		}
+		final File newDirectory = Files.createTempDirectory("mcf-mico-test").toFile();
+		StringBuilder extra = new StringBuilder();
+		for (Map.Entry<String, String> property : connectorProperties.entrySet()) {
+			extra.append("  <property name=\"").append(property.getKey()).append("\" value=\"")
+					.append(property.getValue()).append("\"/>\n");
+		}
+		File logging = new File(newDirectory, "logging.ini");
+		FileUtils.writeStringToFile(logging, "log4j.rootLogger=WARN, stdout\n"
+				+ "log4j.appender.stdout=org.apache.log4j.ConsoleAppender\n"
+				+ "log4j.appender.stdout.layout=org.apache.log4j.PatternLayout\n"
+				+ "log4j.appender.stdout.layout.ConversionPattern=%5p %m%n\n", StandardCharsets.UTF_8);
+		File properties = new File(newDirectory, "properties.xml");
+		FileUtils.writeStringToFile(properties, "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+				+ "<configuration>\n"
+				+ "  <property name=\"org.apache.manifoldcf.logconfigfile\" value=\"" + logging.getAbsolutePath() + "\"/>\n"
+				+ "  <property name=\"org.apache.manifoldcf.mico.spool.directory\" value=\""
+				+ new File(newDirectory, "spool").getAbsolutePath() + "\"/>\n"
+				+ "  <property name=\"" + MicoConfig.PROPERTY_CLIENT_FACTORY + "\" value=\""
+				+ StubInjector.Factory.class.getName() + "\"/>\n"
+				+ extra
+				+ "</configuration>\n", StandardCharsets.UTF_8);
+		System.setProperty("org.apache.manifoldcf.configfile", properties.getAbsolutePath());
+		ManifoldCF.initializeEnvironment(ThreadContextFactory.make());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				FileUtils.deleteQuietly(newDirectory);
+			}
+		});
+		directory = newDirectory;
+	}
+
+	/**
+	 * Create an empty directory for one test.
+	 */
+	public static synchronized File newDirectory(String name) throws IOException, ManifoldCFException {
+		initialize();
+		return Files.createTempDirectory(directory.toPath(), name).toFile();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OffHeapDestinationStorageTest {
+
+	/** Off-heap budget of the test JVM, in slabs. */
+	private static final int BUDGET_SLABS = 4;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_SPOOL_OFFHEAP_BUDGET,
+				Long.toString((long) BUDGET_SLABS * SlabPool.SLAB_SIZE)));
+	}
+
+	@After
+	public void tearDown() {
+		assertEquals("every reservation was given back", 0L, SlabPool.getReservedBytes());
+	}
+
+	@Test
+	public void contentSpanningSeveralSlabsIsReplayed() throws Exception {
+		byte[] content = content(2 * SlabPool.SLAB_SIZE + 100);
+		MicoExtractor.OffHeapDestinationStorage ds = MicoExtractor.OffHeapDestinationStorage.create(content.length);
+		assertNotNull(ds);
+		try {
+			write(ds, content);
+			assertEquals(content.length, ds.getBinaryLength());
+			assertArrayEquals(content, read(ds));
+			assertArrayEquals("views can be opened again", content, read(ds));
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void documentBeyondTheBudgetIsNotSpooledOffHeap() throws Exception {
+		assertNull(MicoExtractor.OffHeapDestinationStorage.create((long) (BUDGET_SLABS + 1) * SlabPool.SLAB_SIZE));
+	}
+
+	@Test
+	public void openViewKeepsTheSlabsReserved() throws Exception {
+		byte[] content = content(1000);
+		MicoExtractor.OffHeapDestinationStorage ds = MicoExtractor.OffHeapDestinationStorage.create(content.length);
+		write(ds, content);
+		InputStream view = ds.getInputStream();
+		ds.close();
+		assertEquals(SlabPool.SLAB_SIZE, SlabPool.getReservedBytes());
+		assertArrayEquals(content, IOUtils.toByteArray(view));
+		view.close();
+	}
+
+	@Test
+	public void documentOutgrowingTheBudgetSpillsToDiskAndFreesItsSlabs() throws Exception {
+		byte[] content = content((BUDGET_SLABS + 2) * SlabPool.SLAB_SIZE);
+		MicoExtractor.OffHeapDestinationStorage ds = MicoExtractor.OffHeapDestinationStorage.create(1L);
+		try {
+			write(ds, content);
+			assertNotNull(ds.overflow);
+			assertEquals("spilled document keeps no off-heap budget", 0L, SlabPool.getReservedBytes());
+			assertTrue(SlabPool.reserve(BUDGET_SLABS));
+			SlabPool.unreserve(BUDGET_SLABS);
+			assertEquals(content.length, ds.getBinaryLength());
+			assertArrayEquals(content, read(ds));
+		} finally {
+			ds.close();
+		}
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+
+	private static void write(MicoExtractor.DestinationStorage ds, byte[] content) throws Exception {
+		OutputStream os = ds.getOutputStream();
+		try {
+			// Uneven writes, so that they straddle slab boundaries
+			int offset = 0;
+			int chunk = 1;
+			while (offset < content.length) {
+				int amount = Math.min(chunk, content.length - offset);
+				os.write(content, offset, amount);
+				offset += amount;
+				chunk = Math.min(chunk * 3 + 1, SlabPool.SLAB_SIZE);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	private static byte[] read(MicoExtractor.DestinationStorage ds) throws Exception {
+		InputStream is = ds.getInputStream();
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+}
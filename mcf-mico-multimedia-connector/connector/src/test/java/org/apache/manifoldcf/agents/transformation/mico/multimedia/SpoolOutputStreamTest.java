@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpoolOutputStreamTest {
+
+	@Test
+	public void contentIsPassedOnAndMeasured() throws Exception {
+		byte[] content = content(3 * SpoolOutputStream.HEADER_SIZE + 17);
+		ByteArrayOutputStream spool = new ByteArrayOutputStream();
+		SpoolOutputStream os = new SpoolOutputStream(spool);
+		os.write(content[0]);
+		os.write(content, 1, 99);
+		os.write(content, 100, content.length - 100);
+		os.close();
+
+		assertArrayEquals(content, spool.toByteArray());
+		assertEquals(content.length, os.getLength());
+		assertArrayEquals("header stops at its size", Arrays.copyOf(content, SpoolOutputStream.HEADER_SIZE),
+				os.getHeader());
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), os.getDigestBytes());
+	}
+
+	@Test
+	public void shortContentIsTheWholeHeader() throws Exception {
+		byte[] content = content(10);
+		SpoolOutputStream os = new SpoolOutputStream(new ByteArrayOutputStream());
+		for (byte b : content) {
+			os.write(b);
+		}
+		os.close();
+
+		assertEquals(10L, os.getLength());
+		assertArrayEquals(content, os.getHeader());
+	}
+
+	@Test
+	public void digestIsLowerCaseHex() throws Exception {
+		SpoolOutputStream os = new SpoolOutputStream(new ByteArrayOutputStream());
+		os.write("abc".getBytes("US-ASCII"));
+		os.close();
+
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", os.getDigest());
+		assertArrayEquals("digest can be asked for again", MessageDigest.getInstance("SHA-256")
+				.digest("abc".getBytes("US-ASCII")), os.getDigestBytes());
+	}
+
+	@Test
+	public void emptyContentHasEmptyHeader() throws Exception {
+		SpoolOutputStream os = new SpoolOutputStream(new ByteArrayOutputStream());
+		os.close();
+
+		assertEquals(0L, os.getLength());
+		assertEquals(0, os.getHeader().length);
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", os.getDigest());
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.multimedia;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.MicoClientFactory;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+import org.zaizi.mico.client.model.ContentPart;
+
+/**
+ * An injector that answers in-process. The {@link MicoTestEnvironment} makes
+ * {@link Factory} the MICO client factory, so every endpoint uses these.
+ * Submissions are counted per server, and requests can be made to fail or
+ * to wait.
+ */
+public class StubInjector implements Injector {
+
+	private static final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+	private final Server server;
+
+	StubInjector(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Get what the stub MICO server at the given address has been sent.
+	 */
+	public static Server server(String micoServer) {
+		Server server = servers.get(micoServer);
+		if (server == null) {
+			Server candidate = new Server();
+			server = servers.putIfAbsent(micoServer, candidate);
+			if (server == null) {
+				server = candidate;
+			}
+		}
+		return server;
+	}
+
+	@Override
+	public ContentItem createContentItem() throws MicoClientException {
+		server.check("create");
+		server.await();
+		return new ContentItem();
+	}
+
+	@Override
+	public ContentPart addContentPart(ContentItem ci, String mimeType, String name, InputStream is)
+			throws MicoClientException {
+		server.check(name);
+		try {
+			IOUtils.copyLarge(is, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (IOException e) {
+			throw new MicoClientException("Could not read the upload of " + name, e);
+		}
+		return new ContentPart();
+	}
+
+	@Override
+	public void submitContentItem(ContentItem ci) throws MicoClientException {
+		server.check("submit");
+		server.submitted.incrementAndGet();
+	}
+
+	/**
+	 * Hands out {@link StubInjector}s in place of real injectors.
+	 */
+	public static class Factory extends MicoClientFactory {
+
+		private final String micoServer;
+
+		public Factory(String micoServer, String micoUser, String micoPassword) {
+			super(micoServer, micoUser, micoPassword);
+			this.micoServer = micoServer;
+		}
+
+		@Override
+		public Injector createInjectorClient() {
+			return new StubInjector(server(micoServer));
+		}
+	}
+
+	/**
+	 * The requests made to one stub MICO server.
+	 */
+	public static class Server {
+
+		final AtomicInteger submitted = new AtomicInteger();
+		private final AtomicInteger waiting = new AtomicInteger();
+		private volatile String failing = null;
+		private volatile CountDownLatch held = null;
+
+		/**
+		 * Fail the requests whose part name contains the given text, or that
+		 * create ("create") or submit ("submit") a content item. Null lets
+		 * everything through.
+		 */
+		public void failOn(String failing) {
+			this.failing = failing;
+		}
+
+		public int getSubmitted() {
+			return submitted.get();
+		}
+
+		/**
+		 * Keep requests to create a content item waiting until
+		 * {@link #release()}.
+		 */
+		public void hold() {
+			held = new CountDownLatch(1);
+		}
+
+		/**
+		 * Let the requests kept waiting by {@link #hold()} go on.
+		 */
+		public void release() {
+			CountDownLatch current = held;
+			held = null;
+			if (current != null) {
+				current.countDown();
+			}
+		}
+
+		/**
+		 * Get the number of requests kept waiting by {@link #hold()}.
+		 */
+		public int getWaiting() {
+			return waiting.get();
+		}
+
+		private void check(String request) throws MicoClientException {
+			String current = failing;
+			if (current != null && request.contains(current)) {
+				throw new MicoClientException("Stub failure of " + request);
+			}
+		}
+
+		private void await() throws MicoClientException {
+			CountDownLatch current = held;
+			if (current == null) {
+				return;
+			}
+			waiting.incrementAndGet();
+			try {
+				current.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MicoClientException("Interrupted while held", e);
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+	}
+}
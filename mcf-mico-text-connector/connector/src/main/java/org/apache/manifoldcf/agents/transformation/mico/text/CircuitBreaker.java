@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Circuit breaker for the requests to one MICO endpoint.
+ * 
+ * Outcomes of recent requests are counted in a rolling window of time
+ * buckets. Once the window holds enough requests and too many of them failed
+ * or took too long, the breaker opens and no requests are let through for a
+ * while. After that, a single probe request is let through (half-open): if
+ * it succeeds the breaker closes again, otherwise it stays open for another
+ * period.
+ * 
+ * The thresholds are read from the ManifoldCF properties file when the
+ * breaker is created.
+ */
+public class CircuitBreaker {
+
+	/** Default length of the rolling window. */
+	protected static final long DEFAULT_WINDOW = 60000L;
+	/** Default minimum number of requests in the window before the breaker may open. */
+	protected static final int DEFAULT_MINIMUM_REQUESTS = 20;
+	/** Default percentage of failed requests that opens the breaker. */
+	protected static final int DEFAULT_FAILURE_RATE = 50;
+	/** Default duration after which a request counts as slow. */
+	protected static final long DEFAULT_SLOW_REQUEST = 60000L;
+	/** Default percentage of slow requests that opens the breaker. */
+	protected static final int DEFAULT_SLOW_RATE = 80;
+	/** Default time the breaker stays open before letting a probe through. */
+	protected static final long DEFAULT_OPEN_TIME = 30000L;
+
+	protected static final int BUCKET_COUNT = 10;
+
+	protected enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final long bucketLength;
+	private final int minimumRequests;
+	private final int failureRate;
+	private final long slowRequest;
+	private final int slowRate;
+	private final long openTime;
+
+	private final long[] bucketStarts = new long[BUCKET_COUNT];
+	private final int[] requests = new int[BUCKET_COUNT];
+	private final int[] failures = new int[BUCKET_COUNT];
+	private final int[] slowRequests = new int[BUCKET_COUNT];
+
+	private State state = State.CLOSED;
+	private long openUntil = 0L;
+	private boolean probing = false;
+	private long probeStarted = 0L;
+	/** The thread that claimed the probe, see {@link #recordAbandoned()}. */
+	private Thread prober = null;
+
+	public CircuitBreaker(String name) throws ManifoldCFException {
+		this(name, MicoConfig.getLongProperty(MicoConfig.PROPERTY_BREAKER_WINDOW, DEFAULT_WINDOW),
+				MicoConfig.getIntProperty(MicoConfig.PROPERTY_BREAKER_MINIMUM_REQUESTS, DEFAULT_MINIMUM_REQUESTS),
+				MicoConfig.getIntProperty(MicoConfig.PROPERTY_BREAKER_FAILURE_RATE, DEFAULT_FAILURE_RATE),
+				MicoConfig.getLongProperty(MicoConfig.PROPERTY_BREAKER_SLOW_REQUEST, DEFAULT_SLOW_REQUEST),
+				MicoConfig.getIntProperty(MicoConfig.PROPERTY_BREAKER_SLOW_RATE, DEFAULT_SLOW_RATE),
+				MicoConfig.getLongProperty(MicoConfig.PROPERTY_BREAKER_OPEN_TIME, DEFAULT_OPEN_TIME));
+	}
+
+	/**
+	 * Create a breaker with the given thresholds instead of the configured
+	 * ones.
+	 */
+	protected CircuitBreaker(String name, long window, int minimumRequests, int failureRate, long slowRequest,
+			int slowRate, long openTime) {
+		this.name = name;
+		this.bucketLength = Math.max(BUCKET_COUNT, window) / BUCKET_COUNT;
+		this.minimumRequests = Math.max(1, minimumRequests);
+		this.failureRate = failureRate;
+		this.slowRequest = slowRequest;
+		this.slowRate = slowRate;
+		this.openTime = Math.max(1L, openTime);
+	}
+
+	/**
+	 * Check whether a request may be made. In the half-open state only one
+	 * caller at a time gets to probe; it should report the outcome through
+	 * {@link #recordSuccess(long)} or {@link #recordFailure(long)}, or hand
+	 * the probe on through {@link #recordAbandoned()} if it gives up before
+	 * MICO answers. A probe that never reports back is given up on after the
+	 * open time or the slow request time, whichever is longer.
+	 * 
+	 * Callers that only want to know whether to bother should use
+	 * {@link #isOpen()}, and claim the probe right before the request. The
+	 * thread holding the probe is let through again, so a caller may claim it
+	 * on behalf of code that claims it itself.
+	 */
+	public synchronized boolean allowRequest() {
+		if (isOpen()) {
+			return state == State.HALF_OPEN && probing && prober == Thread.currentThread();
+		}
+		if (state == State.HALF_OPEN) {
+			probing = true;
+			probeStarted = now();
+			prober = Thread.currentThread();
+			Logging.agents.info("Probing MICO endpoint " + name);
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether requests are currently being held back, without claiming
+	 * the probe of the half-open state.
+	 */
+	public synchronized boolean isOpen() {
+		long now = now();
+		if (state == State.OPEN) {
+			if (now < openUntil) {
+				return true;
+			}
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+		if (state == State.HALF_OPEN && probing) {
+			return now - probeStarted < Math.max(openTime, slowRequest);
+		}
+		return false;
+	}
+
+	/**
+	 * Get the time at which requests are expected to be let through again.
+	 */
+	public synchronized long getRetryTime() {
+		long now = now();
+		if (state == State.OPEN && openUntil > now) {
+			return openUntil;
+		}
+		// Half-open: wait for the probe to come back
+		return now + Math.min(openTime, 5000L);
+	}
+
+	/**
+	 * Report a request that succeeded.
+	 * 
+	 * @param latency
+	 *            is the time the request took, in milliseconds.
+	 */
+	public synchronized void recordSuccess(long latency) {
+		if (state == State.HALF_OPEN) {
+			Logging.agents.info("MICO endpoint " + name + " is available again");
+			state = State.CLOSED;
+			probing = false;
+			prober = null;
+			reset();
+		}
+		record(false, latency);
+	}
+
+	/**
+	 * Report a request that failed.
+	 * 
+	 * @param latency
+	 *            is the time until the request failed, in milliseconds.
+	 */
+	public synchronized void recordFailure(long latency) {
+		if (state == State.HALF_OPEN) {
+			open("the probe failed");
+			return;
+		}
+		record(true, latency);
+	}
+
+	/**
+	 * Report that the calling thread gave up on a request before MICO
+	 * answered, for instance because the content could not be read. This
+	 * does not count towards the rates, but if the request was the half-open
+	 * probe, the next caller gets to probe instead of waiting for it to time
+	 * out. Does nothing once the outcome of the request has been reported.
+	 */
+	public synchronized void recordAbandoned() {
+		if (state == State.HALF_OPEN && probing && prober == Thread.currentThread()) {
+			probing = false;
+			prober = null;
+		}
+	}
+
+	/**
+	 * Get the current time in milliseconds.
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private void record(boolean failed, long latency) {
+		if (state != State.CLOSED) {
+			return;
+		}
+		long now = now();
+		long bucketStart = now - now % bucketLength;
+		int bucket = (int) ((now / bucketLength) % BUCKET_COUNT);
+		if (bucketStarts[bucket] != bucketStart) {
+			bucketStarts[bucket] = bucketStart;
+			requests[bucket] = 0;
+			failures[bucket] = 0;
+			slowRequests[bucket] = 0;
+		}
+		requests[bucket]++;
+		if (failed) {
+			failures[bucket]++;
+		}
+		if (latency >= slowRequest) {
+			slowRequests[bucket]++;
+		}
+
+		long windowStart = bucketStart - (BUCKET_COUNT - 1) * bucketLength;
+		int totalRequests = 0;
+		int totalFailures = 0;
+		int totalSlow = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (bucketStarts[i] >= windowStart) {
+				totalRequests += requests[i];
+				totalFailures += failures[i];
+				totalSlow += slowRequests[i];
+			}
+		}
+		if (totalRequests < minimumRequests) {
+			return;
+		}
+		if (totalFailures * 100 >= failureRate * totalRequests) {
+			open(totalFailures + " of the last " + totalRequests + " requests failed");
+		} else if (totalSlow * 100 >= slowRate * totalRequests) {
+			open(totalSlow + " of the last " + totalRequests + " requests took over " + slowRequest + " ms");
+		}
+	}
+
+	private void open(String reason) {
+		state = State.OPEN;
+		probing = false;
+		prober = null;
+		openUntil = now() + openTime;
+		reset();
+		Logging.agents.warn("Not sending requests to MICO endpoint " + name + " for " + openTime + " ms: " + reason);
+	}
+
+	private void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			bucketStarts[i] = 0L;
+			requests[i] = 0;
+			failures[i] = 0;
+			slowRequests[i] = 0;
+		}
+	}
+}
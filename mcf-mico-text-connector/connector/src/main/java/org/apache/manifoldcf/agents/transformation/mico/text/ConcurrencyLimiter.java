@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Limits the number of injections in flight to one MICO endpoint, adapting
+ * the limit to how the server copes, much like TCP congestion control.
+ * 
+ * Every injection reports the round-trip time of its content item creation,
+ * a request that carries no payload, so its latency reflects the load on the
+ * server rather than the size of the document. While round trips stay close
+ * to the lowest recently seen, and the current limit is actually used, the
+ * limit grows by one per limit's worth of samples (additive increase). A
+ * failure or a round trip over twice the baseline cuts the limit by a tenth
+ * (multiplicative decrease), at most once per round trip so that a single
+ * slow spell does not collapse it.
+ * 
+ * The limit never exceeds the configured maximum, nor the lowest ceiling
+ * asked for by the jobs currently using the endpoint.
+ */
+public class ConcurrencyLimiter {
+
+	/** Default limit to start from. */
+	protected static final int DEFAULT_INITIAL_LIMIT = 8;
+	/** Default upper bound for the limit. */
+	protected static final int DEFAULT_MAXIMUM_LIMIT = 64;
+
+	protected static final double MINIMUM_LIMIT = 1.0;
+	protected static final double BACKOFF_RATIO = 0.9;
+	protected static final double LATENCY_TOLERANCE = 2.0;
+	/** Number of samples after which the baseline round trip is re-established. */
+	protected static final int BASELINE_SAMPLES = 100;
+	/** Time after which a ceiling that is no longer asked for is dropped. */
+	protected static final long CEILING_EXPIRY = 60000L;
+
+	private final String name;
+	private final int maximumLimit;
+
+	private double limit;
+	private int ceiling = Integer.MAX_VALUE;
+	/** Ceilings asked for, with the time each was last asked for. */
+	private final Map<Integer, Long> ceilings = new HashMap<Integer, Long>();
+	private int inFlight = 0;
+
+	private long baseline = 0L;
+	private long windowMinimum = Long.MAX_VALUE;
+	private int windowSamples = 0;
+	private long lastDecrease = 0L;
+
+	public ConcurrencyLimiter(String name) throws ManifoldCFException {
+		this.name = name;
+		this.maximumLimit = Math.max(1,
+				MicoConfig.getIntProperty(MicoConfig.PROPERTY_CONCURRENCY_MAXIMUM, DEFAULT_MAXIMUM_LIMIT));
+		this.limit = Math.min(maximumLimit,
+				Math.max(1, MicoConfig.getIntProperty(MicoConfig.PROPERTY_CONCURRENCY_INITIAL, DEFAULT_INITIAL_LIMIT)));
+	}
+
+	/**
+	 * Ask for a fixed upper bound for the limit on behalf of a job. Jobs ask
+	 * again with every document, and the lowest ceiling asked for within the
+	 * last {@link #CEILING_EXPIRY} milliseconds applies, so jobs sharing the
+	 * endpoint do not undo each other's ceilings, and one that has finished
+	 * stops holding the others back. A value of 0 or less asks for none.
+	 */
+	public synchronized void requestCeiling(int ceiling) {
+		if (ceiling > 0) {
+			ceilings.put(ceiling, now());
+		}
+		updateCeiling();
+	}
+
+	private void updateCeiling() {
+		long now = now();
+		int newCeiling = Integer.MAX_VALUE;
+		Iterator<Map.Entry<Integer, Long>> i = ceilings.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, Long> entry = i.next();
+			if (now - entry.getValue() > CEILING_EXPIRY) {
+				i.remove();
+			} else {
+				newCeiling = Math.min(newCeiling, entry.getKey());
+			}
+		}
+		if (ceiling != newCeiling) {
+			ceiling = newCeiling;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until another injection may start.
+	 */
+	public synchronized void acquire() throws ManifoldCFException {
+		try {
+			while (true) {
+				updateCeiling();
+				if (inFlight < getLimit()) {
+					break;
+				}
+				wait(CEILING_EXPIRY);
+			}
+		} catch (InterruptedException e) {
+			throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Start another injection if the limit allows it right now, without
+	 * waiting.
+	 * 
+	 * @return false if it does not, in which case nothing has to be released.
+	 */
+	public synchronized boolean tryAcquire() {
+		updateCeiling();
+		if (inFlight >= getLimit()) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Signal that an injection has finished.
+	 */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Report the round-trip time of a request, and whether it succeeded.
+	 */
+	public synchronized void sample(long roundTrip, boolean succeeded) {
+		roundTrip = Math.max(1L, roundTrip);
+		windowMinimum = Math.min(windowMinimum, roundTrip);
+		if (++windowSamples >= BASELINE_SAMPLES || baseline == 0L) {
+			baseline = windowMinimum;
+			windowMinimum = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+
+		int previous = getLimit();
+		long now = now();
+		if (!succeeded || roundTrip > baseline * LATENCY_TOLERANCE) {
+			if (now - lastDecrease >= roundTrip) {
+				limit = Math.max(MINIMUM_LIMIT, limit * BACKOFF_RATIO);
+				lastDecrease = now;
+			}
+		} else if (inFlight >= previous - 1) {
+			limit = Math.min(maximumLimit, limit + 1.0 / limit);
+		}
+
+		int current = getLimit();
+		if (current != previous) {
+			notifyAll();
+			if (Logging.agents.isDebugEnabled()) {
+				Logging.agents.debug("MICO concurrency limit for " + name + " is now " + current + " (round trip "
+						+ roundTrip + " ms, baseline " + baseline + " ms)");
+			}
+		}
+	}
+
+	/**
+	 * Get the current number of injections allowed in flight.
+	 */
+	public synchronized int getLimit() {
+		return Math.max(1, Math.min((int) limit, ceiling));
+	}
+
+	/**
+	 * Get the number of injections currently in flight.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get the current time in milliseconds.
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+}
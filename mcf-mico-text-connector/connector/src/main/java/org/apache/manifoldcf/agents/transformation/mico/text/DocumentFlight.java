@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import org.apache.manifoldcf.agents.system.Logging;
+
+/**
+ * The flight recording of one document: what it was, where it was spooled,
+ * and how long each MICO call took. Recorded as JDK Flight Recorder events
+ * when the connector was built and runs on Java 11 or later, see
+ * {@code JfrRecorder}; otherwise every method does nothing.
+ */
+public class DocumentFlight {
+
+	/** A document going through the extractor. */
+	public static final String KIND_DOCUMENT = "document";
+	/** A submission injected by a worker or the outbox, after its document went downstream. */
+	public static final String KIND_SUBMISSION = "submission";
+
+	private static final DocumentFlight NONE = new DocumentFlight();
+	private static final Recorder recorder = loadRecorder();
+
+	/**
+	 * Start recording a document.
+	 * 
+	 * @param documentURI
+	 *            is the document's URI.
+	 * @param kind
+	 *            is {@link #KIND_DOCUMENT} or {@link #KIND_SUBMISSION}.
+	 * @return the flight, or one that records nothing if flight recording is
+	 *         not available or not enabled.
+	 */
+	public static DocumentFlight begin(String documentURI, String kind) {
+		if (recorder == null) {
+			return NONE;
+		}
+		DocumentFlight flight = recorder.begin(documentURI, kind);
+		return flight == null ? NONE : flight;
+	}
+
+	private static Recorder loadRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		try {
+			return (Recorder) Class.forName(DocumentFlight.class.getPackage().getName() + ".JfrRecorder")
+					.newInstance();
+		} catch (ClassNotFoundException e) {
+			// Built without the Java 11 sources
+			return null;
+		} catch (Exception e) {
+			Logging.agents.warn("Could not set up MICO flight recording", e);
+			return null;
+		} catch (LinkageError e) {
+			Logging.agents.warn("Could not set up MICO flight recording", e);
+			return null;
+		}
+	}
+
+	public void setMediaType(String mediaType) {
+	}
+
+	public void setSize(long size) {
+	}
+
+	/**
+	 * Set where the content was spooled: memory, offheap or disk.
+	 */
+	public void setSpoolTier(String spoolTier) {
+	}
+
+	public void setContentItem(String contentItemUri) {
+	}
+
+	/**
+	 * Set how processing ended, e.g. injected, queued, or the
+	 * {@link MicoMetrics.Skip} reason it bypassed MICO.
+	 */
+	public void setOutcome(String outcome) {
+	}
+
+	/**
+	 * Record a MICO call that started at the given {@link System#nanoTime()}
+	 * and has just returned.
+	 */
+	public void recordCall(MicoMetrics.Stage stage, long start, boolean succeeded) {
+	}
+
+	/**
+	 * Finish the recording. Nothing may be recorded afterwards.
+	 */
+	public void end() {
+	}
+
+	/**
+	 * Creates the flights; implemented on top of the JDK Flight Recorder.
+	 */
+	protected static abstract class Recorder {
+
+		/**
+		 * @return a new flight, or null if nothing would be recorded.
+		 */
+		protected abstract DocumentFlight begin(String documentURI, String kind);
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * Remembers, per document URI and MICO server, what a document looked like
+ * when it was last injected and which content item was created for it. A
+ * re-crawled document with the same length, modification date and leading
+ * bytes is taken to be unchanged, and keeps its content item without its
+ * text being extracted or injected again.
+ * 
+ * The index lives in the directory named by the
+ * {@link MicoConfig#PROPERTY_INDEX_DIRECTORY} property and is disabled when
+ * that is not set. Problems with the index are logged and otherwise ignored.
+ */
+public class DocumentIndex {
+
+	/** Distinct from the multimedia connector's index, which may share the directory. */
+	protected static final String INDEX_NAME = "text-documents";
+
+	/** Default time between writing changes through to disk. */
+	protected static final long DEFAULT_CHECKPOINT_INTERVAL = 10000L;
+
+	/** Number of leading bytes covered by the checksum. */
+	public static final int CHECKSUM_LENGTH = 8192;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static MappedIndex index = null;
+	private static boolean initialized = false;
+	/** Connector instances currently connected, see {@link #acquire()}. */
+	private static int users = 0;
+	private static long lastCheckpoint = 0L;
+
+	private DocumentIndex() {
+	}
+
+	/**
+	 * What a document looked like when it was injected.
+	 */
+	public static class State {
+
+		private final long length;
+		private final long modified;
+		private final long checksum;
+
+		/**
+		 * @param modified
+		 *            is the modification date in milliseconds.
+		 * @param checksum
+		 *            is the {@link DocumentIndex#checksum} of the leading bytes.
+		 */
+		public State(long length, long modified, long checksum) {
+			this.length = length;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		public long getChecksum() {
+			return checksum;
+		}
+	}
+
+	/**
+	 * The state of a document when it was last injected, and the content item
+	 * created for it.
+	 */
+	public static class Entry {
+
+		private final State state;
+		private final String contentItemUri;
+
+		public Entry(State state, String contentItemUri) {
+			this.state = state;
+			this.contentItemUri = contentItemUri;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public String getContentItemUri() {
+			return contentItemUri;
+		}
+	}
+
+	/**
+	 * Check whether documents are being tracked at all, so callers can skip
+	 * the work of building keys and checksums.
+	 */
+	public static boolean isEnabled() {
+		return getIndex() != null;
+	}
+
+	/**
+	 * Build the index key for a document URI on the given MICO server.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if no server is given; see {@link #isIndexable}.
+	 */
+	public static byte[] key(String micoServer, String documentURI) {
+		if (!isIndexable(micoServer)) {
+			throw new IllegalArgumentException("No MICO server to index " + documentURI + " under");
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(micoServer.getBytes(UTF8));
+			digest.update((byte) 0);
+			digest.update(documentURI.getBytes(UTF8));
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Check whether documents for a MICO server can be indexed at all. Keys
+	 * are scoped to the server, so there is nothing to scope them to while the
+	 * specification does not name one yet.
+	 */
+	public static boolean isIndexable(String micoServer) {
+		return micoServer != null && micoServer.length() > 0;
+	}
+
+	/**
+	 * Compute the checksum of a document's leading bytes.
+	 * 
+	 * @param header
+	 *            holds the first {@link #CHECKSUM_LENGTH} bytes of the
+	 *            document, or all of it if it is shorter.
+	 */
+	public static long checksum(byte[] header, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(header, 0, Math.min(length, CHECKSUM_LENGTH));
+		return crc.getValue();
+	}
+
+	/**
+	 * Look up what is known about a document.
+	 * 
+	 * @return the entry, or null if the document is unknown or the index is
+	 *         disabled.
+	 */
+	public static Entry lookup(byte[] key) {
+		MappedIndex current = getIndex();
+		if (current == null) {
+			return null;
+		}
+		try {
+			byte[] value = current.get(key);
+			if (value == null) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			State state = new State(buffer.getLong(), buffer.getLong(), buffer.getLong());
+			if (state.getLength() < 0L) {
+				// Invalidated
+				return null;
+			}
+			return new Entry(state, new String(value, buffer.position(), buffer.remaining(), UTF8));
+		} catch (IOException e) {
+			Logging.agents.warn("Could not read MICO document index", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Record the state a document was injected in, and its content item.
+	 */
+	public static void record(byte[] key, State state, String contentItemUri) {
+		MappedIndex current = getIndex();
+		if (current == null) {
+			return;
+		}
+		byte[] uri = contentItemUri.getBytes(UTF8);
+		ByteBuffer value = ByteBuffer.allocate(24 + uri.length);
+		value.putLong(state.getLength()).putLong(state.getModified()).putLong(state.getChecksum()).put(uri);
+		try {
+			current.put(key, value.array());
+		} catch (IOException e) {
+			Logging.agents.warn("Could not update MICO document index", e);
+		}
+	}
+
+	/**
+	 * Forget the content item recorded for a document, so that it is injected
+	 * again next time even if it looks unchanged. The index cannot remove
+	 * entries, so this overwrites the entry with one that never matches.
+	 */
+	public static void invalidate(byte[] key) {
+		MappedIndex current = getIndex();
+		if (current == null) {
+			return;
+		}
+		ByteBuffer value = ByteBuffer.allocate(24);
+		value.putLong(-1L).putLong(0L).putLong(0L);
+		try {
+			current.put(key, value.array());
+		} catch (IOException e) {
+			Logging.agents.warn("Could not update MICO document index", e);
+		}
+	}
+
+	/**
+	 * Note that a connector instance has been connected, and may use the
+	 * index.
+	 */
+	public static synchronized void acquire() {
+		users++;
+	}
+
+	/**
+	 * Note that a connector instance has been disconnected. The last one to go
+	 * closes the index, which writes it through to disk; it is opened again
+	 * on next use.
+	 */
+	public static synchronized void release() {
+		if (users > 0) {
+			users--;
+		}
+		if (users == 0 && index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				Logging.agents.warn("Could not close MICO document index", e);
+			}
+			index = null;
+			initialized = false;
+		}
+	}
+
+	/**
+	 * Grow or compact an open index if it is due, see
+	 * {@link MappedIndex#maintain()}, and write its changes through to disk
+	 * once the checkpoint interval has passed since the last time. Called from
+	 * the connector's poll, so this work stays off the crawler threads.
+	 */
+	public static void checkpointIfDue() throws ManifoldCFException {
+		MappedIndex current;
+		boolean due;
+		synchronized (DocumentIndex.class) {
+			current = index;
+			if (current == null) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long interval = MicoConfig.getLongProperty(MicoConfig.PROPERTY_INDEX_CHECKPOINT_INTERVAL,
+					DEFAULT_CHECKPOINT_INTERVAL);
+			due = now - lastCheckpoint >= interval;
+			if (due) {
+				lastCheckpoint = now;
+			}
+		}
+		try {
+			current.maintain();
+		} catch (IOException e) {
+			Logging.agents.warn("Could not grow or compact MICO document index", e);
+		}
+		if (!due) {
+			return;
+		}
+		try {
+			current.checkpoint();
+		} catch (IOException e) {
+			Logging.agents.warn("Could not write MICO document index to disk", e);
+		}
+	}
+
+	/**
+	 * Get the index, opening it on first use.
+	 * 
+	 * @return the index, or null if it is disabled or could not be opened.
+	 */
+	protected static synchronized MappedIndex getIndex() {
+		if (!initialized) {
+			initialized = true;
+			String location = ManifoldCF.getProperty(MicoConfig.PROPERTY_INDEX_DIRECTORY);
+			if (location != null && location.trim().length() > 0) {
+				try {
+					index = new MappedIndex(new File(location.trim()), INDEX_NAME,
+							MicoConfig.getLongProperty(MicoConfig.PROPERTY_INDEX_CAPACITY, 0L));
+					Logging.agents.info("Opened MICO document index in " + location.trim() + " with "
+							+ index.size() + " entries");
+				} catch (IOException e) {
+					Logging.agents.error("Could not open MICO document index in " + location.trim()
+							+ "; unchanged documents will be injected again", e);
+				} catch (ManifoldCFException e) {
+					Logging.agents.error("Could not open MICO document index: " + e.getMessage(), e);
+				}
+			}
+		}
+		return index;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * Compresses a stream into gzip format as it is read, so content can be
+ * handed compressed to the MICO client without being compressed into memory
+ * or another spool first. Only one buffer of the given size is held.
+ * 
+ * The MICO client cannot set a content or transfer encoding, so compressed
+ * parts are sent as {@link #MEDIA_TYPE}. Only MICO servers listed in the
+ * ManifoldCF properties file as unpacking such parts are sent them.
+ */
+public class GzipInputStream extends InputStream {
+
+	/** Media type of gzip-compressed content, see RFC 6713. */
+	public static final String MEDIA_TYPE = "application/gzip";
+
+	/** Default threshold; 0 disables compression. */
+	protected static final long DEFAULT_THRESHOLD = 0L;
+
+	private static final int MAXIMUM_BUFFER_SIZE = 65536;
+
+	// Magic, deflate, no flags, no time, no extra flags, unknown OS
+	private static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+			(byte) 0xff };
+
+	private final CRC32 crc = new CRC32();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final DeflaterInputStream deflated;
+
+	private byte[] pending = HEADER;
+	private int pendingPosition = 0;
+	// Set once the source is exhausted and the trailer is pending
+	private boolean finished = false;
+	private long bytesRead = 0L;
+
+	/**
+	 * @param length
+	 *            is the length of the source, used to size the buffer.
+	 */
+	public GzipInputStream(InputStream source, long length) {
+		int bufferSize = (int) Math.max(512L, Math.min(length, MAXIMUM_BUFFER_SIZE));
+		this.deflated = new DeflaterInputStream(new CheckedInputStream(source, crc), deflater, bufferSize);
+	}
+
+	/**
+	 * Get the number of bytes below which content is sent uncompressed, or 0
+	 * if it is never compressed.
+	 */
+	public static long getThreshold() throws ManifoldCFException {
+		return Math.max(0L, MicoConfig.getLongProperty(MicoConfig.PROPERTY_COMPRESSION_THRESHOLD, DEFAULT_THRESHOLD));
+	}
+
+	/**
+	 * Decide whether content of the given length is to be compressed for an
+	 * endpoint: only if it reaches the threshold, and the endpoint's server is
+	 * one of those known to accept gzip-compressed parts.
+	 */
+	public static boolean isCompressed(MicoEndpoint endpoint, long length) throws ManifoldCFException {
+		long threshold = getThreshold();
+		return threshold > 0L && length >= threshold && acceptsCompressed(endpoint.getMicoServer());
+	}
+
+	/**
+	 * Find out whether a MICO server is listed as accepting gzip-compressed
+	 * parts.
+	 */
+	public static boolean acceptsCompressed(String micoServer) {
+		String servers = ManifoldCF.getProperty(MicoConfig.PROPERTY_COMPRESSION_SERVERS);
+		if (servers == null) {
+			return false;
+		}
+		for (String server : servers.split(",")) {
+			if (server.trim().equals(micoServer)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of compressed bytes read so far.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (pending != null) {
+				if (pendingPosition < pending.length) {
+					int n = Math.min(len, pending.length - pendingPosition);
+					System.arraycopy(pending, pendingPosition, b, off, n);
+					pendingPosition += n;
+					bytesRead += n;
+					return n;
+				}
+				pending = null;
+			}
+			if (finished) {
+				return -1;
+			}
+			int n = deflated.read(b, off, len);
+			if (n >= 0) {
+				bytesRead += n;
+				return n;
+			}
+			finished = true;
+			pending = trailer();
+			pendingPosition = 0;
+		}
+	}
+
+	private byte[] trailer() {
+		byte[] trailer = new byte[8];
+		long value = crc.getValue();
+		long size = deflater.getBytesRead();
+		for (int i = 0; i < 4; i++) {
+			trailer[i] = (byte) (value >>> (8 * i));
+			trailer[4 + i] = (byte) (size >>> (8 * i));
+		}
+		return trailer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			deflated.close();
+		} finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+
+/**
+ * A group of queued submissions that a worker sends to MICO together.
+ * 
+ * The MICO client has no bulk operations, so each document still takes a
+ * create, an upload and a submit request. A batch runs them document by
+ * document over a single injector per endpoint, under a single slot of the
+ * endpoint's {@link ConcurrencyLimiter}, instead of taking an injector from
+ * the pool and returning it for every document. Each document goes through
+ * all three requests before the next one is started, so that a failure
+ * never leaves content items behind that were created for documents not yet
+ * uploaded.
+ * 
+ * A failure only drops the submission it happened to. The injector it
+ * happened on is discarded and the rest of the batch carries on with a fresh
+ * one, unless the failure opened the breaker. Every request is reported to the endpoint's {@link CircuitBreaker}; a
+ * group whose endpoint is not taking requests is deferred as a whole.
+ */
+public class MicoBatch implements Runnable {
+
+	private final List<MicoSubmission> submissions;
+	private final Map<MicoSubmission, DocumentFlight> flights = new IdentityHashMap<MicoSubmission, DocumentFlight>();
+
+	public MicoBatch(List<MicoSubmission> submissions) {
+		this.submissions = submissions;
+	}
+
+	@Override
+	public void run() {
+		try {
+			Map<MicoEndpoint, List<MicoSubmission>> byEndpoint = new LinkedHashMap<MicoEndpoint, List<MicoSubmission>>();
+			for (MicoSubmission submission : submissions) {
+				MicoEndpoint endpoint = submission.getEndpoint();
+				List<MicoSubmission> group = byEndpoint.get(endpoint);
+				if (group == null) {
+					group = new ArrayList<MicoSubmission>();
+					byEndpoint.put(endpoint, group);
+				}
+				group.add(submission);
+			}
+			for (Map.Entry<MicoEndpoint, List<MicoSubmission>> group : byEndpoint.entrySet()) {
+				submit(group.getKey(), group.getValue());
+			}
+		} finally {
+			for (MicoSubmission submission : submissions) {
+				submission.release();
+			}
+		}
+	}
+
+	private void submit(MicoEndpoint endpoint, List<MicoSubmission> group) {
+		CircuitBreaker breaker;
+		ConcurrencyLimiter limiter;
+		try {
+			breaker = endpoint.getCircuitBreaker();
+			limiter = endpoint.getConcurrencyLimiter();
+		} catch (ManifoldCFException e) {
+			for (MicoSubmission submission : group) {
+				failed(submission, e);
+			}
+			return;
+		}
+		if (!breaker.allowRequest()) {
+			Logging.agents.info("MICO endpoint " + endpoint.getMicoServer() + " is unavailable; deferring "
+					+ group.size() + " submissions");
+			for (MicoSubmission submission : group) {
+				MicoOutbox.deferOrDrop(submission);
+			}
+			return;
+		}
+
+		// The first request of the batch reports the probe, if this claimed
+		// it; anything that ends the batch before then hands it on
+		try {
+			// A batch goes over a single injector, so it counts as one injection
+			// in flight
+			try {
+				limiter.acquire();
+			} catch (ManifoldCFException e) {
+				Logging.agents.warn("Interrupted waiting for MICO endpoint " + endpoint.getMicoServer()
+						+ "; deferring " + group.size() + " submissions", e);
+				for (MicoSubmission submission : group) {
+					MicoOutbox.deferOrDrop(submission);
+				}
+				return;
+			}
+			for (MicoSubmission submission : group) {
+				flights.put(submission, submission.beginFlight());
+			}
+			Injector injector = null;
+			try {
+				for (MicoSubmission submission : group) {
+					DocumentFlight flight = flights.get(submission);
+					if (!breaker.allowRequest()) {
+						// An earlier document of the batch opened the breaker; leave
+						// the rest for later instead of creating content items that
+						// are unlikely to get their content
+						flights.remove(submission);
+						flight.setOutcome("deferred");
+						flight.end();
+						MicoOutbox.deferOrDrop(submission);
+						continue;
+					}
+					try {
+						if (injector == null) {
+							injector = endpoint.acquireInjector();
+						}
+						long start = System.currentTimeMillis();
+						MicoMetrics.Stage stage = MicoMetrics.Stage.CREATE;
+						long stageStart = MicoMetrics.start();
+						ContentItem ci;
+						try {
+							ci = injector.createContentItem();
+							MicoMetrics.record(stage, stageStart);
+							flight.recordCall(stage, stageStart, true);
+							breaker.recordSuccess(System.currentTimeMillis() - start);
+							limiter.sample(System.currentTimeMillis() - start, true);
+							stage = MicoMetrics.Stage.UPLOAD;
+							start = System.currentTimeMillis();
+							stageStart = MicoMetrics.start();
+							submission.addContent(injector, ci);
+							MicoMetrics.record(stage, stageStart);
+							flight.recordCall(stage, stageStart, true);
+							breaker.recordSuccess(System.currentTimeMillis() - start);
+							stage = MicoMetrics.Stage.SUBMIT;
+							start = System.currentTimeMillis();
+							stageStart = MicoMetrics.start();
+							injector.submitContentItem(ci);
+							MicoMetrics.record(stage, stageStart);
+							flight.recordCall(stage, stageStart, true);
+							breaker.recordSuccess(System.currentTimeMillis() - start);
+						} catch (MicoClientException e) {
+							MicoMetrics.recordError(stage, stageStart);
+							flight.recordCall(stage, stageStart, false);
+							breaker.recordFailure(System.currentTimeMillis() - start);
+							limiter.sample(System.currentTimeMillis() - start, false);
+							throw e;
+						}
+						submission.submitted(ci);
+						flights.remove(submission);
+						flight.setContentItem(ci.getUri());
+						flight.setOutcome("injected");
+						flight.end();
+					} catch (Exception e) {
+						failed(submission, e);
+						endpoint.discardInjector(injector);
+						injector = null;
+					}
+				}
+			} finally {
+				if (injector != null) {
+					try {
+						endpoint.releaseInjector(injector);
+					} catch (ManifoldCFException e) {
+						endpoint.discardInjector(injector);
+					}
+				}
+				limiter.release();
+			}
+		} finally {
+			breaker.recordAbandoned();
+		}
+	}
+
+	/**
+	 * Report a submission that could not be completed. The document has
+	 * already gone downstream, so MICO failures are left to the
+	 * {@link MicoOutbox} to retry, if it is enabled.
+	 */
+	protected void failed(MicoSubmission submission, Exception e) {
+		DocumentFlight flight = flights.remove(submission);
+		if (flight != null) {
+			flight.setOutcome("failed");
+			flight.end();
+		}
+		if (e instanceof MicoClientException) {
+			Logging.agents.error("Exception occured in Mico Client while submitting " + submission.getDocumentURI(), e);
+			submission.rejected();
+			MicoOutbox.deferOrDrop(submission);
+		} else if (e instanceof ManifoldCFException) {
+			Logging.agents.error("Could not read spooled content for " + submission.getDocumentURI(), e);
+		} else {
+			Logging.agents.error("Unexpected error submitting " + submission.getDocumentURI() + " to MICO", e);
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.MicoClientFactory;
+
+/**
+ * A MICO server as seen with one set of credentials. Endpoints are kept in a
+ * process-wide registry keyed by (server, user, password), so jobs pointing at
+ * different servers never share a client, while all documents of one job
+ * share the same factory and injectors. The circuit breaker and concurrency
+ * limiter describe the server itself, and are shared by all endpoints of the
+ * same server.
+ * 
+ * Injectors are not assumed to be thread safe. Each one is used by a single
+ * thread between {@link #acquireInjector()} and
+ * {@link #releaseInjector(Injector)}, and idle ones are kept for reuse so that
+ * their HTTP connections stay open between documents. Injectors that sit idle
+ * longer than the configured timeout are evicted, and so are endpoints that
+ * have not been used for that long, along with their credentials.
+ */
+public class MicoEndpoint {
+
+	/** Default number of idle injectors kept per endpoint. */
+	protected static final int DEFAULT_MAX_IDLE = 16;
+	/** Default time an injector may stay unused before it is evicted. */
+	protected static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+
+	private static final ConcurrentMap<EndpointKey, MicoEndpoint> endpoints = new ConcurrentHashMap<EndpointKey, MicoEndpoint>();
+	/** Circuit breakers by server; see {@link #serverKey(String)}. */
+	private static final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	/** Concurrency limiters by server. */
+	private static final ConcurrentMap<String, ConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+	private final String micoServer;
+	private final String micoUser;
+	private final String micoPassword;
+	private final MicoClientFactory micoClientFactory;
+	private final ConcurrentLinkedDeque<IdleInjector> idleInjectors = new ConcurrentLinkedDeque<IdleInjector>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	/** Injectors handed out and not given back yet. */
+	private final AtomicInteger busyCount = new AtomicInteger();
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile boolean evicted = false;
+
+	private MicoEndpoint(String micoServer, String micoUser, String micoPassword,
+			MicoClientFactory micoClientFactory) {
+		this.micoServer = micoServer;
+		this.micoUser = micoUser;
+		this.micoPassword = micoPassword;
+		this.micoClientFactory = micoClientFactory;
+	}
+
+	/**
+	 * Look up (or register) the endpoint for a server and set of credentials.
+	 */
+	public static MicoEndpoint get(String micoServer, String micoUser, String micoPassword) {
+		EndpointKey key = new EndpointKey(micoServer, micoUser, micoPassword);
+		MicoEndpoint endpoint = endpoints.get(key);
+		if (endpoint == null) {
+			MicoEndpoint candidate = new MicoEndpoint(micoServer, micoUser, micoPassword,
+					MicoConfig.newMicoClientFactory(micoServer, micoUser, micoPassword));
+			endpoint = endpoints.putIfAbsent(key, candidate);
+			if (endpoint == null) {
+				endpoint = candidate;
+			}
+		}
+		endpoint.lastUsed = System.currentTimeMillis();
+		return endpoint;
+	}
+
+	/**
+	 * Find a registered endpoint for a server and user, whatever its password.
+	 * Submissions kept by the {@link MicoOutbox} do not carry credentials, and
+	 * are retried with those of the jobs currently using the server.
+	 * 
+	 * @return null if no job has used the server as that user within the
+	 *         idle timeout, see {@link #evictIdleInjectors()}.
+	 */
+	public static MicoEndpoint find(String micoServer, String micoUser) {
+		for (MicoEndpoint endpoint : endpoints.values()) {
+			if (EndpointKey.equal(micoServer, endpoint.micoServer) && EndpointKey.equal(micoUser, endpoint.micoUser)) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Evict injectors that have been idle for too long, on every registered
+	 * endpoint, and drop the endpoints that have not been used for as long, so
+	 * the registry does not keep the credentials of jobs that are done.
+	 */
+	public static void evictIdleInjectors() throws ManifoldCFException {
+		long idleTimeout = MicoConfig.getLongProperty(MicoConfig.PROPERTY_CLIENT_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		Iterator<MicoEndpoint> iter = endpoints.values().iterator();
+		while (iter.hasNext()) {
+			MicoEndpoint endpoint = iter.next();
+			endpoint.evictIdleSince(cutoff);
+			if (endpoint.lastUsed < cutoff && endpoint.busyCount.get() <= 0) {
+				iter.remove();
+				endpoint.evicted = true;
+				// Injectors still out are closed when they are given back
+				endpoint.evictIdleSince(Long.MAX_VALUE);
+			}
+		}
+	}
+
+	public String getMicoServer() {
+		return micoServer;
+	}
+
+	public String getMicoUser() {
+		return micoUser;
+	}
+
+	String getMicoPassword() {
+		return micoPassword;
+	}
+
+	public MicoClientFactory getMicoClientFactory() {
+		return micoClientFactory;
+	}
+
+	/**
+	 * Get the circuit breaker guarding the requests to this endpoint's server,
+	 * whatever the credentials.
+	 */
+	public CircuitBreaker getCircuitBreaker() throws ManifoldCFException {
+		String key = serverKey(micoServer);
+		CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+		if (circuitBreaker == null) {
+			CircuitBreaker candidate = new CircuitBreaker(micoServer);
+			circuitBreaker = circuitBreakers.putIfAbsent(key, candidate);
+			if (circuitBreaker == null) {
+				circuitBreaker = candidate;
+			}
+		}
+		return circuitBreaker;
+	}
+
+	/**
+	 * Get the limiter for the number of injections in flight to this
+	 * endpoint's server, whatever the credentials.
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() throws ManifoldCFException {
+		String key = serverKey(micoServer);
+		ConcurrencyLimiter concurrencyLimiter = concurrencyLimiters.get(key);
+		if (concurrencyLimiter == null) {
+			ConcurrencyLimiter candidate = new ConcurrencyLimiter(micoServer);
+			concurrencyLimiter = concurrencyLimiters.putIfAbsent(key, candidate);
+			if (concurrencyLimiter == null) {
+				concurrencyLimiter = candidate;
+			}
+		}
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * Take an injector for exclusive use by the calling thread, reusing an idle
+	 * one when possible. The most recently used injector is handed out first,
+	 * since its connections are the most likely to still be alive.
+	 */
+	public Injector acquireInjector() {
+		busyCount.incrementAndGet();
+		lastUsed = System.currentTimeMillis();
+		IdleInjector idle = idleInjectors.pollFirst();
+		if (idle != null) {
+			idleCount.decrementAndGet();
+			return idle.injector;
+		}
+		return micoClientFactory.createInjectorClient();
+	}
+
+	/**
+	 * Give back an injector after a successful exchange. Injectors that failed
+	 * should be dropped with {@link #discardInjector(Injector)} instead, since
+	 * their connection state is unknown.
+	 */
+	public void releaseInjector(Injector injector) throws ManifoldCFException {
+		int maxIdle = MicoConfig.getIntProperty(MicoConfig.PROPERTY_CLIENT_MAX_IDLE, DEFAULT_MAX_IDLE);
+		if (idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			discardInjector(injector);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		lastUsed = now;
+		idleInjectors.offerFirst(new IdleInjector(injector, now));
+		busyCount.decrementAndGet();
+		if (evicted) {
+			evictIdleSince(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Drop an injector for good, closing it if the client supports that.
+	 */
+	public void discardInjector(Injector injector) {
+		busyCount.decrementAndGet();
+		lastUsed = System.currentTimeMillis();
+		close(injector);
+	}
+
+	private void close(Injector injector) {
+		if (injector instanceof Closeable) {
+			try {
+				((Closeable) injector).close();
+			} catch (IOException e) {
+				Logging.agents.debug("Error closing MICO injector for " + micoServer, e);
+			}
+		}
+	}
+
+	private void evictIdleSince(long cutoff) {
+		// Idle injectors are pushed at the head, so the oldest are at the tail
+		Iterator<IdleInjector> iter = idleInjectors.descendingIterator();
+		while (iter.hasNext()) {
+			IdleInjector idle = iter.next();
+			if (idle.lastUsed >= cutoff) {
+				break;
+			}
+			if (idleInjectors.removeLastOccurrence(idle)) {
+				idleCount.decrementAndGet();
+				close(idle.injector);
+			}
+		}
+	}
+
+	/**
+	 * Key for the state kept per server, since the maps take no null keys.
+	 */
+	private static String serverKey(String micoServer) {
+		return micoServer == null ? "" : micoServer;
+	}
+
+	private static class IdleInjector {
+		final Injector injector;
+		final long lastUsed;
+
+		IdleInjector(Injector injector, long lastUsed) {
+			this.injector = injector;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static class EndpointKey {
+		private final String micoServer;
+		private final String micoUser;
+		private final String micoPassword;
+
+		EndpointKey(String micoServer, String micoUser, String micoPassword) {
+			this.micoServer = micoServer;
+			this.micoUser = micoUser;
+			this.micoPassword = micoPassword;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof EndpointKey)) {
+				return false;
+			}
+			EndpointKey other = (EndpointKey) o;
+			return equal(micoServer, other.micoServer) && equal(micoUser, other.micoUser)
+					&& equal(micoPassword, other.micoPassword);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash(micoServer) + 31 * (hash(micoUser) + 31 * hash(micoPassword));
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		private static int hash(String s) {
+			return s == null ? 0 : s.hashCode();
+		}
+	}
+}
@@ -17,12 +17,17 @@
 package org.apache.manifoldcf.agents.transformation.mico.text;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
@@ -31,6 +36,7 @@ import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.transformation.BaseTransformationConnector;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
 import org.apache.manifoldcf.core.interfaces.IHTTPOutput;
 import org.apache.manifoldcf.core.interfaces.IPostParameters;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
@@ -38,15 +44,16 @@ import org.apache.manifoldcf.core.interfaces.Specification;
 import org.apache.manifoldcf.core.interfaces.SpecificationNode;
 import org.apache.manifoldcf.core.interfaces.VersionContext;
 import org.apache.tika.config.TikaConfig;
-import org.apache.tika.detect.Detector;
-import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.mime.MediaType;
-import org.zaizi.mico.client.Injector;
-import org.zaizi.mico.client.MicoClientFactory;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.zaizi.mico.client.exception.MicoClientException;
 import org.zaizi.mico.client.model.ContentItem;
-import org.zaizi.mico.client.model.ContentPart;
+import org.xml.sax.SAXException;
 
 public class MicoExtractor extends BaseTransformationConnector {
 	private static final String EDIT_SPECIFICATION_JS = "editSpecification.js";
@@ -54,10 +61,17 @@ public class MicoExtractor extends BaseTransformationConnector {
 	private static final String VIEW_SPECIFICATION_HTML = "viewSpecification.html";
 
 	private static final String MICO_PROCESSED_STATUS_FIELD = "is_processed_mico";
+	/** Media type of what is uploaded to MICO: extracted text, in UTF-8. */
 	private static final String TEXT_MIMETYPE = "text/plain";
 
+	/** Most characters of text extracted from a document for MICO. */
 	protected static int maximumExtractionCharacters = 524288;
 
+	private volatile Parser parser = null;
+
+	/** Whether this instance is counted as a user of the document index and the submission queue. */
+	private boolean usesIndex = false;
+
 	protected static final String ACTIVITY_EXTRACT = "extract";
 
 	protected static final String[] activitiesList = new String[] { ACTIVITY_EXTRACT };
@@ -65,6 +79,12 @@ public class MicoExtractor extends BaseTransformationConnector {
 	/** We handle up to 64K in memory; after that we go to disk. */
 	protected static final long inMemoryMaximumFile = 65536;
 
+	/**
+	 * Default for the total memory the in-memory spools of both MICO connectors
+	 * may hold at once; each connector gets half, see {@link MicoConfig#getBudget}.
+	 */
+	protected static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+
 	/**
 	 * Return a list of activities that this connector generates. The connector
 	 * does NOT need to be connected before this method is called.
@@ -76,6 +96,45 @@ public class MicoExtractor extends BaseTransformationConnector {
 		return activitiesList;
 	}
 
+	@Override
+	public void connect(ConfigParams configParams) {
+		super.connect(configParams);
+		if (!usesIndex) {
+			usesIndex = true;
+			DocumentIndex.acquire();
+			MicoSubmissionQueue.acquire();
+		}
+	}
+
+	/**
+	 * Once the last instance has been disconnected, the document index is
+	 * written through to disk and closed, and submissions still queued are
+	 * moved to the outbox.
+	 */
+	@Override
+	public void disconnect() throws ManifoldCFException {
+		if (usesIndex) {
+			usesIndex = false;
+			MicoSubmissionQueue.release();
+			DocumentIndex.release();
+		}
+		super.disconnect();
+	}
+
+	/**
+	 * This method is periodically called for all connectors that are connected
+	 * but not in active use. We use it to drop MICO injectors that have not
+	 * been used for a while, and to grow, compact and write through the
+	 * document index.
+	 */
+	@Override
+	public void poll() throws ManifoldCFException {
+		MicoEndpoint.evictIdleInjectors();
+		MicoOutbox.start();
+		DocumentIndex.checkpointIfDue();
+		MicoMetrics.logSummaryIfDue();
+	}
+
 	/**
 	 * Get a pipeline version string, given a pipeline specification object. The
 	 * version string is used to uniquely describe the pertinent details of the
@@ -146,39 +205,167 @@ public class MicoExtractor extends BaseTransformationConnector {
 
 		SpecPacker sp = new SpecPacker(pipelineDescription.getSpecification());
 
-		byte[] bytes = IOUtils.toByteArray(document.getBinaryStream());
-
-		// create a duplicate
-		RepositoryDocument docCopy = document.duplicate();
-
+		DocumentFlight flight = DocumentFlight.begin(documentURI, DocumentFlight.KIND_DOCUMENT);
 		try {
-			if(!(filterMimeTypes.contains(document.getMimeType()))){
-				MicoClientFactory micoClientFactory = MicoConfig.getMicoClientFactory(sp.getMicoServer(), sp.getMicoUser(),
-						sp.getMicoPassword());
+			return addOrReplaceDocument(documentURI, sp, document, activities, flight);
+		} finally {
+			flight.end();
+		}
+	}
 
-				Injector injector = micoClientFactory.createInjectorClient();
-				ContentItem ci = injector.createContentItem();
+	/**
+	 * Process a document for {@link #addOrReplaceDocumentWithException},
+	 * recording it in the given flight.
+	 */
+	protected int addOrReplaceDocument(String documentURI, SpecPacker sp, RepositoryDocument document,
+			IOutputAddActivity activities, DocumentFlight flight)
+					throws ManifoldCFException, ServiceInterruption, IOException {
+		if (filterMimeTypes.contains(document.getMimeType())) {
+			// Multimedia is left to the multimedia connector: forward the
+			// original document as it is, without spooling or duplicating it.
+			skipped(flight, MicoMetrics.Skip.NOT_ACCEPTED);
+			return sendDocument(activities, documentURI, document);
+		}
+		MicoMetrics.recordDocument(document.getMimeType());
+		flight.setMediaType(document.getMimeType());
+		flight.setSize(document.getBinaryLength());
 
-				ContentPart contentPart = injector.addContentPart(ci, TEXT_MIMETYPE, documentURI,
-						new ByteArrayInputStream(bytes));
-				ci.addContentPart(contentPart);
-				injector.submitContentItem(ci);
+		// While MICO is failing, hand documents back to the framework to be
+		// retried later, instead of having every worker spool them and wait
+		// for timeouts. This only looks: the half-open probe is claimed by the
+		// submission right before it calls MICO, since the document may well
+		// not get that far.
+		MicoEndpoint endpoint = MicoEndpoint.get(sp.getMicoServer(), sp.getMicoUser(), sp.getMicoPassword());
+		endpoint.getConcurrencyLimiter().requestCeiling(sp.getMicoMaxConcurrencyLimit());
+		CircuitBreaker breaker = endpoint.getCircuitBreaker();
+		if (breaker.isOpen()) {
+			if (sp.isMicoPassThrough()) {
+				Logging.agents.debug("MICO server " + sp.getMicoServer() + " is unavailable; forwarding "
+						+ documentURI + " without MICO");
+				skipped(flight, MicoMetrics.Skip.PASSED_THROUGH);
+				return sendDocument(activities, documentURI, document);
+			}
+			skipped(flight, MicoMetrics.Skip.RESCHEDULED);
+			throw new ServiceInterruption("MICO server " + sp.getMicoServer() + " is unavailable", null,
+					breaker.getRetryTime(), -1L, -1, false);
+		}
 
-				docCopy.addField(sp.getMicoDocUriField(), ci.getUri());
-				docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+		// A document that has not changed since it was last injected keeps
+		// its content item, and is forwarded without spooling or extracting
+		// its text. This only vouches for the document while MICO is up, and
+		// the index is scoped to a server, so it comes after the breaker check
+		// and is skipped while the specification names no server.
+		InputStream is = document.getBinaryStream();
+		byte[] documentKey = null;
+		if (DocumentIndex.isIndexable(sp.getMicoServer()) && document.getModifiedDate() != null
+				&& document.getBinaryLength() >= 0L && DocumentIndex.isEnabled()) {
+			documentKey = DocumentIndex.key(sp.getMicoServer(), documentURI);
+			DocumentIndex.Entry previous = DocumentIndex.lookup(documentKey);
+			if (previous != null && previous.getState().getLength() == document.getBinaryLength()
+					&& previous.getState().getModified() == document.getModifiedDate().getTime()) {
+				BufferedInputStream bis = (is instanceof BufferedInputStream) ? (BufferedInputStream) is
+						: new BufferedInputStream(is, DocumentIndex.CHECKSUM_LENGTH);
+				bis.mark(DocumentIndex.CHECKSUM_LENGTH);
+				byte[] header = new byte[DocumentIndex.CHECKSUM_LENGTH];
+				int headerLength = IOUtils.read(bis, header);
+				bis.reset();
+				is = bis;
+				if (previous.getState().getChecksum() == DocumentIndex.checksum(header, headerLength)) {
+					Logging.agents.debug(documentURI + " is unchanged since it was injected as "
+							+ previous.getContentItemUri());
+					RepositoryDocument docCopy = document.duplicate();
+					docCopy.setBinary(is, document.getBinaryLength());
+					docCopy.addField(sp.getMicoDocUriField(), previous.getContentItemUri());
+					docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+					skipped(flight, MicoMetrics.Skip.UNCHANGED);
+					return sendDocument(activities, documentURI, docCopy);
+				}
+			}
+		}
 
-				Logging.agents.info("Submitted " + contentPart.getUri() + " for Content Item " + ci.getUri());
+		DestinationStorage ds = createDestinationStorage(document.getBinaryLength());
+		flight.setSpoolTier(spoolTier(ds));
+		try {
+			long spoolStart = MicoMetrics.start();
+			OutputStream os = ds.getOutputStream();
+			try {
+				try {
+					IOUtils.copy(is, os);
+				} finally {
+					os.close();
+				}
+			} catch (SpoolDirectory.QuotaExceededException e) {
+				// The document turned out longer than announced, and the rest
+				// does not fit the spool quota
+				throw e.getServiceInterruption();
 			}
-			
+			MicoMetrics.record(MicoMetrics.Stage.SPOOL, spoolStart);
+			MicoMetrics.recordSpooled(ds.getBinaryLength());
+			flight.setSize(ds.getBinaryLength());
 
-		} catch (MicoClientException e) {
-			Logging.agents.error("Exception occured in Mico Client", e);
-		}
+			DocumentIndex.State documentState = null;
+			if (documentKey != null) {
+				documentState = documentState(ds, document.getModifiedDate().getTime());
+			}
+
+			// create a duplicate
+			RepositoryDocument docCopy = document.duplicate();
 
-		// reset original stream
-		docCopy.setBinary(new ByteArrayInputStream(bytes), bytes.length);
+			// MICO is given the text of the document rather than its raw
+			// bytes; the original goes downstream unchanged
+			DestinationStorage text = extractText(documentURI, document, ds);
+			// Cleared once a submission worker has taken over the text
+			boolean ownsText = true;
+			try {
+				if (text == null) {
+					skipped(flight, MicoMetrics.Skip.NO_TEXT);
+				} else {
+					MicoSubmission submission = new MicoSubmission(sp.getMicoServer(), sp.getMicoUser(),
+							sp.getMicoPassword(), TEXT_MIMETYPE, documentURI, text, documentKey, documentState);
+					try {
+						// In async mode the content item is created later by a
+						// submission worker, so there is no MICO URI to record yet.
+						if (sp.isMicoAsync() && MicoSubmissionQueue.offer(submission)) {
+							ownsText = false;
+							flight.setOutcome("queued");
+						} else {
+							ContentItem ci = submission.submit(flight);
+							docCopy.addField(sp.getMicoDocUriField(), ci.getUri());
+						}
+						docCopy.addField(MICO_PROCESSED_STATUS_FIELD, Boolean.toString(false));
+					} catch (MicoSubmission.RefusedException e) {
+						// MICO became unavailable since the breaker was checked
+						// above; treat the document the same way
+						if (!sp.isMicoPassThrough()) {
+							skipped(flight, MicoMetrics.Skip.RESCHEDULED);
+							throw new ServiceInterruption(e.getMessage(), e, e.getRetryTime(), -1L, -1, false);
+						}
+						Logging.agents.debug("MICO server " + sp.getMicoServer() + " is unavailable; forwarding "
+								+ documentURI + " without MICO");
+						skipped(flight, MicoMetrics.Skip.PASSED_THROUGH);
+					} catch (MicoClientException e) {
+						Logging.agents.error("Exception occured in Mico Client", e);
+						MicoOutbox.deferOrDrop(submission);
+					}
+				}
+			} finally {
+				if (text != null && ownsText) {
+					text.close();
+				}
+			}
 
-		return activities.sendDocument(documentURI, docCopy);
+			// reset original stream; the view is released once downstream is
+			// done with it
+			InputStream downstream = ds.getInputStream();
+			docCopy.setBinary(downstream, ds.getBinaryLength());
+			try {
+				return sendDocument(activities, documentURI, docCopy);
+			} finally {
+				downstream.close();
+			}
+		} finally {
+			ds.close();
+		}
 
 		// In order to be able to replay the input stream both for extraction
 		// and for downstream use,
@@ -190,6 +377,147 @@ public class MicoExtractor extends BaseTransformationConnector {
 		// disk, whichever makes sense.
 	}
 	
+	/**
+	 * Extract the text of a spooled document with Tika, streaming it as UTF-8
+	 * into a spool of its own. Extraction stops once
+	 * {@link #maximumExtractionCharacters} characters have been written, so
+	 * neither memory nor the upload grow with the size of the source.
+	 * 
+	 * @return the spooled text, or null if the document has no text or could
+	 *         not be parsed.
+	 */
+	protected DestinationStorage extractText(String documentURI, RepositoryDocument document,
+			DestinationStorage ds) throws ManifoldCFException, ServiceInterruption, IOException {
+		long start = MicoMetrics.start();
+		DestinationStorage text = createDestinationStorage(
+				Math.min(ds.getBinaryLength(), (long) maximumExtractionCharacters));
+		boolean extracted = false;
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(text.getOutputStream(), StandardCharsets.UTF_8));
+			WriteOutContentHandler handler = new WriteOutContentHandler(writer, maximumExtractionCharacters);
+			Metadata metadata = new Metadata();
+			if (document.getMimeType() != null) {
+				metadata.set(Metadata.CONTENT_TYPE, document.getMimeType());
+			}
+			if (document.getFileName() != null) {
+				metadata.set(Metadata.RESOURCE_NAME_KEY, document.getFileName());
+			}
+			InputStream is = ds.getInputStream();
+			try {
+				getParser().parse(is, new BodyContentHandler(handler), metadata, new ParseContext());
+			} catch (SAXException e) {
+				rethrowQuotaExceeded(e);
+				if (!handler.isWriteLimitReached(e)) {
+					Logging.agents.warn("Could not extract text from " + documentURI + ": " + e.getMessage());
+					MicoMetrics.recordError(MicoMetrics.Stage.EXTRACT, start);
+					return null;
+				}
+				Logging.agents.debug("Text of " + documentURI + " was cut off after " + maximumExtractionCharacters
+						+ " characters");
+			} catch (TikaException e) {
+				rethrowQuotaExceeded(e);
+				Logging.agents.warn("Could not extract text from " + documentURI + ": " + e.getMessage());
+				MicoMetrics.recordError(MicoMetrics.Stage.EXTRACT, start);
+				return null;
+			} finally {
+				is.close();
+				writer.close();
+			}
+			MicoMetrics.record(MicoMetrics.Stage.EXTRACT, start);
+			if (text.getBinaryLength() == 0L) {
+				return null;
+			}
+			if (Logging.agents.isDebugEnabled()) {
+				Logging.agents.debug("Extracted " + text.getBinaryLength() + " bytes of text from "
+						+ ds.getBinaryLength() + " bytes of " + documentURI);
+			}
+			extracted = true;
+			return text;
+		} catch (SpoolDirectory.QuotaExceededException e) {
+			// The text spool grows with the text, and the rest of it does not
+			// fit the spool quota
+			throw e.getServiceInterruption();
+		} finally {
+			if (!extracted) {
+				text.close();
+			}
+		}
+	}
+
+	/**
+	 * Describe a spooled document for the {@link DocumentIndex}.
+	 */
+	protected static DocumentIndex.State documentState(DestinationStorage ds, long modified)
+			throws ManifoldCFException, IOException {
+		byte[] header = new byte[DocumentIndex.CHECKSUM_LENGTH];
+		int headerLength;
+		InputStream is = ds.getInputStream();
+		try {
+			headerLength = IOUtils.read(is, header);
+		} finally {
+			is.close();
+		}
+		return new DocumentIndex.State(ds.getBinaryLength(), modified, DocumentIndex.checksum(header, headerLength));
+	}
+
+	/**
+	 * Reschedule the document if the parser failed because the text spool
+	 * ran into the spool quota.
+	 */
+	protected static void rethrowQuotaExceeded(Exception e) throws ServiceInterruption {
+		SpoolDirectory.QuotaExceededException quotaExceeded = SpoolDirectory.findQuotaExceeded(e);
+		if (quotaExceeded != null) {
+			throw quotaExceeded.getServiceInterruption();
+		}
+	}
+
+	/**
+	 * Get the Tika parser. Building it loads the whole Tika service registry,
+	 * so it is done once per connector instance; parsers are thread safe.
+	 */
+	protected Parser getParser() {
+		Parser result = parser;
+		if (result == null) {
+			synchronized (this) {
+				result = parser;
+				if (result == null) {
+					result = new AutoDetectParser(TikaConfig.getDefaultConfig());
+					parser = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Note that a document bypassed MICO.
+	 */
+	protected static void skipped(DocumentFlight flight, MicoMetrics.Skip reason) {
+		MicoMetrics.recordSkip(reason);
+		flight.setOutcome(reason.name().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Send a document downstream, timing how long the rest of the pipeline
+	 * takes with it.
+	 */
+	protected int sendDocument(IOutputAddActivity activities, String documentURI, RepositoryDocument document)
+			throws ManifoldCFException, ServiceInterruption, IOException {
+		long start = MicoMetrics.start();
+		boolean done = false;
+		try {
+			int result = activities.sendDocument(documentURI, document);
+			done = true;
+			return result;
+		} finally {
+			if (done) {
+				MicoMetrics.record(MicoMetrics.Stage.SEND, start);
+			} else {
+				MicoMetrics.recordError(MicoMetrics.Stage.SEND, start);
+			}
+		}
+	}
+
 	private final static Set<String> filterMimeTypes = new HashSet<String>();
 
 	static {
@@ -317,6 +645,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 		String micoUser = "";
 		String micoPassword = "";
 		String micoDocUriField = "";
+		String micoAsync = "false";
+		String micoPassThrough = "false";
+		String micoMaxConcurrency = "";
 		for (int i = 0; i < os.getChildCount(); i++) {
 			SpecificationNode sn = os.getChild(i);
 			if (sn.getType().equals(MicoConfig.NODE_MICO_SERVER)) {
@@ -339,12 +670,30 @@ public class MicoExtractor extends BaseTransformationConnector {
 				if (micoDocUriField == null) {
 					micoDocUriField = "";
 				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_ASYNC)) {
+				micoAsync = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoAsync == null) {
+					micoAsync = "false";
+				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_PASSTHROUGH)) {
+				micoPassThrough = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoPassThrough == null) {
+					micoPassThrough = "false";
+				}
+			} else if (sn.getType().equals(MicoConfig.NODE_MICO_MAX_CONCURRENCY)) {
+				micoMaxConcurrency = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				if (micoMaxConcurrency == null) {
+					micoMaxConcurrency = "";
+				}
 			}
 		}
 		paramMap.put("MICOSERVER", micoServer);
 		paramMap.put("MICOUSER", micoUser);
 		paramMap.put("MICOPASSWORD", micoPassword);
 		paramMap.put("MICODOCURI", micoDocUriField);
+		paramMap.put("MICOASYNC", micoAsync);
+		paramMap.put("MICOPASSTHROUGH", micoPassThrough);
+		paramMap.put("MICOMAXCONCURRENCY", micoMaxConcurrency);
 	}
 
 	/**
@@ -408,6 +757,33 @@ public class MicoExtractor extends BaseTransformationConnector {
 		}
 		os.addChild(os.getChildCount(), node);
 
+		node = new SpecificationNode(MicoConfig.NODE_MICO_ASYNC);
+		String micoasync = variableContext.getParameter(seqPrefix + "micoasync");
+		if (micoasync != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micoasync);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "false");
+		}
+		os.addChild(os.getChildCount(), node);
+
+		node = new SpecificationNode(MicoConfig.NODE_MICO_PASSTHROUGH);
+		String micopassthrough = variableContext.getParameter(seqPrefix + "micopassthrough");
+		if (micopassthrough != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micopassthrough);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "false");
+		}
+		os.addChild(os.getChildCount(), node);
+
+		node = new SpecificationNode(MicoConfig.NODE_MICO_MAX_CONCURRENCY);
+		String micomaxconcurrency = variableContext.getParameter(seqPrefix + "micomaxconcurrency");
+		if (micomaxconcurrency != null) {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, micomaxconcurrency);
+		} else {
+			node.setAttribute(MicoConfig.ATTRIBUTE_VALUE, "");
+		}
+		os.addChild(os.getChildCount(), node);
+
 		return null;
 	}
 
@@ -436,6 +812,22 @@ public class MicoExtractor extends BaseTransformationConnector {
 		Messages.outputResourceWithVelocity(out, locale, VIEW_SPECIFICATION_HTML, paramMap);
 	}
 
+	/**
+	 * Pick a spool for a document of the given length: memory for small
+	 * documents as long as the memory budget of this connector allows it, a
+	 * temporary file otherwise.
+	 */
+	protected static DestinationStorage createDestinationStorage(long binaryLength)
+			throws ManifoldCFException, ServiceInterruption {
+		if (binaryLength <= inMemoryMaximumFile) {
+			DestinationStorage ds = MemoryDestinationStorage.create((int) binaryLength);
+			if (ds != null) {
+				return ds;
+			}
+		}
+		return new FileDestinationStorage(binaryLength);
+	}
+
 	protected static int handleIOException(IOException e) throws ManifoldCFException {
 		// IOException reading from our local storage...
 		if (e instanceof InterruptedIOException)
@@ -443,12 +835,570 @@ public class MicoExtractor extends BaseTransformationConnector {
 		throw new ManifoldCFException(e.getMessage(), e);
 	}
 
+	/**
+	 * Name the kind of spool a document went to, for its flight recording.
+	 */
+	protected static String spoolTier(DestinationStorage ds) {
+		if (ds instanceof MemoryDestinationStorage) {
+			return "memory";
+		}
+		if (ds instanceof FileDestinationStorage) {
+			return "disk";
+		}
+		return ds.getClass().getSimpleName();
+	}
+
+	protected static interface DestinationStorage
+	  {
+	    /** Get the output stream to write to.  Caller should explicitly close this stream when done writing.
+	    */
+	    public OutputStream getOutputStream()
+	      throws ManifoldCFException;
+	    
+	    /** Get new binary length.
+	    */
+	    public long getBinaryLength()
+	      throws ManifoldCFException;
+
+	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    */
+	    public InputStream getInputStream()
+	      throws ManifoldCFException;
+	    
+	    /** Close the object and clean up everything.
+	    * This should be called when the data is no longer needed.
+	    */
+	    public void close()
+	      throws ManifoldCFException;
+	  }
+	
+	protected static class FileDestinationStorage implements DestinationStorage
+	  {
+	    /** Bytes the reservation grows by at a time once the file outgrows it. */
+	    protected static final long RESERVATION_INCREMENT = 64L * 1024L;
+
+	    protected final File outputFile;
+	    protected final OutputStream outputStream;
+	    /** Bytes accounted against the spool quota for this file; grows as the file is written. */
+	    protected final AtomicLong reservedBytes = new AtomicLong();
+	    /** The storage itself plus every input stream still open on the file. */
+	    protected final AtomicInteger references = new AtomicInteger(1);
+
+	    public FileDestinationStorage(long sizeHint)
+	      throws ManifoldCFException, ServiceInterruption
+	    {
+	      this(sizeHint,true);
+	    }
+
+	    /** Create a spool file in the spool directory.
+	    * Whatever is written beyond the size hint is reserved as it is written, and always against the quota.
+	    *@param sizeHint is the expected length of the document, or a negative number if unknown.
+	    *@param enforceQuota is false if the size hint must be reserved even if it exceeds the spool quota.
+	    */
+	    public FileDestinationStorage(long sizeHint, boolean enforceQuota)
+	      throws ManifoldCFException, ServiceInterruption
+	    {
+	      long initialReservation = Math.max(sizeHint,0L);
+	      SpoolDirectory.reserve(initialReservation,enforceQuota);
+	      reservedBytes.set(initialReservation);
+	      File outputFile;
+	      OutputStream outputStream;
+	      try
+	      {
+	        outputFile = SpoolDirectory.createSpoolFile();
+	        outputStream = new ReservingOutputStream(new FileOutputStream(outputFile));
+	      }
+	      catch (IOException e)
+	      {
+	        SpoolDirectory.release(initialReservation);
+	        handleIOException(e);
+	        outputFile = null;
+	        outputStream = null;
+	      }
+	      this.outputFile = outputFile;
+	      this.outputStream = outputStream;
+	    }
+	    
+	    @Override
+	    public OutputStream getOutputStream()
+	      throws ManifoldCFException
+	    {
+	      return outputStream;
+	    }
+	    
+	    /** Get new binary length.
+	    */
+	    @Override
+	    public long getBinaryLength()
+	      throws ManifoldCFException
+	    {
+	      return outputFile.length();
+	    }
+
+	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    * The file stays in place until the storage and all of its input streams are closed.
+	    */
+	    @Override
+	    public InputStream getInputStream()
+	      throws ManifoldCFException
+	    {
+	      references.incrementAndGet();
+	      try
+	      {
+	        return new SpoolFileInputStream();
+	      }
+	      catch (IOException e)
+	      {
+	        releaseReference();
+	        handleIOException(e);
+	        return null;
+	      }
+	    }
+	    
+	    /** Close the object and clean up everything.
+	    * This should be called when the data is no longer needed.
+	    */
+	    @Override
+	    public void close()
+	      throws ManifoldCFException
+	    {
+	      try
+	      {
+	        outputStream.close();
+	      }
+	      catch (IOException e)
+	      {
+	        // Nothing more will be written, and the file is about to go
+	      }
+	      releaseReference();
+	    }
+
+	    protected void releaseReference()
+	    {
+	      if (references.decrementAndGet() == 0)
+	      {
+	        // The quota is only given back once the bytes are off the disk
+	        if (outputFile.delete() || !outputFile.exists())
+	          SpoolDirectory.release(reservedBytes.getAndSet(0L));
+	        else
+	          Logging.agents.warn("Could not delete MICO spool file "+outputFile+"; it stays counted against the spool quota until its directory is swept");
+	      }
+	    }
+
+	    /** Output stream to the spool file that reserves room against the quota before writing
+	    * beyond what is reserved already.
+	    */
+	    protected class ReservingOutputStream extends FilterOutputStream
+	    {
+	      protected long written = 0L;
+
+	      public ReservingOutputStream(OutputStream out)
+	      {
+	        super(out);
+	      }
+
+	      @Override
+	      public void write(int b)
+	        throws IOException
+	      {
+	        reserveFor(1L);
+	        out.write(b);
+	        written++;
+	      }
+
+	      @Override
+	      public void write(byte[] b, int off, int len)
+	        throws IOException
+	      {
+	        reserveFor(len);
+	        out.write(b, off, len);
+	        written += len;
+	      }
+
+	      /** Grow the reservation, a whole increment at a time, to cover the next bytes.
+	      *@throws SpoolDirectory.QuotaExceededException if the quota does not allow it.
+	      */
+	      protected void reserveFor(long len)
+	        throws IOException
+	      {
+	        long needed = written + len - reservedBytes.get();
+	        if (needed <= 0L)
+	          return;
+	        long increment = ((needed + RESERVATION_INCREMENT - 1L) / RESERVATION_INCREMENT) * RESERVATION_INCREMENT;
+	        try
+	        {
+	          SpoolDirectory.reserve(increment,true);
+	        }
+	        catch (ServiceInterruption e)
+	        {
+	          throw new SpoolDirectory.QuotaExceededException(e);
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        reservedBytes.addAndGet(increment);
+	      }
+	    }
+
+	    protected class SpoolFileInputStream extends ChannelFileInputStream
+	    {
+	      protected boolean closed = false;
+
+	      public SpoolFileInputStream()
+	        throws IOException
+	      {
+	        super(outputFile);
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        try
+	        {
+	          super.close();
+	        }
+	        finally
+	        {
+	          if (!closed)
+	          {
+	            closed = true;
+	            releaseReference();
+	          }
+	        }
+	      }
+	    }
+	  }
+	
+	protected static class MemoryDestinationStorage implements DestinationStorage
+	  {
+	    /** Bytes reserved by all in-memory spools of this process. */
+	    protected static final AtomicLong reservedMemory = new AtomicLong();
+
+	    /** Smallest buffer; buffers come in powers of two from here up to inMemoryMaximumFile. */
+	    protected static final int MIN_BUFFER_SIZE = 1024;
+	    /** Number of idle buffers kept for each size. */
+	    protected static final int MAX_POOLED_BUFFERS = 64;
+
+	    protected static final int POOL_COUNT = poolIndex((int)inMemoryMaximumFile) + 1;
+	    @SuppressWarnings("unchecked")
+	    protected static final ConcurrentLinkedQueue<byte[]>[] bufferPools = new ConcurrentLinkedQueue[POOL_COUNT];
+	    protected static final AtomicInteger[] pooledCounts = new AtomicInteger[POOL_COUNT];
+
+	    static
+	    {
+	      for (int i = 0; i < POOL_COUNT; i++)
+	      {
+	        bufferPools[i] = new ConcurrentLinkedQueue<byte[]>();
+	        pooledCounts[i] = new AtomicInteger(0);
+	      }
+	    }
+
+	    protected final SpoolBuffer outputStream;
+	    /** Bytes reserved against the memory budget; guarded by the output stream. */
+	    protected long reservation;
+	    protected final AtomicBoolean closed = new AtomicBoolean(false);
+	    protected final AtomicInteger openViews = new AtomicInteger(0);
+	    protected final AtomicBoolean recycled = new AtomicBoolean(false);
+	    /** Disk spool taking over if the document outgrows the in-memory tier or the budget. */
+	    protected volatile FileDestinationStorage overflow = null;
+	    
+	    protected MemoryDestinationStorage(int bufferSize)
+	    {
+	      outputStream = new SpoolBuffer(takeBuffer(bufferSize));
+	      reservation = bufferSize;
+	    }
+
+	    /** Reserve room for an in-memory spool against the memory budget of this connector.
+	    *@return the storage, or null if the budget would be exceeded and the caller should spool to disk.
+	    */
+	    public static MemoryDestinationStorage create(int sizeHint)
+	      throws ManifoldCFException
+	    {
+	      int bufferSize = bufferSizeFor(sizeHint);
+	      if (!reserve(bufferSize))
+	        return null;
+	      return new MemoryDestinationStorage(bufferSize);
+	    }
+
+	    /** Reserve bytes against the memory budget of this connector.
+	    *@return false if the budget would be exceeded.
+	    */
+	    protected static boolean reserve(long bytes)
+	      throws ManifoldCFException
+	    {
+	      long budget = MicoConfig.getBudget(MicoConfig.PROPERTY_SPOOL_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET);
+	      while (true)
+	      {
+	        long current = reservedMemory.get();
+	        if (current + bytes > budget)
+	          return false;
+	        if (reservedMemory.compareAndSet(current, current + bytes))
+	          return true;
+	      }
+	    }
+	    
+	    @Override
+	    public OutputStream getOutputStream()
+	      throws ManifoldCFException
+	    {
+	      return outputStream;
+	    }
+
+	    /** Get new binary length.
+	    */
+	    @Override
+	    public long getBinaryLength()
+	      throws ManifoldCFException
+	    {
+	      if (overflow != null)
+	        return overflow.getBinaryLength();
+	      return outputStream.size();
+	    }
+	    
+	    /** Get the input stream to read from.  Caller should explicitly close this stream when done reading.
+	    * The stream is a view over the spool buffer, not a copy; the buffer is only recycled once the
+	    * storage and all of its views have been closed.
+	    */
+	    @Override
+	    public InputStream getInputStream()
+	      throws ManifoldCFException
+	    {
+	      if (overflow != null)
+	        return overflow.getInputStream();
+	      openViews.incrementAndGet();
+	      return new BufferView(outputStream.buffer(), outputStream.size());
+	    }
+	    
+	    /** Close the object and clean up everything.
+	    * This should be called when the data is no longer needed.
+	    */
+	    @Override
+	    public void close()
+	      throws ManifoldCFException
+	    {
+	      if (closed.compareAndSet(false, true))
+	      {
+	        synchronized (outputStream)
+	        {
+	          reservedMemory.addAndGet(-reservation);
+	          reservation = 0L;
+	        }
+	        if (openViews.get() == 0)
+	          recycle();
+	        if (overflow != null)
+	          overflow.close();
+	      }
+	    }
+
+	    protected void recycle()
+	    {
+	      if (recycled.compareAndSet(false, true))
+	        giveBuffer(outputStream.buffer());
+	    }
+
+	    protected static int bufferSizeFor(int sizeHint)
+	    {
+	      int size = MIN_BUFFER_SIZE;
+	      while (size < sizeHint)
+	        size <<= 1;
+	      return size;
+	    }
+
+	    protected static int poolIndex(int bufferSize)
+	    {
+	      return Integer.numberOfTrailingZeros(bufferSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	    }
+
+	    protected static byte[] takeBuffer(int bufferSize)
+	    {
+	      int index = poolIndex(bufferSize);
+	      if (index < POOL_COUNT)
+	      {
+	        byte[] buffer = bufferPools[index].poll();
+	        if (buffer != null)
+	        {
+	          pooledCounts[index].decrementAndGet();
+	          return buffer;
+	        }
+	      }
+	      return new byte[bufferSize];
+	    }
+
+	    protected static void giveBuffer(byte[] buffer)
+	    {
+	      // A spilled spool hands back an empty buffer, so only keep sizes we hand out
+	      int size = buffer.length;
+	      if (size < MIN_BUFFER_SIZE || Integer.bitCount(size) != 1)
+	        return;
+	      int index = poolIndex(size);
+	      if (index >= POOL_COUNT)
+	        return;
+	      if (pooledCounts[index].incrementAndGet() > MAX_POOLED_BUFFERS)
+	      {
+	        pooledCounts[index].decrementAndGet();
+	        return;
+	      }
+	      bufferPools[index].offer(buffer);
+	    }
+
+	    /** Output stream writing into a supplied buffer, which is exposed for views rather than copied.
+	    * The buffer never grows past what is reserved for it: a document longer than announced first
+	    * reserves a larger buffer, and once that would leave the in-memory tier or exceed the budget,
+	    * everything is moved to a disk spool and the reservation is given back.
+	    */
+	    protected class SpoolBuffer extends OutputStream
+	    {
+	      protected byte[] buf;
+	      protected int count = 0;
+
+	      public SpoolBuffer(byte[] initialBuffer)
+	      {
+	        buf = initialBuffer;
+	      }
+
+	      public synchronized byte[] buffer()
+	      {
+	        return buf;
+	      }
+
+	      public synchronized int size()
+	      {
+	        return count;
+	      }
+
+	      @Override
+	      public void write(int b)
+	        throws IOException
+	      {
+	        write(new byte[]{(byte)b}, 0, 1);
+	      }
+
+	      @Override
+	      public synchronized void write(byte[] b, int off, int len)
+	        throws IOException
+	      {
+	        try
+	        {
+	          if (overflow == null && (long)count + len > buf.length && !grow((long)count + len))
+	            spill();
+	          if (overflow != null)
+	          {
+	            overflow.getOutputStream().write(b, off, len);
+	            return;
+	          }
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        System.arraycopy(b, off, buf, count, len);
+	        count += len;
+	      }
+
+	      @Override
+	      public synchronized void close()
+	        throws IOException
+	      {
+	        if (overflow == null)
+	          return;
+	        try
+	        {
+	          overflow.getOutputStream().close();
+	        }
+	        catch (ManifoldCFException e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	      }
+
+	      /** Move to a larger pooled buffer, reserving the difference against the budget.
+	      *@return false if the document no longer fits the in-memory tier or the budget.
+	      */
+	      protected boolean grow(long needed)
+	        throws ManifoldCFException
+	      {
+	        if (needed > inMemoryMaximumFile)
+	          return false;
+	        int bufferSize = bufferSizeFor((int)needed);
+	        if (!reserve(bufferSize - reservation))
+	          return false;
+	        reservation = bufferSize;
+	        byte[] larger = takeBuffer(bufferSize);
+	        System.arraycopy(buf, 0, larger, 0, count);
+	        retire(buf);
+	        buf = larger;
+	        return true;
+	      }
+
+	      /** Move everything written so far to a disk spool, and give the buffer and its reservation back.
+	      */
+	      protected void spill()
+	        throws ManifoldCFException, IOException
+	      {
+	        FileDestinationStorage spool;
+	        try
+	        {
+	          // The bytes are already accepted; the quota only applies to new documents
+	          spool = new FileDestinationStorage(count, false);
+	        }
+	        catch (ServiceInterruption e)
+	        {
+	          throw new IOException(e.getMessage(), e);
+	        }
+	        spool.getOutputStream().write(buf, 0, count);
+	        overflow = spool;
+	        reservedMemory.addAndGet(-reservation);
+	        reservation = 0L;
+	        retire(buf);
+	        buf = new byte[0];
+	        count = 0;
+	      }
+
+	      /** Recycle a buffer that has been replaced, unless a view may still be reading it.
+	      */
+	      protected void retire(byte[] buffer)
+	      {
+	        if (openViews.get() == 0)
+	          giveBuffer(buffer);
+	      }
+	    }
+
+	    /** Read-only view over the spool buffer.
+	    */
+	    protected class BufferView extends ByteArrayInputStream
+	    {
+	      protected final AtomicBoolean viewClosed = new AtomicBoolean(false);
+
+	      public BufferView(byte[] buffer, int length)
+	      {
+	        super(buffer, 0, length);
+	      }
+
+	      @Override
+	      public void close()
+	        throws IOException
+	      {
+	        if (viewClosed.compareAndSet(false, true))
+	        {
+	          if (openViews.decrementAndGet() == 0 && closed.get())
+	            recycle();
+	        }
+	      }
+	    }
+
+	  }
+
 	protected static class SpecPacker {
 
 		private final String micoServer;
 		private final String micoUser;
 		private final String micoPassword;
 		private final String micoDocUriField;
+		private final boolean micoAsync;
+		private final boolean micoPassThrough;
+		private final String micoMaxConcurrency;
 
 		public SpecPacker(Specification os) {
 
@@ -456,6 +1406,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			String micoUser = null;
 			String micoPassword = null;
 			String micoDocUriField = null;
+			boolean micoAsync = false;
+			boolean micoPassThrough = false;
+			String micoMaxConcurrency = null;
 
 			for (int i = 0; i < os.getChildCount(); i++) {
 				SpecificationNode sn = os.getChild(i);
@@ -467,6 +1420,12 @@ public class MicoExtractor extends BaseTransformationConnector {
 					micoPassword = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
 				} else if (sn.getType().equals(MicoConfig.NODE_MICO_DOC_URI_FIELD)) {
 					micoDocUriField = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_ASYNC)) {
+					micoAsync = "true".equals(sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE));
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_PASSTHROUGH)) {
+					micoPassThrough = "true".equals(sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE));
+				} else if (sn.getType().equals(MicoConfig.NODE_MICO_MAX_CONCURRENCY)) {
+					micoMaxConcurrency = sn.getAttributeValue(MicoConfig.ATTRIBUTE_VALUE);
 				}
 
 			}
@@ -474,6 +1433,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			this.micoUser = micoUser;
 			this.micoPassword = micoPassword;
 			this.micoDocUriField = micoDocUriField;
+			this.micoAsync = micoAsync;
+			this.micoPassThrough = micoPassThrough;
+			this.micoMaxConcurrency = micoMaxConcurrency;
 		}
 
 		public String toPackedString() {
@@ -502,6 +1464,9 @@ public class MicoExtractor extends BaseTransformationConnector {
 			} else {
 				sb.append('-');
 			}
+			// The asynchronous, passthrough and concurrency settings only change
+			// how documents are delivered, not what is indexed, so they are left
+			// out of the version string to avoid recrawling on every change
 			return sb.toString();
 		}
 
@@ -521,6 +1486,33 @@ public class MicoExtractor extends BaseTransformationConnector {
 			return micoDocUriField;
 		}
 
+		public boolean isMicoAsync() {
+			return micoAsync;
+		}
+
+		public boolean isMicoPassThrough() {
+			return micoPassThrough;
+		}
+
+		public String getMicoMaxConcurrency() {
+			return micoMaxConcurrency;
+		}
+
+		/**
+		 * Get the fixed ceiling for concurrent injections, or 0 if there is
+		 * none.
+		 */
+		public int getMicoMaxConcurrencyLimit() {
+			if (micoMaxConcurrency == null || micoMaxConcurrency.trim().length() == 0) {
+				return 0;
+			}
+			try {
+				return Integer.parseInt(micoMaxConcurrency.trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
 	}
 
 }
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Process-wide measurements of the connector: a latency histogram and an
+ * error count per processing stage, byte counters, and document counts per
+ * media type and per reason for skipping injection.
+ * 
+ * Recording only touches atomic counters, so it is cheap enough to leave on.
+ * The measurements are registered as an MXBean under {@link #OBJECT_NAME},
+ * and summarized in the log at the interval set by
+ * {@link MicoConfig#PROPERTY_METRICS_LOG_INTERVAL}.
+ */
+public class MicoMetrics implements MicoMetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.apache.manifoldcf.mico:type=Metrics,connector=text";
+
+	/** Default interval between log summaries. */
+	protected static final long DEFAULT_LOG_INTERVAL = 300000L;
+
+	/**
+	 * The measured stages of processing a document.
+	 */
+	public enum Stage {
+		SPOOL, EXTRACT, CREATE, UPLOAD, SUBMIT, SEND
+	}
+
+	/**
+	 * Reasons a document is not injected.
+	 */
+	public enum Skip {
+		/** Multimedia, left to the multimedia connector. */
+		NOT_ACCEPTED,
+		/** Unchanged since it was injected. */
+		UNCHANGED,
+		/** No text could be extracted. */
+		NO_TEXT,
+		/** MICO unavailable; rescheduled. */
+		RESCHEDULED,
+		/** MICO unavailable; forwarded without MICO. */
+		PASSED_THROUGH
+	}
+
+	private static final MicoMetrics instance = new MicoMetrics();
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+	private final AtomicLong[] errors = new AtomicLong[Stage.values().length];
+	private final AtomicLong[] skips = new AtomicLong[Skip.values().length];
+	private final ConcurrentMap<String, AtomicLong> mediaTypes = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong bytesSpooled = new AtomicLong();
+	private final AtomicLong bytesUploaded = new AtomicLong();
+	private final AtomicLong submissionsDropped = new AtomicLong();
+	private final AtomicLong lastSummary = new AtomicLong(System.currentTimeMillis());
+
+	private MicoMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			errors[i] = new AtomicLong();
+		}
+		for (int i = 0; i < skips.length; i++) {
+			skips[i] = new AtomicLong();
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				// Left behind by an earlier copy of the connector classes
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			Logging.agents.warn("Could not register MICO metrics with JMX", e);
+		}
+	}
+
+	/**
+	 * Get the metrics of the connector, as published over JMX.
+	 */
+	public static MicoMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start timing a stage.
+	 * 
+	 * @return the start time, to pass to {@link #record}.
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the completion of a stage that started at the given time.
+	 */
+	public static void record(Stage stage, long start) {
+		instance.latencies[stage.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record the failure of a stage that started at the given time.
+	 */
+	public static void recordError(Stage stage, long start) {
+		record(stage, start);
+		instance.errors[stage.ordinal()].incrementAndGet();
+	}
+
+	public static void recordSkip(Skip reason) {
+		instance.skips[reason.ordinal()].incrementAndGet();
+	}
+
+	public static void recordDocument(String mediaType) {
+		String key = mediaType == null ? "unknown" : mediaType.toLowerCase(Locale.ROOT);
+		AtomicLong count = instance.mediaTypes.get(key);
+		if (count == null) {
+			AtomicLong candidate = new AtomicLong();
+			count = instance.mediaTypes.putIfAbsent(key, candidate);
+			if (count == null) {
+				count = candidate;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	public static void recordSpooled(long bytes) {
+		instance.bytesSpooled.addAndGet(bytes);
+	}
+
+	public static void recordUploaded(long bytes) {
+		instance.bytesUploaded.addAndGet(bytes);
+	}
+
+	public static void recordDropped() {
+		instance.submissionsDropped.incrementAndGet();
+	}
+
+	/**
+	 * Write a summary to the log if the configured interval has passed since
+	 * the last one.
+	 */
+	public static void logSummaryIfDue() throws ManifoldCFException {
+		long interval = MicoConfig.getLongProperty(MicoConfig.PROPERTY_METRICS_LOG_INTERVAL, DEFAULT_LOG_INTERVAL);
+		if (interval <= 0L) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long last = instance.lastSummary.get();
+		if (now - last < interval || !instance.lastSummary.compareAndSet(last, now)) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder("MICO metrics (text):");
+		for (Map.Entry<String, StageStatistics> stage : instance.getStages().entrySet()) {
+			if (stage.getValue().getCount() > 0L) {
+				sb.append("\n  ").append(stage.getKey()).append(": ").append(stage.getValue());
+			}
+		}
+		sb.append("\n  bytes spooled=").append(instance.getBytesSpooled()).append(" uploaded=")
+				.append(instance.getBytesUploaded());
+		sb.append("\n  documents=").append(instance.getDocumentsByMediaType());
+		sb.append("\n  skips=").append(instance.getSkips());
+		sb.append("\n  submissions dropped=").append(instance.getSubmissionsDropped());
+		Logging.agents.info(sb.toString());
+	}
+
+	@Override
+	public Map<String, StageStatistics> getStages() {
+		Map<String, StageStatistics> result = new TreeMap<String, StageStatistics>();
+		for (Stage stage : Stage.values()) {
+			result.put(stage.name().toLowerCase(Locale.ROOT),
+					new StageStatistics(latencies[stage.ordinal()], errors[stage.ordinal()].get()));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getDocumentsByMediaType() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : mediaTypes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getSkips() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Skip skip : Skip.values()) {
+			result.put(skip.name().toLowerCase(Locale.ROOT), skips[skip.ordinal()].get());
+		}
+		return result;
+	}
+
+	@Override
+	public long getBytesSpooled() {
+		return bytesSpooled.get();
+	}
+
+	@Override
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	@Override
+	public long getSubmissionsDropped() {
+		return submissionsDropped.get();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i].reset();
+			errors[i].set(0L);
+		}
+		for (AtomicLong skip : skips) {
+			skip.set(0L);
+		}
+		mediaTypes.clear();
+		bytesSpooled.set(0L);
+		bytesUploaded.set(0L);
+		submissionsDropped.set(0L);
+	}
+}
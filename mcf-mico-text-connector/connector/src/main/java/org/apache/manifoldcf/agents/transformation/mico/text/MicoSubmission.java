@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+import org.zaizi.mico.client.model.ContentPart;
+
+/**
+ * One document's worth of work for the MICO platform: create a content item,
+ * upload the spooled text as its part, or as several parts if it is longer
+ * than the configured segment size (see {@link SegmentedUpload}), and submit
+ * it for processing.
+ * 
+ * A submission can either be run in the calling thread through
+ * {@link #submit()}, or handed to the {@link MicoSubmissionQueue}, in which
+ * case a worker runs it as part of a {@link MicoBatch} and the spooled content
+ * is released once the upload has finished.
+ */
+public class MicoSubmission {
+
+	private final String micoServer;
+	private final String micoUser;
+	private final String micoPassword;
+	private final String mediaType;
+	private final String documentURI;
+	private final MicoExtractor.DestinationStorage storage;
+	private final byte[] documentKey;
+	private final DocumentIndex.State documentState;
+
+	public MicoSubmission(String micoServer, String micoUser, String micoPassword, String mediaType,
+			String documentURI, MicoExtractor.DestinationStorage storage) {
+		this(micoServer, micoUser, micoPassword, mediaType, documentURI, storage, null, null);
+	}
+
+	/**
+	 * @param documentKey
+	 *            is the {@link DocumentIndex} key of the document, under which
+	 *            the new content item is recorded together with the
+	 *            documentState, or null.
+	 */
+	public MicoSubmission(String micoServer, String micoUser, String micoPassword, String mediaType,
+			String documentURI, MicoExtractor.DestinationStorage storage, byte[] documentKey,
+			DocumentIndex.State documentState) {
+		this.micoServer = micoServer;
+		this.micoUser = micoUser;
+		this.micoPassword = micoPassword;
+		this.mediaType = mediaType;
+		this.documentURI = documentURI;
+		this.storage = storage;
+		this.documentKey = documentKey;
+		this.documentState = documentState;
+	}
+
+	public String getDocumentURI() {
+		return documentURI;
+	}
+
+	public String getMicoServer() {
+		return micoServer;
+	}
+
+	public String getMicoUser() {
+		return micoUser;
+	}
+
+	public String getMicoPassword() {
+		return micoPassword;
+	}
+
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	public byte[] getDocumentKey() {
+		return documentKey;
+	}
+
+	public DocumentIndex.State getDocumentState() {
+		return documentState;
+	}
+
+	/**
+	 * Open the spooled content. Caller should explicitly close the stream when
+	 * done reading.
+	 */
+	public InputStream openContent() throws ManifoldCFException {
+		return storage.getInputStream();
+	}
+
+	/**
+	 * Get the endpoint this submission goes to.
+	 */
+	public MicoEndpoint getEndpoint() {
+		return MicoEndpoint.get(micoServer, micoUser, micoPassword);
+	}
+
+	/**
+	 * Get the number of bytes to upload.
+	 */
+	public long getLength() throws ManifoldCFException {
+		return storage.getBinaryLength();
+	}
+
+	/**
+	 * Inject the document into MICO from the calling thread.
+	 * 
+	 * @return the submitted content item.
+	 */
+	public ContentItem submit() throws MicoClientException, ManifoldCFException {
+		DocumentFlight flight = beginFlight();
+		try {
+			return submit(flight);
+		} finally {
+			flight.end();
+		}
+	}
+
+	/**
+	 * Inject the document into MICO from the calling thread, recording the
+	 * calls in the given flight.
+	 * 
+	 * @return the submitted content item.
+	 * @throws RefusedException
+	 *             if the endpoint's circuit breaker did not let the request
+	 *             through, in which case MICO was not called.
+	 */
+	public ContentItem submit(DocumentFlight flight) throws MicoClientException, ManifoldCFException {
+		MicoEndpoint endpoint = getEndpoint();
+		ContentItem ci;
+		CircuitBreaker breaker = endpoint.getCircuitBreaker();
+		ConcurrencyLimiter limiter = endpoint.getConcurrencyLimiter();
+
+		limiter.acquire();
+		try {
+			// The half-open probe is only claimed now that the request is about
+			// to be made, and is handed on however this ends
+			if (!breaker.allowRequest()) {
+				flight.setOutcome("refused");
+				throw new RefusedException("MICO endpoint " + micoServer + " is unavailable",
+						breaker.getRetryTime());
+			}
+			boolean reported = false;
+			try {
+				Injector injector = endpoint.acquireInjector();
+				boolean succeeded = false;
+				long start = System.currentTimeMillis();
+				MicoMetrics.Stage stage = MicoMetrics.Stage.CREATE;
+				long stageStart = MicoMetrics.start();
+				try {
+					ci = injector.createContentItem();
+					MicoMetrics.record(stage, stageStart);
+					flight.recordCall(stage, stageStart, true);
+					limiter.sample(System.currentTimeMillis() - start, true);
+					stage = MicoMetrics.Stage.UPLOAD;
+					stageStart = MicoMetrics.start();
+					addContent(injector, ci);
+					MicoMetrics.record(stage, stageStart);
+					flight.recordCall(stage, stageStart, true);
+					stage = MicoMetrics.Stage.SUBMIT;
+					stageStart = MicoMetrics.start();
+					injector.submitContentItem(ci);
+					MicoMetrics.record(stage, stageStart);
+					flight.recordCall(stage, stageStart, true);
+					succeeded = true;
+					reported = true;
+					breaker.recordSuccess(System.currentTimeMillis() - start);
+				} catch (MicoClientException e) {
+					MicoMetrics.recordError(stage, stageStart);
+					flight.recordCall(stage, stageStart, false);
+					flight.setOutcome("failed");
+					reported = true;
+					breaker.recordFailure(System.currentTimeMillis() - start);
+					limiter.sample(System.currentTimeMillis() - start, false);
+					rejected();
+					throw e;
+				} finally {
+					if (succeeded) {
+						endpoint.releaseInjector(injector);
+					} else {
+						endpoint.discardInjector(injector);
+					}
+				}
+			} finally {
+				if (!reported) {
+					breaker.recordAbandoned();
+				}
+			}
+		} finally {
+			limiter.release();
+		}
+
+		flight.setContentItem(ci.getUri());
+		flight.setOutcome("injected");
+		submitted(ci);
+		return ci;
+	}
+
+	/**
+	 * Start the flight recording of an injection that does not belong to the
+	 * extractor's recording of the document.
+	 */
+	public DocumentFlight beginFlight() {
+		DocumentFlight flight = DocumentFlight.begin(documentURI, DocumentFlight.KIND_SUBMISSION);
+		flight.setMediaType(mediaType);
+		flight.setSpoolTier(MicoExtractor.spoolTier(storage));
+		try {
+			flight.setSize(storage.getBinaryLength());
+		} catch (ManifoldCFException e) {
+			// Left unknown
+		}
+		return flight;
+	}
+
+	/**
+	 * Upload the spooled content as the only part of a content item, or, if
+	 * it has more characters than the configured segment size, as several
+	 * parts in parallel (see {@link SegmentedUpload}).
+	 */
+	public void addContent(Injector injector, ContentItem ci) throws MicoClientException, ManifoldCFException {
+		int segmentSize = SegmentedUpload.getSegmentSize();
+		if (segmentSize > 0 && isLongerThan(segmentSize)) {
+			InputStream is = storage.getInputStream();
+			try {
+				new SegmentedUpload(getEndpoint(), mediaType, documentURI).upload(ci, is, segmentSize);
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+					Logging.agents.debug("Could not close spooled content for " + documentURI, e);
+				}
+			}
+			return;
+		}
+		long length = storage.getBinaryLength();
+		long uploaded = length;
+		ContentPart contentPart;
+		InputStream is = storage.getInputStream();
+		try {
+			if (GzipInputStream.isCompressed(getEndpoint(), length)) {
+				GzipInputStream gzip = new GzipInputStream(is, length);
+				is = gzip;
+				contentPart = injector.addContentPart(ci, GzipInputStream.MEDIA_TYPE, documentURI, gzip);
+				uploaded = gzip.getBytesRead();
+			} else {
+				contentPart = injector.addContentPart(ci, mediaType, documentURI, is);
+			}
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				Logging.agents.debug("Could not close spooled content for " + documentURI, e);
+			}
+		}
+		ci.addContentPart(contentPart);
+		MicoMetrics.recordUploaded(uploaded);
+		if (Logging.agents.isDebugEnabled()) {
+			Logging.agents.debug("Uploaded " + contentPart.getUri() + " for " + documentURI
+					+ (uploaded != length ? " (" + length + " bytes compressed to " + uploaded + ")" : ""));
+		}
+	}
+
+	/**
+	 * Find out whether the spooled UTF-8 text has more than the given number
+	 * of characters. A text never has more characters than bytes, so only
+	 * texts longer than that in bytes are read, and only as far as needed.
+	 */
+	private boolean isLongerThan(int characters) throws ManifoldCFException {
+		if (storage.getBinaryLength() <= characters) {
+			return false;
+		}
+		Reader reader = new InputStreamReader(storage.getInputStream(), StandardCharsets.UTF_8);
+		try {
+			long skipped = 0L;
+			while (skipped < characters) {
+				long n = reader.skip(characters - skipped);
+				if (n <= 0L) {
+					return false;
+				}
+				skipped += n;
+			}
+			return reader.read() != -1;
+		} catch (IOException e) {
+			throw new ManifoldCFException("Could not read spooled text of " + documentURI, e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				Logging.agents.debug("Could not close spooled content for " + documentURI, e);
+			}
+		}
+	}
+
+	/**
+	 * Note that the content item for this document has been submitted.
+	 */
+	public void submitted(ContentItem ci) {
+		Logging.agents.info("Submitted " + documentURI + " as Content Item " + ci.getUri());
+		if (documentKey != null) {
+			DocumentIndex.record(documentKey, documentState, ci.getUri());
+		}
+	}
+
+	/**
+	 * Note that MICO did not take the content item for this document. Any
+	 * content item recorded for an earlier version of the document no longer
+	 * stands for it, so the document is injected again next time even if it
+	 * then looks unchanged.
+	 */
+	public void rejected() {
+		if (documentKey != null) {
+			DocumentIndex.invalidate(documentKey);
+		}
+	}
+
+	/**
+	 * Release the spooled content, once a worker is done with the submission.
+	 */
+	public void release() {
+		try {
+			storage.close();
+		} catch (ManifoldCFException e) {
+			Logging.agents.warn("Could not release spooled content for " + documentURI, e);
+		}
+	}
+
+	/**
+	 * Thrown by {@link MicoSubmission#submit(DocumentFlight)} when the endpoint
+	 * is not taking requests. Unlike other client exceptions it says nothing
+	 * about the document, which should simply be tried again after
+	 * {@link #getRetryTime()}.
+	 */
+	public static class RefusedException extends MicoClientException {
+		private static final long serialVersionUID = 1L;
+
+		private final long retryTime;
+
+		public RefusedException(String message, long retryTime) {
+			super(message);
+			this.retryTime = retryTime;
+		}
+
+		/**
+		 * @return the time at which the endpoint may take requests again.
+		 */
+		public long getRetryTime() {
+			return retryTime;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Bounded, process-wide queue of pending MICO submissions, served by a fixed
+ * pool of daemon worker threads. The pool size and queue capacity are read
+ * once from the ManifoldCF properties file.
+ * 
+ * Workers take submissions off the queue in batches (see {@link MicoBatch}).
+ * A batch is closed once it holds the configured number of documents or
+ * bytes, or when the linger time has passed since its first document was
+ * taken. With the default linger of 0 a worker never waits, and simply takes
+ * whatever is queued at that moment.
+ * 
+ * The document of a queued submission has already gone downstream, and is
+ * not handed to the connector again while it is unchanged, so the queue only
+ * takes submissions while the {@link MicoOutbox} is enabled. Once the last
+ * connector instance has been disconnected, whatever is still queued is
+ * moved to the outbox, and the batches in flight are waited for, so that
+ * stopping the agents does not lose them.
+ */
+public class MicoSubmissionQueue {
+
+	/** Default number of submission workers. */
+	protected static final int DEFAULT_WORKERS = 4;
+	/** Default number of submissions that may wait for a worker. */
+	protected static final int DEFAULT_QUEUE_SIZE = 256;
+	/** Default maximum number of documents per batch. */
+	protected static final int DEFAULT_BATCH_SIZE = 16;
+	/** Default maximum number of bytes per batch. */
+	protected static final long DEFAULT_BATCH_BYTES = 8L * 1024L * 1024L;
+	/** Default time a batch may wait for more documents. */
+	protected static final long DEFAULT_BATCH_LINGER = 0L;
+	/** Longest time the last disconnect waits for the batches in flight. */
+	protected static final long DRAIN_TIMEOUT = 60000L;
+
+	private static BlockingQueue<MicoSubmission> queue;
+	/** Connector instances currently connected, see {@link #acquire()}. */
+	private static int users = 0;
+	private static boolean warnedNoOutbox = false;
+	/** Submissions queued or in a batch in flight; guarded by the lock. */
+	private static int unfinished = 0;
+	private static final Object unfinishedLock = new Object();
+
+	private MicoSubmissionQueue() {
+	}
+
+	/**
+	 * Queue a submission for a background worker.
+	 * 
+	 * @return false if the queue is full, in which case the caller still owns
+	 *         the submission and should run it itself.
+	 */
+	public static boolean offer(MicoSubmission submission) throws ManifoldCFException {
+		if (!MicoOutbox.isEnabled()) {
+			synchronized (MicoSubmissionQueue.class) {
+				if (!warnedNoOutbox) {
+					warnedNoOutbox = true;
+					Logging.agents.warn("Asynchronous MICO submission needs the MICO outbox, which is not "
+							+ "enabled; submitting from the crawler threads instead");
+				}
+			}
+			return false;
+		}
+		BlockingQueue<MicoSubmission> current = getQueue();
+		synchronized (unfinishedLock) {
+			if (current.offer(submission)) {
+				unfinished++;
+				return true;
+			}
+		}
+		Logging.agents.debug("MICO submission queue is full; submitting " + submission.getDocumentURI()
+				+ " synchronously");
+		return false;
+	}
+
+	/**
+	 * Note that a connector instance has been connected.
+	 */
+	public static synchronized void acquire() {
+		users++;
+	}
+
+	/**
+	 * Note that a connector instance has been disconnected. The last one to go
+	 * moves the queued submissions to the outbox, and waits for the batches
+	 * in flight.
+	 */
+	public static void release() {
+		BlockingQueue<MicoSubmission> current;
+		synchronized (MicoSubmissionQueue.class) {
+			if (users > 0) {
+				users--;
+			}
+			if (users > 0 || queue == null) {
+				return;
+			}
+			current = queue;
+		}
+		List<MicoSubmission> queued = new ArrayList<MicoSubmission>();
+		synchronized (unfinishedLock) {
+			current.drainTo(queued);
+			finished(queued.size());
+		}
+		for (MicoSubmission submission : queued) {
+			try {
+				MicoOutbox.deferOrDrop(submission);
+			} finally {
+				submission.release();
+			}
+		}
+		if (!queued.isEmpty()) {
+			Logging.agents.info("Moved " + queued.size() + " queued MICO submissions to the outbox");
+		}
+		try {
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+			synchronized (unfinishedLock) {
+				while (unfinished > 0) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0L) {
+						Logging.agents.warn("MICO submission batches still in flight after " + DRAIN_TIMEOUT
+								+ " ms");
+						break;
+					}
+					unfinishedLock.wait(wait);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Note that submissions have left the queue and are done with.
+	 */
+	private static void finished(int count) {
+		synchronized (unfinishedLock) {
+			unfinished -= count;
+			unfinishedLock.notifyAll();
+		}
+	}
+
+	private static synchronized BlockingQueue<MicoSubmission> getQueue() throws ManifoldCFException {
+		if (queue == null) {
+			int workers = Math.max(1, MicoConfig.getIntProperty(MicoConfig.PROPERTY_ASYNC_WORKERS, DEFAULT_WORKERS));
+			int queueSize = Math.max(1,
+					MicoConfig.getIntProperty(MicoConfig.PROPERTY_ASYNC_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+			int batchSize = Math.max(1,
+					MicoConfig.getIntProperty(MicoConfig.PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+			long batchBytes = Math.max(1L,
+					MicoConfig.getLongProperty(MicoConfig.PROPERTY_BATCH_BYTES, DEFAULT_BATCH_BYTES));
+			long batchLinger = Math.max(0L,
+					MicoConfig.getLongProperty(MicoConfig.PROPERTY_BATCH_LINGER, DEFAULT_BATCH_LINGER));
+
+			BlockingQueue<MicoSubmission> newQueue = new ArrayBlockingQueue<MicoSubmission>(queueSize);
+			for (int i = 1; i <= workers; i++) {
+				Thread t = new Thread(new Worker(newQueue, batchSize, batchBytes, batchLinger),
+						"MICO submission worker " + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			queue = newQueue;
+			Logging.agents.info("Started " + workers + " MICO submission workers with a queue of " + queueSize
+					+ ", batching up to " + batchSize + " documents or " + batchBytes + " bytes");
+		}
+		return queue;
+	}
+
+	private static class Worker implements Runnable {
+		private final BlockingQueue<MicoSubmission> queue;
+		private final int batchSize;
+		private final long batchBytes;
+		private final long batchLinger;
+
+		Worker(BlockingQueue<MicoSubmission> queue, int batchSize, long batchBytes, long batchLinger) {
+			this.queue = queue;
+			this.batchSize = batchSize;
+			this.batchBytes = batchBytes;
+			this.batchLinger = batchLinger;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				List<MicoSubmission> batch;
+				try {
+					batch = nextBatch();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					new MicoBatch(batch).run();
+				} catch (RuntimeException e) {
+					Logging.agents.error("Unexpected error in MICO submission worker", e);
+				} finally {
+					finished(batch.size());
+				}
+			}
+		}
+
+		private List<MicoSubmission> nextBatch() throws InterruptedException {
+			List<MicoSubmission> batch = new ArrayList<MicoSubmission>(batchSize);
+			MicoSubmission first = queue.take();
+			batch.add(first);
+			long bytes = lengthOf(first);
+			long deadline = System.currentTimeMillis() + batchLinger;
+			while (batch.size() < batchSize && bytes < batchBytes) {
+				MicoSubmission next;
+				long wait = deadline - System.currentTimeMillis();
+				if (wait > 0L) {
+					try {
+						next = queue.poll(wait, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						// Send what we have; the worker stops at its next take
+						Thread.currentThread().interrupt();
+						break;
+					}
+				} else {
+					next = queue.poll();
+				}
+				if (next == null) {
+					break;
+				}
+				batch.add(next);
+				bytes += lengthOf(next);
+			}
+			return batch;
+		}
+
+		private static long lengthOf(MicoSubmission submission) {
+			try {
+				return submission.getLength();
+			} catch (ManifoldCFException e) {
+				return 0L;
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+import org.zaizi.mico.client.model.ContentPart;
+
+/**
+ * Upload of a long text as several content parts of the same content item.
+ * 
+ * The text is cut into segments of at most the configured number of
+ * characters, preferably at a paragraph break, otherwise at the end of a
+ * sentence or between words. Segments are uploaded in parallel, each over an
+ * injector of its own from the endpoint's pool, with a bounded number in
+ * flight per document so that only that many segments are held in memory.
+ * The parts are added to the content item in text order once all of them
+ * have landed; if one fails, the others are let finish and the whole upload
+ * fails. If the uploading thread is interrupted, the parts in flight are
+ * cancelled and waited for before it gives up.
+ * 
+ * The first segment in flight runs under the injection the document already
+ * holds at the endpoint's {@link ConcurrencyLimiter}; every further one takes
+ * a slot of its own, and is only started if the limiter has one free, so the
+ * parallelism never goes beyond what the endpoint is currently allowed.
+ * 
+ * Segmentation is off unless a segment size is set in the ManifoldCF
+ * properties file.
+ */
+public class SegmentedUpload {
+
+	/** Default segment size; 0 disables segmentation. */
+	protected static final int DEFAULT_SEGMENT_SIZE = 0;
+	/** Default number of segments of a document uploaded at once. */
+	protected static final int DEFAULT_PARALLELISM = 4;
+
+	private static ExecutorService executor;
+
+	private final MicoEndpoint endpoint;
+	private final String mediaType;
+	private final String documentURI;
+
+	public SegmentedUpload(MicoEndpoint endpoint, String mediaType, String documentURI) {
+		this.endpoint = endpoint;
+		this.mediaType = mediaType;
+		this.documentURI = documentURI;
+	}
+
+	/**
+	 * Get the maximum number of characters per segment, or 0 if texts are not
+	 * to be segmented.
+	 */
+	public static int getSegmentSize() throws ManifoldCFException {
+		return Math.max(0, MicoConfig.getIntProperty(MicoConfig.PROPERTY_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE));
+	}
+
+	/**
+	 * Upload UTF-8 text as consecutive parts of a content item.
+	 * 
+	 * @return the number of parts uploaded.
+	 */
+	public int upload(ContentItem ci, InputStream text, int segmentSize) throws MicoClientException,
+			ManifoldCFException {
+		int parallelism = Math.max(1,
+				MicoConfig.getIntProperty(MicoConfig.PROPERTY_SEGMENT_PARALLELISM, DEFAULT_PARALLELISM));
+		ConcurrencyLimiter limiter = endpoint.getConcurrencyLimiter();
+		Segmenter segmenter = new Segmenter(new InputStreamReader(text, StandardCharsets.UTF_8), segmentSize);
+		CompletionService<Part> completion = new ExecutorCompletionService<Part>(getExecutor());
+		List<ContentPart> parts = new ArrayList<ContentPart>();
+		List<Part> started = new ArrayList<Part>();
+		Exception failure = null;
+		int inFlight = 0;
+		// Limiter slots held for the parts beyond the first in flight
+		int slots = 0;
+		boolean exhausted = false;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				while (failure == null && !interrupted && !exhausted && inFlight < parallelism) {
+					if (inFlight > 0) {
+						if (!limiter.tryAcquire()) {
+							break;
+						}
+						slots++;
+					}
+					String segment;
+					try {
+						segment = segmenter.next();
+					} catch (IOException e) {
+						failure = new ManifoldCFException("Could not read spooled text of " + documentURI, e);
+						break;
+					}
+					if (segment == null) {
+						exhausted = true;
+					} else {
+						parts.add(null);
+						Part part = new Part(ci, parts.size() - 1, segment);
+						started.add(part);
+						completion.submit(part);
+						inFlight++;
+					}
+				}
+				while (slots > Math.max(0, inFlight - 1)) {
+					limiter.release();
+					slots--;
+				}
+				if (inFlight == 0) {
+					break;
+				}
+				// Tasks in flight are always waited for, so that no segment is
+				// uploaded after the document has been given up
+				try {
+					Part part = completion.take().get();
+					parts.set(part.index, part.result);
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause()
+								: new ManifoldCFException("Unexpected error uploading " + documentURI, e.getCause());
+					}
+				} catch (InterruptedException e) {
+					if (!interrupted) {
+						interrupted = true;
+						for (Part part : started) {
+							part.cancel();
+						}
+					}
+					continue;
+				}
+				inFlight--;
+			}
+		} finally {
+			while (slots > 0) {
+				limiter.release();
+				slots--;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new ManifoldCFException("Interrupted uploading " + documentURI, ManifoldCFException.INTERRUPTED);
+		}
+		if (failure instanceof MicoClientException) {
+			throw (MicoClientException) failure;
+		} else if (failure instanceof ManifoldCFException) {
+			throw (ManifoldCFException) failure;
+		} else if (failure != null) {
+			throw new ManifoldCFException("Unexpected error uploading " + documentURI, failure);
+		}
+
+		for (ContentPart part : parts) {
+			ci.addContentPart(part);
+		}
+		Logging.agents.debug("Uploaded " + documentURI + " in " + parts.size() + " parts");
+		return parts.size();
+	}
+
+	/**
+	 * Upload of one segment.
+	 */
+	private class Part implements Callable<Part> {
+		private final ContentItem ci;
+		private final int index;
+		private final String segment;
+		private ContentPart result;
+		/** The thread uploading the segment, while it does. */
+		private Thread runner = null;
+		private boolean cancelled = false;
+
+		Part(ContentItem ci, int index, String segment) {
+			this.ci = ci;
+			this.index = index;
+			this.segment = segment;
+		}
+
+		/**
+		 * Keep the upload from starting, or interrupt it if it has.
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+			if (runner != null) {
+				runner.interrupt();
+			}
+		}
+
+		@Override
+		public Part call() throws MicoClientException, ManifoldCFException {
+			synchronized (this) {
+				if (cancelled) {
+					throw new ManifoldCFException("Upload of " + documentURI + " was cancelled",
+							ManifoldCFException.INTERRUPTED);
+				}
+				runner = Thread.currentThread();
+			}
+			try {
+				upload();
+			} finally {
+				synchronized (this) {
+					runner = null;
+				}
+			}
+			return this;
+		}
+
+		private void upload() throws MicoClientException, ManifoldCFException {
+			byte[] bytes = segment.getBytes(StandardCharsets.UTF_8);
+			String name = documentURI + "#" + (index + 1);
+			GzipInputStream gzip = GzipInputStream.isCompressed(endpoint, bytes.length)
+					? new GzipInputStream(new ByteArrayInputStream(bytes), bytes.length) : null;
+			long uploaded = bytes.length;
+			Injector injector = endpoint.acquireInjector();
+			try {
+				if (gzip != null) {
+					result = injector.addContentPart(ci, GzipInputStream.MEDIA_TYPE, name, gzip);
+					uploaded = gzip.getBytesRead();
+				} else {
+					result = injector.addContentPart(ci, mediaType, name, new ByteArrayInputStream(bytes));
+				}
+			} catch (MicoClientException e) {
+				endpoint.discardInjector(injector);
+				throw e;
+			} catch (RuntimeException e) {
+				endpoint.discardInjector(injector);
+				throw e;
+			} finally {
+				if (gzip != null) {
+					try {
+						gzip.close();
+					} catch (IOException e) {
+						// In-memory segment
+					}
+				}
+			}
+			endpoint.releaseInjector(injector);
+			MicoMetrics.recordUploaded(uploaded);
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threads = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MICO segment upload " + threads.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Cuts text into segments of at most a given number of characters. A cut is
+	 * made at the last paragraph break in the second half of a full segment,
+	 * failing that after the last sentence end, then at the last whitespace,
+	 * and only as a last resort in the middle of a word. Surrogate pairs are
+	 * never split.
+	 */
+	static class Segmenter {
+		private final Reader reader;
+		private final char[] buffer;
+		private int length = 0;
+		private boolean eof = false;
+
+		Segmenter(Reader reader, int segmentSize) {
+			this.reader = reader;
+			this.buffer = new char[Math.max(2, segmentSize)];
+		}
+
+		/**
+		 * @return the next segment, or null once the text is exhausted.
+		 */
+		String next() throws IOException {
+			while (!eof && length < buffer.length) {
+				int n = reader.read(buffer, length, buffer.length - length);
+				if (n < 0) {
+					eof = true;
+				} else {
+					length += n;
+				}
+			}
+			if (length == 0) {
+				return null;
+			}
+			int cut = length < buffer.length ? length : cut();
+			String segment = new String(buffer, 0, cut);
+			System.arraycopy(buffer, cut, buffer, 0, length - cut);
+			length -= cut;
+			return segment;
+		}
+
+		private int cut() {
+			int floor = length / 2;
+			for (int i = length - 1; i > floor; i--) {
+				if (buffer[i] == '\n' && buffer[i - 1] == '\n') {
+					return i + 1;
+				}
+			}
+			for (int i = length - 1; i > floor; i--) {
+				char c = buffer[i - 1];
+				if ((c == '.' || c == '!' || c == '?') && Character.isWhitespace(buffer[i])) {
+					return i + 1;
+				}
+			}
+			for (int i = length - 1; i > floor; i--) {
+				if (Character.isWhitespace(buffer[i])) {
+					return i + 1;
+				}
+			}
+			if (Character.isHighSurrogate(buffer[length - 1])) {
+				return length - 1;
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/**
+ * Manages the directory disk spools are written to.
+ * 
+ * Every process spools into its own subdirectory of the configured location,
+ * and holds a lock on a marker file in it for as long as it runs. When the
+ * first spool file is created, subdirectories whose lock can be taken belong
+ * to processes that are gone, and whatever they left behind is deleted.
+ * 
+ * The bytes spooled to disk are accounted against an optional quota. Only
+ * this connector's spool files are counted, so the quota is the one set for
+ * it alone or half of the one shared with the other MICO connector, see
+ * {@link MicoConfig#getBudget}. A document that does not fit is rescheduled through a
+ * {@link ServiceInterruption}, so a full disk slows the crawl down instead
+ * of failing it. Spool files grow their reservation as they are written, so
+ * this holds for documents of unknown length too; a write that does not fit
+ * fails with a {@link QuotaExceededException} carrying the interruption.
+ */
+public class SpoolDirectory {
+
+	protected static final String PROCESS_DIRECTORY_PREFIX = "proc-";
+	protected static final String LOCK_FILE_NAME = "owner.lock";
+
+	/** How long to wait before retrying a document that did not fit the quota. */
+	protected static final long QUOTA_RETRY_INTERVAL = 60000L;
+	/** How long to keep retrying before giving up on such a document. */
+	protected static final long QUOTA_FAIL_INTERVAL = 3600000L;
+
+	private static final AtomicLong usedBytes = new AtomicLong();
+
+	private static File processDirectory = null;
+	private static RandomAccessFile lockFile = null;
+	private static FileLock processLock = null;
+
+	private SpoolDirectory() {
+	}
+
+	/**
+	 * Create a new, empty spool file in this process's spool directory.
+	 */
+	public static File createSpoolFile() throws ManifoldCFException, IOException {
+		return File.createTempFile("mcfmico", "tmp", getProcessDirectory());
+	}
+
+	/**
+	 * Account for a spool file that is about to be written.
+	 * 
+	 * @param enforceQuota
+	 *            is false when the bytes have to be spooled regardless, for
+	 *            example when an in-memory spool overflows.
+	 * @throws ServiceInterruption
+	 *             if the quota is enforced and the bytes do not fit.
+	 */
+	public static void reserve(long bytes, boolean enforceQuota) throws ManifoldCFException, ServiceInterruption {
+		long quota = MicoConfig.getBudget(MicoConfig.PROPERTY_SPOOL_QUOTA, 0L);
+		while (true) {
+			long current = usedBytes.get();
+			if (enforceQuota && quota > 0L && current + bytes > quota) {
+				long now = System.currentTimeMillis();
+				throw new ServiceInterruption("MICO spool quota of " + quota + " bytes reached (" + current
+						+ " bytes in use, " + bytes + " requested)", null, now + QUOTA_RETRY_INTERVAL,
+						now + QUOTA_FAIL_INTERVAL, -1, false);
+			}
+			if (usedBytes.compareAndSet(current, current + bytes)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Give back the bytes of a spool file that has been deleted.
+	 */
+	public static void release(long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Get the number of bytes currently accounted to spool files.
+	 */
+	public static long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * Find the quota failure behind an exception, for callers whose writes
+	 * go through code that wraps their exceptions, such as a parser.
+	 * 
+	 * @return the failure, or null if the exception was not caused by one.
+	 */
+	public static QuotaExceededException findQuotaExceeded(Throwable t) {
+		while (t != null) {
+			if (t instanceof QuotaExceededException) {
+				return (QuotaExceededException) t;
+			}
+			t = t.getCause();
+		}
+		return null;
+	}
+
+	private static synchronized File getProcessDirectory() throws ManifoldCFException, IOException {
+		if (processDirectory == null) {
+			File root = getRootDirectory();
+			if (!root.isDirectory() && !root.mkdirs()) {
+				throw new ManifoldCFException("Could not create MICO spool directory " + root);
+			}
+			sweep(root);
+
+			File directory = new File(root, PROCESS_DIRECTORY_PREFIX + UUID.randomUUID().toString());
+			if (!directory.mkdir()) {
+				throw new ManifoldCFException("Could not create MICO spool directory " + directory);
+			}
+			lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+			processLock = lockFile.getChannel().tryLock();
+			if (processLock == null) {
+				throw new ManifoldCFException("Could not lock MICO spool directory " + directory);
+			}
+			processDirectory = directory;
+			Logging.agents.info("Spooling MICO documents to " + directory);
+		}
+		return processDirectory;
+	}
+
+	private static File getRootDirectory() {
+		String location = ManifoldCF.getProperty(MicoConfig.PROPERTY_SPOOL_DIRECTORY);
+		if (location == null || location.trim().length() == 0) {
+			return new File(System.getProperty("java.io.tmpdir"), "mcfmico");
+		}
+		return new File(location.trim());
+	}
+
+	/**
+	 * Delete the spool directories of processes that no longer exist.
+	 */
+	private static void sweep(File root) {
+		File[] children = root.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (!child.isDirectory() || !child.getName().startsWith(PROCESS_DIRECTORY_PREFIX)) {
+				continue;
+			}
+			if (isAbandoned(child)) {
+				int count = deleteContents(child);
+				if (!child.delete()) {
+					Logging.agents.warn("Could not remove abandoned MICO spool directory " + child);
+				} else if (count > 0) {
+					Logging.agents.info("Removed " + count + " abandoned MICO spool files from " + child);
+				}
+			}
+		}
+	}
+
+	private static boolean isAbandoned(File directory) {
+		File lock = new File(directory, LOCK_FILE_NAME);
+		if (!lock.exists()) {
+			return true;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(lock, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				FileLock fileLock = channel.tryLock();
+				if (fileLock == null) {
+					return false;
+				}
+				fileLock.release();
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (OverlappingFileLockException e) {
+			// Locked by this very JVM
+			return false;
+		} catch (IOException e) {
+			Logging.agents.warn("Could not check MICO spool directory " + directory, e);
+			return false;
+		}
+	}
+
+	private static int deleteContents(File directory) {
+		int count = 0;
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return count;
+		}
+		for (File file : files) {
+			if (file.delete()) {
+				if (!file.getName().equals(LOCK_FILE_NAME)) {
+					count++;
+				}
+			} else {
+				Logging.agents.warn("Could not remove abandoned MICO spool file " + file);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Thrown by the output stream of a spool file that has outgrown the quota
+	 * while it was written. The document should be rescheduled through
+	 * {@link #getServiceInterruption()}.
+	 */
+	public static class QuotaExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public QuotaExceededException(ServiceInterruption cause) {
+			super(cause.getMessage(), cause);
+		}
+
+		public ServiceInterruption getServiceInterruption() {
+			return (ServiceInterruption) getCause();
+		}
+	}
+}
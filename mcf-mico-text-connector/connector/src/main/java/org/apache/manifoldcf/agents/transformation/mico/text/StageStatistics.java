@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+/**
+ * Snapshot of the measurements of one processing stage, as exposed through
+ * JMX. Latencies are in milliseconds.
+ */
+public class StageStatistics {
+
+	private final long count;
+	private final long errors;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p90Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	public StageStatistics(LatencyHistogram histogram, long errors) {
+		this.count = histogram.getCount();
+		this.errors = errors;
+		this.meanMillis = histogram.getMean() / 1000.0;
+		this.p50Millis = histogram.getPercentile(50.0) / 1000.0;
+		this.p90Millis = histogram.getPercentile(90.0) / 1000.0;
+		this.p99Millis = histogram.getPercentile(99.0) / 1000.0;
+		this.maxMillis = histogram.getMaximum() / 1000.0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP90Millis() {
+		return p90Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d errors=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", count,
+				errors, meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+	}
+}
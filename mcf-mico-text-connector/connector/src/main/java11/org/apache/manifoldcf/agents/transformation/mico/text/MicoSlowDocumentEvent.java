@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The same as {@link MicoDocumentEvent}, but only for documents over the
+ * threshold, and with the stack trace of the thread that finished them.
+ * The threshold can be changed in the recording settings.
+ */
+@Name("org.apache.manifoldcf.mico.text.SlowDocument")
+@Label("MICO Slow Document")
+@Description("A document that took the MICO text connector longer than the threshold")
+@StackTrace(true)
+@Threshold("10 s")
+public class MicoSlowDocumentEvent extends DocumentEvent {
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelFileInputStreamTest {
+
+	private File spoolFile;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		spoolFile = File.createTempFile("channel", ".spool");
+		content = new byte[100];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		FileUtils.writeByteArrayToFile(spoolFile, content);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(spoolFile);
+	}
+
+	@Test
+	public void readsTheWholeFile() throws Exception {
+		ChannelFileInputStream is = new ChannelFileInputStream(spoolFile);
+		try {
+			assertArrayEquals(content, IOUtils.toByteArray(is));
+			assertEquals(-1, is.read());
+			assertEquals(-1, is.read(new byte[8], 0, 8));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void readsFromWhereItLeftOff() throws Exception {
+		ChannelFileInputStream is = new ChannelFileInputStream(spoolFile);
+		try {
+			byte[] b = new byte[40];
+			assertEquals(40, is.read(b, 0, b.length));
+			assertEquals(60, is.available());
+			assertEquals(10, is.read(b, 5, 10));
+			assertEquals(40, b[5]);
+			assertEquals(50, is.read());
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void skipsWithinTheFile() throws Exception {
+		ChannelFileInputStream is = new ChannelFileInputStream(spoolFile);
+		try {
+			assertEquals(15L, is.skip(15L));
+			assertEquals(15, is.read());
+			assertEquals(50L, is.skip(50L));
+			assertEquals(66, is.read());
+			assertEquals(33L, is.skip(1000L));
+			assertEquals(0, is.available());
+			assertEquals(-1, is.read());
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void emptyFileIsAtTheEnd() throws Exception {
+		FileUtils.writeByteArrayToFile(spoolFile, new byte[0]);
+		ChannelFileInputStream is = new ChannelFileInputStream(spoolFile);
+		try {
+			assertEquals(0, is.available());
+			assertEquals(-1, is.read());
+			assertEquals(0L, is.skip(10L));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void closeReleasesTheFile() throws Exception {
+		ChannelFileInputStream is = new ChannelFileInputStream(spoolFile);
+		is.read(new byte[10], 0, 10);
+		is.close();
+		try {
+			is.read(new byte[10], 0, 10);
+			fail("read after close");
+		} catch (IOException e) {
+			// The channel is closed, and nothing else holds on to the file
+		}
+	}
+}
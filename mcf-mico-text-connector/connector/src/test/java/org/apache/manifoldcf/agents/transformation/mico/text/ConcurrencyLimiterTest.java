@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+	private static final long ROUND_TRIP = 10L;
+
+	private TestLimiter limiter;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		limiter = new TestLimiter();
+		limiter.sample(ROUND_TRIP, true);
+	}
+
+	@Test
+	public void startsAtTheInitialLimit() {
+		assertEquals(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, limiter.getLimit());
+	}
+
+	@Test
+	public void growsByOneOverALimitsWorthOfSamplesWhileTheLimitIsUsed() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			limiter.sample(ROUND_TRIP, true);
+		}
+		assertEquals("idle limiter does not grow", ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, limiter.getLimit());
+
+		for (int i = 0; i < ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT - 1; i++) {
+			limiter.acquire();
+		}
+		for (int i = 0; i < 10; i++) {
+			limiter.sample(ROUND_TRIP, true);
+		}
+		assertEquals(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT + 1, limiter.getLimit());
+	}
+
+	@Test
+	public void failureCutsTheLimitOncePerRoundTrip() {
+		limiter.time += ROUND_TRIP;
+		limiter.sample(ROUND_TRIP, false);
+		assertEquals(7, limiter.getLimit());
+		limiter.sample(ROUND_TRIP, false);
+		assertEquals("same round trip", 7, limiter.getLimit());
+		limiter.time += ROUND_TRIP;
+		limiter.sample(ROUND_TRIP, false);
+		assertEquals(6, limiter.getLimit());
+	}
+
+	@Test
+	public void slowRoundTripCutsTheLimit() {
+		limiter.time += 1000L;
+		limiter.sample(ROUND_TRIP * 3, true);
+		assertEquals(7, limiter.getLimit());
+	}
+
+	@Test
+	public void lowestCeilingAppliesUntilItExpires() {
+		limiter.requestCeiling(5);
+		limiter.requestCeiling(3);
+		limiter.requestCeiling(0);
+		assertEquals(3, limiter.getLimit());
+
+		limiter.time += ConcurrencyLimiter.CEILING_EXPIRY / 2;
+		limiter.requestCeiling(5);
+		limiter.time += ConcurrencyLimiter.CEILING_EXPIRY / 2 + 1L;
+		limiter.requestCeiling(0);
+		assertEquals("job asking for 3 has gone quiet", 5, limiter.getLimit());
+
+		limiter.time += ConcurrencyLimiter.CEILING_EXPIRY;
+		limiter.requestCeiling(0);
+		assertEquals(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, limiter.getLimit());
+	}
+
+	@Test
+	public void tryAcquireOnlyTakesAFreeSlot() {
+		limiter.requestCeiling(2);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+		limiter.release();
+		assertTrue(limiter.tryAcquire());
+	}
+
+	private static class TestLimiter extends ConcurrencyLimiter {
+
+		long time = 1000000L;
+
+		TestLimiter() throws ManifoldCFException {
+			super("test");
+		}
+
+		@Override
+		protected long now() {
+			return time;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class FileDestinationStorageTest {
+
+	private static final long INCREMENT = MicoExtractor.FileDestinationStorage.RESERVATION_INCREMENT;
+	private static final long QUOTA = 4L * INCREMENT;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(MicoConfig.PROPERTY_CONNECTOR_PREFIX + "spool.quota", Long.toString(QUOTA));
+		properties.put(MicoConfig.PROPERTY_SPOOL_QUOTA, "1");
+		MicoTestEnvironment.initialize(properties);
+	}
+
+	@After
+	public void tearDown() {
+		assertEquals("every reservation was given back", 0L, SpoolDirectory.getUsedBytes());
+	}
+
+	@Test
+	public void quotaOfTheConnectorTakesPrecedence() throws Exception {
+		assertEquals(QUOTA, MicoConfig.getBudget(MicoConfig.PROPERTY_SPOOL_QUOTA, 0L));
+	}
+
+	@Test
+	public void unknownLengthIsReservedAsItIsWritten() throws Exception {
+		MicoExtractor.FileDestinationStorage ds = new MicoExtractor.FileDestinationStorage(-1L);
+		try {
+			assertEquals(0L, SpoolDirectory.getUsedBytes());
+			OutputStream os = ds.getOutputStream();
+			os.write(new byte[100]);
+			assertEquals(INCREMENT, SpoolDirectory.getUsedBytes());
+			os.write(new byte[(int) INCREMENT]);
+			assertEquals(2L * INCREMENT, SpoolDirectory.getUsedBytes());
+			os.close();
+			assertEquals(INCREMENT + 100L, ds.getBinaryLength());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void writeBeyondTheQuotaFails() throws Exception {
+		MicoExtractor.FileDestinationStorage ds = new MicoExtractor.FileDestinationStorage(-1L);
+		try {
+			OutputStream os = ds.getOutputStream();
+			os.write(new byte[(int) QUOTA]);
+			try {
+				os.write(1);
+				fail("quota exceeded");
+			} catch (SpoolDirectory.QuotaExceededException e) {
+				assertTrue(e.getServiceInterruption() != null);
+			}
+			assertEquals(QUOTA, SpoolDirectory.getUsedBytes());
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test(expected = ServiceInterruption.class)
+	public void sizeHintBeyondTheQuotaIsRescheduled() throws Exception {
+		new MicoExtractor.FileDestinationStorage(QUOTA + 1L);
+	}
+
+	@Test
+	public void overflowOnlyBypassesTheQuotaForItsSizeHint() throws Exception {
+		MicoExtractor.FileDestinationStorage ds = new MicoExtractor.FileDestinationStorage(QUOTA + 1L, false);
+		try {
+			OutputStream os = ds.getOutputStream();
+			os.write(new byte[(int) QUOTA + 1]);
+			try {
+				os.write(new byte[10]);
+				fail("quota exceeded");
+			} catch (SpoolDirectory.QuotaExceededException e) {
+				// expected
+			}
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void reservationIsKeptUntilTheLastStreamIsClosed() throws Exception {
+		byte[] content = "spooled".getBytes("UTF-8");
+		MicoExtractor.FileDestinationStorage ds = new MicoExtractor.FileDestinationStorage(-1L);
+		OutputStream os = ds.getOutputStream();
+		os.write(content);
+		os.close();
+		InputStream is = ds.getInputStream();
+		ds.close();
+		assertEquals(INCREMENT, SpoolDirectory.getUsedBytes());
+		assertArrayEquals(content, IOUtils.toByteArray(is));
+		is.close();
+	}
+}
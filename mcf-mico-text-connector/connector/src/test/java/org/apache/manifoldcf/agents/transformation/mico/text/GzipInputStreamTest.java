@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class GzipInputStreamTest {
+
+	private static final String GZIP_SERVER = "http://gzip.example.org";
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(MicoConfig.PROPERTY_COMPRESSION_THRESHOLD, "100");
+		properties.put(MicoConfig.PROPERTY_COMPRESSION_SERVERS, "http://other.example.org, " + GZIP_SERVER);
+		MicoTestEnvironment.initialize(properties);
+	}
+
+	@Test
+	public void roundTripsThroughGzip() throws Exception {
+		byte[] content = new byte[200000];
+		Random random = new Random(42L);
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) ('a' + random.nextInt(4));
+		}
+		GzipInputStream gzip = new GzipInputStream(new ByteArrayInputStream(content), content.length);
+		byte[] compressed = IOUtils.toByteArray(gzip);
+		gzip.close();
+		assertEquals(compressed.length, gzip.getBytesRead());
+		assertTrue(compressed.length < content.length);
+		assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	@Test
+	public void emptySourceRoundTrips() throws Exception {
+		GzipInputStream gzip = new GzipInputStream(new ByteArrayInputStream(new byte[0]), 0L);
+		byte[] compressed = IOUtils.toByteArray(gzip);
+		gzip.close();
+		assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))).length);
+	}
+
+	@Test
+	public void staysAtTheEndOnceReached() throws Exception {
+		GzipInputStream gzip = new GzipInputStream(new ByteArrayInputStream("text".getBytes("UTF-8")), 4L);
+		long length = IOUtils.toByteArray(gzip).length;
+		assertEquals(-1, gzip.read());
+		assertEquals(-1, gzip.read(new byte[16], 0, 16));
+		assertEquals(length, gzip.getBytesRead());
+		gzip.close();
+	}
+
+	@Test
+	public void onlyCompressesFromTheThresholdForListedServers() throws Exception {
+		MicoEndpoint listed = MicoEndpoint.get(GZIP_SERVER, "user", "password");
+		MicoEndpoint unlisted = MicoEndpoint.get("http://plain.example.org", "user", "password");
+		assertFalse(GzipInputStream.isCompressed(listed, 99L));
+		assertTrue(GzipInputStream.isCompressed(listed, 100L));
+		assertFalse(GzipInputStream.isCompressed(unlisted, 100000L));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MemoryDestinationStorageTest {
+
+	private static final long BUDGET = 4096L;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// the shared budget is split with the multimedia connector
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_SPOOL_MEMORY_BUDGET,
+				Long.toString(2L * BUDGET)));
+	}
+
+	@After
+	public void tearDown() {
+		assertEquals("every reservation was given back", 0L,
+				MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+		assertEquals(0L, SpoolDirectory.getUsedBytes());
+	}
+
+	@Test
+	public void sharedBudgetIsSplitBetweenTheConnectors() throws Exception {
+		assertEquals(BUDGET, MicoConfig.getBudget(MicoConfig.PROPERTY_SPOOL_MEMORY_BUDGET, 0L));
+	}
+
+	@Test
+	public void smallDocumentsGoToMemoryWhileTheBudgetLasts() throws Exception {
+		List<MicoExtractor.DestinationStorage> spools = new ArrayList<MicoExtractor.DestinationStorage>();
+		try {
+			for (int i = 0; i < 4; i++) {
+				spools.add(MicoExtractor.createDestinationStorage(100L));
+				assertEquals("memory", MicoExtractor.spoolTier(spools.get(i)));
+			}
+			assertEquals(BUDGET, MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+			spools.add(MicoExtractor.createDestinationStorage(100L));
+			assertEquals("disk", MicoExtractor.spoolTier(spools.get(4)));
+		} finally {
+			for (MicoExtractor.DestinationStorage ds : spools) {
+				ds.close();
+			}
+		}
+	}
+
+	@Test
+	public void largeDocumentsGoToDisk() throws Exception {
+		MicoExtractor.DestinationStorage ds = MicoExtractor
+				.createDestinationStorage(MicoExtractor.inMemoryMaximumFile + 1L);
+		try {
+			assertEquals("disk", MicoExtractor.spoolTier(ds));
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void longerDocumentReservesALargerBuffer() throws Exception {
+		byte[] content = content(2000);
+		MicoExtractor.MemoryDestinationStorage ds = MicoExtractor.MemoryDestinationStorage.create(100);
+		try {
+			assertEquals(1024L, MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+			write(ds, content);
+			assertEquals(2048L, MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+			assertEquals(content.length, ds.getBinaryLength());
+			assertArrayEquals(content, read(ds));
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void documentBeyondTheBudgetMovesToDisk() throws Exception {
+		byte[] content = content(5000);
+		MicoExtractor.MemoryDestinationStorage ds = MicoExtractor.MemoryDestinationStorage.create(100);
+		try {
+			write(ds, content);
+			assertEquals("the memory reservation is given back once on disk", 0L,
+					MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+			assertEquals(content.length, ds.getBinaryLength());
+			assertArrayEquals(content, read(ds));
+		} finally {
+			ds.close();
+		}
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	private static void write(MicoExtractor.DestinationStorage ds, byte[] content) throws Exception {
+		OutputStream os = ds.getOutputStream();
+		// In two writes, so that the second outgrows what the first left
+		os.write(content, 0, 100);
+		os.write(content, 100, content.length - 100);
+		os.close();
+	}
+
+	private static byte[] read(MicoExtractor.DestinationStorage ds) throws Exception {
+		InputStream is = ds.getInputStream();
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MicoBatchTest {
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// A single failure opens the breaker; there is no outbox to defer to
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_BREAKER_MINIMUM_REQUESTS, "1"));
+	}
+
+	@Test
+	public void everySubmissionIsInjectedAndReleased() throws Exception {
+		StubInjector.Server mico = StubInjector.server("http://batch.example.org");
+		List<MicoSubmission> submissions = submissions("http://batch.example.org", "file:///a", "file:///b",
+				"file:///c");
+		new MicoBatch(submissions).run();
+		assertEquals(3, mico.getCreated());
+		assertEquals(3, mico.getSubmitted());
+		assertEquals(Arrays.asList("file:///a=7", "file:///b=7", "file:///c=7"), mico.getParts());
+		assertReleased(submissions);
+	}
+
+	@Test
+	public void failureOnlyDropsItsOwnSubmission() throws Exception {
+		StubInjector.Server mico = StubInjector.server("http://partial.example.org");
+		mico.failOn("file:///b");
+		List<MicoSubmission> submissions = submissions("http://partial.example.org", "file:///a", "file:///b",
+				"file:///c");
+		long dropped = MicoMetrics.getInstance().getSubmissionsDropped();
+		new MicoBatch(submissions).run();
+		assertEquals(2, mico.getSubmitted());
+		assertEquals(Arrays.asList("file:///a=7", "file:///c=7"), mico.getParts());
+		assertEquals(dropped + 1L, MicoMetrics.getInstance().getSubmissionsDropped());
+		assertReleased(submissions);
+	}
+
+	@Test
+	public void eachDocumentIsSubmittedBeforeTheNextIsCreated() throws Exception {
+		StubInjector.Server mico = StubInjector.server("http://orphans.example.org");
+		mico.failOn("file:///a");
+		List<MicoSubmission> submissions = submissions("http://orphans.example.org", "file:///a", "file:///b",
+				"file:///c");
+		long dropped = MicoMetrics.getInstance().getSubmissionsDropped();
+		new MicoBatch(submissions).run();
+		assertEquals("the failed upload opened the breaker before more items were created", 1, mico.getCreated());
+		assertEquals(0, mico.getSubmitted());
+		assertEquals(dropped + 3L, MicoMetrics.getInstance().getSubmissionsDropped());
+		assertReleased(submissions);
+	}
+
+	@Test
+	public void unavailableEndpointCountsSubmissionsTheOutboxDidNotTake() throws Exception {
+		StubInjector.Server mico = StubInjector.server("http://down.example.org");
+		mico.failOn("create");
+		new MicoBatch(submissions("http://down.example.org", "file:///opens")).run();
+		assertTrue(MicoEndpoint.get("http://down.example.org", "user", "password").getCircuitBreaker().isOpen());
+
+		int created = mico.getCreated();
+		long dropped = MicoMetrics.getInstance().getSubmissionsDropped();
+		List<MicoSubmission> submissions = submissions("http://down.example.org", "file:///x", "file:///y");
+		new MicoBatch(submissions).run();
+		assertEquals("no requests while the breaker is open", created, mico.getCreated());
+		assertEquals(dropped + 2L, MicoMetrics.getInstance().getSubmissionsDropped());
+		assertReleased(submissions);
+	}
+
+	private static List<MicoSubmission> submissions(String micoServer, String... documentURIs) {
+		List<MicoSubmission> submissions = new ArrayList<MicoSubmission>();
+		for (String documentURI : documentURIs) {
+			submissions.add(StubStorage.submission(micoServer, documentURI, "content"));
+		}
+		return submissions;
+	}
+
+	private static void assertReleased(List<MicoSubmission> submissions) throws Exception {
+		for (MicoSubmission submission : submissions) {
+			try {
+				submission.openContent();
+			} catch (IllegalStateException e) {
+				continue;
+			}
+			throw new AssertionError(submission.getDocumentURI() + " was not released");
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.zaizi.mico.client.Injector;
+
+public class MicoEndpointTest {
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_CLIENT_IDLE_TIMEOUT, "1"));
+	}
+
+	@Test
+	public void credentialsShareTheStateOfTheirServer() throws Exception {
+		MicoEndpoint first = MicoEndpoint.get("http://shared.example.org", "user", "password");
+		MicoEndpoint second = MicoEndpoint.get("http://shared.example.org", "other", "secret");
+		assertNotSame(first, second);
+		assertSame(first.getCircuitBreaker(), second.getCircuitBreaker());
+		assertSame(first.getConcurrencyLimiter(), second.getConcurrencyLimiter());
+		assertNotSame(first.getCircuitBreaker(),
+				MicoEndpoint.get("http://elsewhere.example.org", "user", "password").getCircuitBreaker());
+	}
+
+	@Test
+	public void idleEndpointsAreForgotten() throws Exception {
+		MicoEndpoint idle = MicoEndpoint.get("http://idle.example.org", "user", "password");
+		CircuitBreaker breaker = idle.getCircuitBreaker();
+		MicoEndpoint busy = MicoEndpoint.get("http://busy.example.org", "user", "password");
+		Injector injector = busy.acquireInjector();
+		Thread.sleep(10L);
+		MicoEndpoint.evictIdleInjectors();
+		assertNull(MicoEndpoint.find("http://idle.example.org", "user"));
+		assertSame("an injector is out", busy, MicoEndpoint.find("http://busy.example.org", "user"));
+
+		MicoEndpoint again = MicoEndpoint.get("http://idle.example.org", "user", "password");
+		assertNotSame(idle, again);
+		assertSame("the server keeps its breaker", breaker, again.getCircuitBreaker());
+
+		busy.releaseInjector(injector);
+		Thread.sleep(10L);
+		MicoEndpoint.evictIdleInjectors();
+		assertNull(MicoEndpoint.find("http://busy.example.org", "user"));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+public class MicoExtractorTest {
+
+	private static final int MAXIMUM = 1000;
+
+	private int maximumExtractionCharacters;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize();
+	}
+
+	@Before
+	public void setUp() {
+		maximumExtractionCharacters = MicoExtractor.maximumExtractionCharacters;
+		MicoExtractor.maximumExtractionCharacters = MAXIMUM;
+	}
+
+	@After
+	public void tearDown() {
+		MicoExtractor.maximumExtractionCharacters = maximumExtractionCharacters;
+		assertEquals("every reservation was given back", 0L,
+				MicoExtractor.MemoryDestinationStorage.reservedMemory.get());
+		assertEquals(0L, SpoolDirectory.getUsedBytes());
+	}
+
+	@Test
+	public void textIsCutOffAtTheMaximum() throws Exception {
+		// Two bytes each in UTF-8; the maximum counts characters
+		assertEquals(repeat('\u00e9', MAXIMUM), extract(writing(repeat('\u00e9', 5 * MAXIMUM))));
+	}
+
+	@Test
+	public void shortTextIsKeptWhole() throws Exception {
+		assertEquals("some text", extract(writing("some text")).trim());
+	}
+
+	@Test
+	public void unparseableDocumentHasNoText() throws Exception {
+		assertNull(extract(new StubParser() {
+			@Override
+			public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+					throws TikaException {
+				throw new TikaException("Stub failure");
+			}
+		}));
+	}
+
+	/**
+	 * Extract the text of a document with the given parser.
+	 *
+	 * @return the text, or null if the extractor found none.
+	 */
+	private static String extract(final Parser parser) throws Exception {
+		MicoExtractor extractor = new MicoExtractor() {
+			@Override
+			protected Parser getParser() {
+				return parser;
+			}
+		};
+		byte[] content = "the document".getBytes(StandardCharsets.UTF_8);
+		RepositoryDocument document = new RepositoryDocument();
+		document.setMimeType("text/plain");
+		MicoExtractor.DestinationStorage ds = MicoExtractor.createDestinationStorage(content.length);
+		try {
+			OutputStream os = ds.getOutputStream();
+			try {
+				os.write(content);
+			} finally {
+				os.close();
+			}
+			MicoExtractor.DestinationStorage text = extractor.extractText("file:///document", document, ds);
+			if (text == null) {
+				return null;
+			}
+			try {
+				InputStream is = text.getInputStream();
+				try {
+					return IOUtils.toString(is, StandardCharsets.UTF_8);
+				} finally {
+					is.close();
+				}
+			} finally {
+				text.close();
+			}
+		} finally {
+			ds.close();
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	/**
+	 * Make a parser that finds the given text in every document.
+	 */
+	private static Parser writing(final String text) {
+		return new StubParser() {
+			@Override
+			public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+					throws SAXException {
+				XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+				xhtml.startDocument();
+				xhtml.element("p", text);
+				xhtml.endDocument();
+			}
+		};
+	}
+
+	private abstract static class StubParser implements Parser {
+
+		@Override
+		public Set<MediaType> getSupportedTypes(ParseContext context) {
+			return Collections.singleton(MediaType.TEXT_PLAIN);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SegmentedUploadTest {
+
+	private static final String SERVER = "http://segments.example.org";
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		MicoTestEnvironment.initialize(Collections.singletonMap(MicoConfig.PROPERTY_SEGMENT_SIZE, "8"));
+	}
+
+	@Test
+	public void cutsAtAParagraphBreakFirst() throws Exception {
+		assertEquals(Arrays.asList("Some words here.\n\n", "Next. More text"),
+				segments("Some words here.\n\nNext. More text", 28));
+	}
+
+	@Test
+	public void cutsAfterASentenceBeforeOtherWhitespace() throws Exception {
+		assertEquals(Arrays.asList("One sentence. ", "Two words and more"),
+				segments("One sentence. Two words and more", 20));
+	}
+
+	@Test
+	public void cutsBetweenWords() throws Exception {
+		assertEquals(Arrays.asList("alpha beta ", "gamma delta"), segments("alpha beta gamma delta", 12));
+	}
+
+	@Test
+	public void cutsWithinAWordAsALastResort() throws Exception {
+		assertEquals(Arrays.asList("abcd", "efgh", "ij"), segments("abcdefghij", 4));
+	}
+
+	@Test
+	public void neverSplitsASurrogatePair() throws Exception {
+		String face = new String(Character.toChars(0x1F600));
+		assertEquals(Arrays.asList("abc", face + "de"), segments("abc" + face + "de", 4));
+	}
+
+	@Test
+	public void segmentSizeIsCountedInCharacters() throws Exception {
+		StubInjector.Server mico = StubInjector.server(SERVER);
+		// Five characters in ten bytes fit in one segment
+		new MicoBatch(Arrays.asList(StubStorage.submission(SERVER, "file:///short", "\u00e9\u00e9\u00e9\u00e9\u00e9"),
+				StubStorage.submission(SERVER, "file:///long", "one two three"))).run();
+		List<String> parts = mico.getParts();
+		Collections.sort(parts);
+		assertEquals(Arrays.asList("file:///long#1=8", "file:///long#2=5", "file:///short=10"), parts);
+	}
+
+	private static List<String> segments(String text, int segmentSize) throws Exception {
+		SegmentedUpload.Segmenter segmenter = new SegmentedUpload.Segmenter(new StringReader(text), segmentSize);
+		List<String> segments = new ArrayList<String>();
+		String segment;
+		while ((segment = segmenter.next()) != null) {
+			segments.add(segment);
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.zaizi.mico.client.Injector;
+import org.zaizi.mico.client.MicoClientFactory;
+import org.zaizi.mico.client.exception.MicoClientException;
+import org.zaizi.mico.client.model.ContentItem;
+import org.zaizi.mico.client.model.ContentPart;
+
+/**
+ * An injector that answers in-process. The {@link MicoTestEnvironment} makes
+ * {@link Factory} the MICO client factory, so every endpoint uses these.
+ * Uploads are read to the end and their part names and sizes kept per
+ * server, and requests can be made to fail.
+ */
+public class StubInjector implements Injector {
+
+	private static final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+	private final Server server;
+
+	StubInjector(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Get what the stub MICO server at the given address has been sent.
+	 */
+	public static Server server(String micoServer) {
+		Server server = servers.get(micoServer);
+		if (server == null) {
+			Server candidate = new Server();
+			server = servers.putIfAbsent(micoServer, candidate);
+			if (server == null) {
+				server = candidate;
+			}
+		}
+		return server;
+	}
+
+	@Override
+	public ContentItem createContentItem() throws MicoClientException {
+		server.check("create");
+		server.created.incrementAndGet();
+		return new ContentItem();
+	}
+
+	@Override
+	public ContentPart addContentPart(ContentItem ci, String mimeType, String name, InputStream is)
+			throws MicoClientException {
+		server.check(name);
+		long length;
+		try {
+			length = IOUtils.copyLarge(is, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (IOException e) {
+			throw new MicoClientException("Could not read the upload of " + name, e);
+		}
+		server.parts.add(name + "=" + length);
+		return new ContentPart();
+	}
+
+	@Override
+	public void submitContentItem(ContentItem ci) throws MicoClientException {
+		server.check("submit");
+		server.submitted.incrementAndGet();
+	}
+
+	/**
+	 * Hands out {@link StubInjector}s in place of real injectors.
+	 */
+	public static class Factory extends MicoClientFactory {
+
+		private final String micoServer;
+
+		public Factory(String micoServer, String micoUser, String micoPassword) {
+			super(micoServer, micoUser, micoPassword);
+			this.micoServer = micoServer;
+		}
+
+		@Override
+		public Injector createInjectorClient() {
+			return new StubInjector(server(micoServer));
+		}
+	}
+
+	/**
+	 * The requests made to one stub MICO server.
+	 */
+	public static class Server {
+
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger submitted = new AtomicInteger();
+		final List<String> parts = Collections.synchronizedList(new ArrayList<String>());
+		private volatile String failing = null;
+
+		/**
+		 * Fail the requests whose part name contains the given text, or that
+		 * create ("create") or submit ("submit") a content item. Null lets
+		 * everything through.
+		 */
+		public void failOn(String failing) {
+			this.failing = failing;
+		}
+
+		public int getCreated() {
+			return created.get();
+		}
+
+		public int getSubmitted() {
+			return submitted.get();
+		}
+
+		/**
+		 * Get the uploaded parts, as name=length.
+		 */
+		public List<String> getParts() {
+			synchronized (parts) {
+				return new ArrayList<String>(parts);
+			}
+		}
+
+		private void check(String request) throws MicoClientException {
+			String current = failing;
+			if (current != null && request.contains(current)) {
+				throw new MicoClientException("Stub failure of " + request);
+			}
+		}
+	}
+}
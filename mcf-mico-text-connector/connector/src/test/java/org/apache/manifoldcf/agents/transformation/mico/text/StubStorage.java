@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+/**
+ * Spooled content held in a byte array, for submissions made up by tests.
+ */
+public class StubStorage implements MicoExtractor.DestinationStorage {
+
+	private final byte[] content;
+	private boolean closed = false;
+
+	private StubStorage(String content) {
+		this.content = content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Make up a submission of the given content to a server.
+	 */
+	public static MicoSubmission submission(String micoServer, String documentURI, String content) {
+		return new MicoSubmission(micoServer, "user", "password", "text/plain", documentURI,
+				new StubStorage(content));
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ManifoldCFException {
+		throw new IllegalStateException("Stub content is read only");
+	}
+
+	@Override
+	public long getBinaryLength() throws ManifoldCFException {
+		return content.length;
+	}
+
+	@Override
+	public InputStream getInputStream() throws ManifoldCFException {
+		if (closed) {
+			throw new IllegalStateException("Stub content was released");
+		}
+		return new ByteArrayInputStream(content);
+	}
+
+	@Override
+	public void close() throws ManifoldCFException {
+		closed = true;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.manifoldcf.core.interfaces.Configuration;
+import org.apache.manifoldcf.core.interfaces.ConfigurationNode;
+import org.apache.manifoldcf.crawler.tests.BaseITHSQLDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Crawls a generated corpus with a real ManifoldCF job: a file system
+ * repository, the MICO text connector injecting into a
+ * {@link StubMicoServer}, and the null output. The throughput and the time
+ * the job takes are checked against the baseline in
+ * crawl-baseline.properties, so that regressions anywhere along the
+ * pipeline show up at the crawl level.
+ * 
+ * Run with -Dmico.it.recordBaseline=true to write the measured values to
+ * target/crawl-baseline.properties instead of checking them, for updating
+ * the baseline after a deliberate change. A baseline without recorded
+ * values skips the comparison rather than checking against made-up ones.
+ */
+public class CrawlThroughputHSQLDBIT extends BaseITHSQLDB {
+
+	private static final String BASELINE = "crawl-baseline.properties";
+	private static final String[] EXTENSIONS = { "txt", "csv", "xml", "jpg" };
+	private static final int[] SIZES = { 4096, 16384, 8192, 65536 };
+	private static final byte[][] MAGIC = { { 'T', 'e', 'x', 't', ' ' }, { 'a', ',', 'b', ',', 'c', '\n' },
+			{ '<', '?', 'x', 'm', 'l', ' ' },
+			{ (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10, 'J', 'F', 'I', 'F', 0 } };
+
+	private Properties baseline;
+	private File corpus;
+	private StubMicoServer micoServer;
+
+	@Override
+	protected String[] getConnectorNames() {
+		return new String[] { "File Connector" };
+	}
+
+	@Override
+	protected String[] getConnectorClasses() {
+		return new String[] { "org.apache.manifoldcf.crawler.connectors.filesystem.FileConnector" };
+	}
+
+	@Override
+	protected String[] getOutputNames() {
+		return new String[] { "Null Output" };
+	}
+
+	@Override
+	protected String[] getOutputClasses() {
+		return new String[] { "org.apache.manifoldcf.agents.output.nullconnector.NullConnector" };
+	}
+
+	@Override
+	protected String[] getTransformationNames() {
+		return new String[] { "MICO Text" };
+	}
+
+	@Override
+	protected String[] getTransformationClasses() {
+		return new String[] { "org.apache.manifoldcf.agents.transformation.mico.text.MicoExtractor" };
+	}
+
+	@Before
+	public void setUpCorpus() throws Exception {
+		baseline = new Properties();
+		InputStream is = getClass().getResourceAsStream(BASELINE);
+		try {
+			baseline.load(is);
+		} finally {
+			is.close();
+		}
+		corpus = new File("mico-crawl-corpus").getAbsoluteFile();
+		FileUtils.deleteQuietly(corpus);
+		if (!corpus.mkdirs()) {
+			throw new IOException("Could not create " + corpus);
+		}
+		Random random = new Random(42L);
+		int documents = Integer.parseInt(baseline.getProperty("documents"));
+		for (int i = 0; i < documents; i++) {
+			int kind = i % EXTENSIONS.length;
+			byte[] content = new byte[SIZES[kind]];
+			random.nextBytes(content);
+			System.arraycopy(MAGIC[kind], 0, content, 0, MAGIC[kind].length);
+			OutputStream os = new FileOutputStream(new File(corpus, "document-" + i + "." + EXTENSIONS[kind]));
+			try {
+				os.write(content);
+			} finally {
+				os.close();
+			}
+		}
+		micoServer = new StubMicoServer(Long.parseLong(baseline.getProperty("micoLatency")));
+		micoServer.start();
+	}
+
+	@After
+	public void tearDownCorpus() {
+		if (micoServer != null) {
+			micoServer.stop();
+		}
+		FileUtils.deleteQuietly(corpus);
+	}
+
+	@Test
+	public void crawlThroughput() throws Exception {
+		createConnections();
+		String jobID = createJob();
+
+		long started = System.currentTimeMillis();
+		performAPIPutOperationViaNodes("start/" + jobID, 201, new Configuration());
+		waitJobInactive(jobID, Long.parseLong(baseline.getProperty("timeout")));
+		long jobMillis = System.currentTimeMillis() - started;
+
+		int documents = Integer.parseInt(baseline.getProperty("documents"));
+		long processed = getJobDocumentsProcessed(jobID);
+		// Every file, and the directory they are in
+		assertEquals(documents + 1, processed);
+		// Everything but the images went to MICO
+		assertEquals(documents - documents / EXTENSIONS.length, micoServer.getSubmitted());
+
+		double documentsPerSecond = documents * 1000.0 / jobMillis;
+		Logging.agents.info("MICO text crawl: " + documents + " documents in " + jobMillis + " ms, "
+				+ String.format(Locale.ROOT, "%.1f", documentsPerSecond) + " documents/s");
+
+		if (Boolean.getBoolean("mico.it.recordBaseline")) {
+			recordBaseline(documentsPerSecond, jobMillis);
+			return;
+		}
+		assumeTrue("No throughput recorded in " + BASELINE
+				+ " yet; run with -Dmico.it.recordBaseline=true to record one",
+				baseline.getProperty("documentsPerSecond") != null && baseline.getProperty("jobMillis") != null);
+		double tolerance = Double.parseDouble(baseline.getProperty("tolerance"));
+		double minimumRate = Double.parseDouble(baseline.getProperty("documentsPerSecond")) * (1.0 - tolerance);
+		long maximumMillis = (long) (Long.parseLong(baseline.getProperty("jobMillis")) * (1.0 + tolerance));
+		assertTrue("Throughput of " + documentsPerSecond + " documents/s is below the baseline minimum of "
+				+ minimumRate, documentsPerSecond >= minimumRate);
+		assertTrue("Job took " + jobMillis + " ms, over the baseline maximum of " + maximumMillis,
+				jobMillis <= maximumMillis);
+	}
+
+	private void recordBaseline(double documentsPerSecond, long jobMillis) throws IOException {
+		Properties recorded = new Properties();
+		recorded.putAll(baseline);
+		recorded.setProperty("documentsPerSecond", String.format(Locale.ROOT, "%.1f", documentsPerSecond));
+		recorded.setProperty("jobMillis", Long.toString(jobMillis));
+		File file = new File("../crawl-baseline.properties").getAbsoluteFile();
+		OutputStream os = new FileOutputStream(file);
+		try {
+			recorded.store(os, "Recorded by " + getClass().getSimpleName());
+		} finally {
+			os.close();
+		}
+		Logging.agents.info("Recorded the baseline to " + file);
+	}
+
+	private void createConnections() throws Exception {
+		ConfigurationNode connection = new ConfigurationNode("repositoryconnection");
+		addValue(connection, "name", "File Connection");
+		addValue(connection, "class_name", "org.apache.manifoldcf.crawler.connectors.filesystem.FileConnector");
+		addValue(connection, "description", "Generated corpus");
+		addValue(connection, "max_connections", "100");
+		put("repositoryconnections/File%20Connection", connection);
+
+		connection = new ConfigurationNode("transformationconnection");
+		addValue(connection, "name", "MICO Connection");
+		addValue(connection, "class_name", "org.apache.manifoldcf.agents.transformation.mico.text.MicoExtractor");
+		addValue(connection, "description", "MICO text against a stub server");
+		addValue(connection, "max_connections", "100");
+		put("transformationconnections/MICO%20Connection", connection);
+
+		connection = new ConfigurationNode("outputconnection");
+		addValue(connection, "name", "Null Connection");
+		addValue(connection, "class_name", "org.apache.manifoldcf.agents.output.nullconnector.NullConnector");
+		addValue(connection, "description", "Discards everything");
+		addValue(connection, "max_connections", "100");
+		put("outputconnections/Null%20Connection", connection);
+	}
+
+	private String createJob() throws Exception {
+		ConfigurationNode job = new ConfigurationNode("job");
+		addValue(job, "description", "MICO crawl throughput");
+		addValue(job, "repository_connection", "File Connection");
+		addValue(job, "start_mode", "manual");
+		addValue(job, "run_mode", "scan once");
+		addValue(job, "hopcount_mode", "accurate");
+
+		ConfigurationNode specification = new ConfigurationNode("document_specification");
+		ConfigurationNode startPoint = new ConfigurationNode("startpoint");
+		startPoint.setAttribute("path", corpus.toString());
+		for (String type : new String[] { "file", "directory" }) {
+			ConfigurationNode include = new ConfigurationNode("include");
+			include.setAttribute("type", type);
+			include.setAttribute("match", "*");
+			startPoint.addChild(startPoint.getChildCount(), include);
+		}
+		specification.addChild(specification.getChildCount(), startPoint);
+		job.addChild(job.getChildCount(), specification);
+
+		ConfigurationNode mico = new ConfigurationNode("stage_specification");
+		addSetting(mico, "micoServer", micoServer.getUrl());
+		addSetting(mico, "micoUser", "mico");
+		addSetting(mico, "micoPassword", "mico");
+		addSetting(mico, "micoDocUriField", "mico_uri");
+		addSetting(mico, "micoAsync", "false");
+		addStage(job, "0", null, "false", "MICO Connection", mico);
+		addStage(job, "1", "0", "true", "Null Connection", new ConfigurationNode("stage_specification"));
+
+		Configuration request = new Configuration();
+		request.addChild(0, job);
+		Configuration result = performAPIPostOperationViaNodes("jobs", 201, request);
+		for (int i = 0; i < result.getChildCount(); i++) {
+			ConfigurationNode node = result.findChild(i);
+			if (node.getType().equals("job_id")) {
+				return node.getValue();
+			}
+		}
+		throw new Exception("No job id in the response to creating the job");
+	}
+
+	private void waitJobInactive(String jobID, long maxTime) throws Exception {
+		long deadline = System.currentTimeMillis() + maxTime;
+		while (System.currentTimeMillis() < deadline) {
+			String status = getJobValue(jobID, "status");
+			if (status.equals("done")) {
+				return;
+			}
+			if (status.equals("error")) {
+				fail("Job failed: " + getJobValue(jobID, "error_text"));
+			}
+			Thread.sleep(1000L);
+		}
+		fail("Job did not finish within " + maxTime + " ms");
+	}
+
+	private long getJobDocumentsProcessed(String jobID) throws Exception {
+		return Long.parseLong(getJobValue(jobID, "documents_processed"));
+	}
+
+	private String getJobValue(String jobID, String name) throws Exception {
+		Configuration result = performAPIGetOperationViaNodes("jobstatuses/" + jobID, 200, new Configuration());
+		for (int i = 0; i < result.getChildCount(); i++) {
+			ConfigurationNode node = result.findChild(i);
+			if (node.getType().equals("error")) {
+				throw new Exception(node.getValue());
+			}
+			if (node.getType().equals("jobstatus")) {
+				for (int j = 0; j < node.getChildCount(); j++) {
+					ConfigurationNode child = node.findChild(j);
+					if (child.getType().equals(name)) {
+						return child.getValue();
+					}
+				}
+			}
+		}
+		return "";
+	}
+
+	private void put(String command, ConfigurationNode node) throws Exception {
+		Configuration request = new Configuration();
+		request.addChild(0, node);
+		performAPIPutOperationViaNodes(command, 201, request);
+	}
+
+	private static void addStage(ConfigurationNode job, String id, String prerequisite, String isOutput,
+			String connectionName, ConfigurationNode specification) {
+		ConfigurationNode stage = new ConfigurationNode("pipelinestage");
+		addValue(stage, "stage_id", id);
+		if (prerequisite != null) {
+			addValue(stage, "stage_prerequisite", prerequisite);
+		}
+		addValue(stage, "stage_isoutput", isOutput);
+		addValue(stage, "stage_connectionname", connectionName);
+		stage.addChild(stage.getChildCount(), specification);
+		job.addChild(job.getChildCount(), stage);
+	}
+
+	private static void addSetting(ConfigurationNode specification, String type, String value) {
+		ConfigurationNode setting = new ConfigurationNode(type);
+		setting.setAttribute("value", value);
+		specification.addChild(specification.getChildCount(), setting);
+	}
+
+	private static void addValue(ConfigurationNode parent, String type, String value) {
+		ConfigurationNode child = new ConfigurationNode(type);
+		child.setValue(value);
+		parent.addChild(parent.getChildCount(), child);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.manifoldcf.agents.transformation.mico.text.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP server answering the MICO broker's injection API:
+ * .../inject/create, .../inject/add and .../inject/submit, each after a
+ * fixed latency.
+ */
+public class StubMicoServer {
+
+	private final long latency;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicLong submitted = new AtomicLong();
+
+	public StubMicoServer(long latency) throws IOException {
+		this.latency = latency;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.createContext("/", new InjectionHandler());
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the URL to configure as the MICO server.
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Get the number of content items submitted so far.
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	private class InjectionHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				InputStream is = exchange.getRequestBody();
+				byte[] chunk = new byte[65536];
+				while (is.read(chunk) != -1) {
+					// Uploads are read and dropped
+				}
+				if (latency > 0L) {
+					Thread.sleep(latency);
+				}
+				String path = exchange.getRequestURI().getPath();
+				if (path.endsWith("/create") || path.endsWith("/add")) {
+					respond(exchange, 200, "{\"uri\":\"" + getUrl() + "marmotta/" + UUID.randomUUID() + "\"}");
+				} else if (path.endsWith("/submit")) {
+					submitted.incrementAndGet();
+					respond(exchange, 200, "");
+				} else {
+					respond(exchange, 404, "Not an injection request: " + path);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void respond(HttpExchange exchange, int status, String body) throws IOException {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+			if (bytes.length > 0) {
+				OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		}
+	}
+}